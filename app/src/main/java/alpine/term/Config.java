@@ -21,6 +21,11 @@ package alpine.term;
 
 import android.content.Context;
 
+import java.io.File;
+
+import alpine.term.emulator.LogWriter;
+import alpine.term.emulator.LogcatRecordStore;
+
 /**
  * Application build-time configuration entries.
  */
@@ -73,6 +78,147 @@ public class Config {
      */
     public static final String WAKELOCK_LOG_TAG = "alpine-term:wakelock";
 
+    /**
+     * Default capacity in bytes of the ring buffers between a terminal session's
+     * I/O threads and the main thread. Must be a power of two.
+     */
+    public static final int TERMINAL_IO_QUEUE_CAPACITY = 64 * 1024;
+
+    /**
+     * Parse terminal output on a dedicated thread per session instead of the
+     * main thread. The view then draws from snapshots published by that thread.
+     */
+    public static final boolean TERMINAL_PARSE_OFF_MAIN_THREAD = false;
+
+    /**
+     * Jump scroll like xterm: report output to the view at most once per
+     * display frame, so a burst of lines scrolls straight to its final state
+     * instead of redrawing for every part of it.
+     */
+    public static final boolean TERMINAL_JUMP_SCROLL = true;
+
+    /**
+     * Service the pseudo-terminals of all sessions from one shared epoll
+     * thread, and watch their processes from one shared reaper thread,
+     * instead of starting reader, writer and waitFor threads per session.
+     */
+    public static final boolean TERMINAL_SHARED_IO_LOOP = true;
+
+    /**
+     * Input of at most this many bytes, such as a keystroke, is written
+     * straight to the pty instead of through the input queue. 0 queues
+     * everything.
+     */
+    public static final int TERMINAL_DIRECT_WRITE_MAX_BYTES = 256;
+
+    /**
+     * Pasted text is encoded and written to the pty this many bytes at a
+     * time, and a paste of more than this many chars is written from a
+     * background thread as the process reads it.
+     */
+    public static final int TERMINAL_PASTE_CHUNK_BYTES = 16 * 1024;
+
+    /**
+     * How long removing a session waits for its I/O threads to finish
+     * before giving up on them.
+     */
+    public static final long SESSION_TEARDOWN_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The longest the activity monitor parks between checks for dead
+     * tracked activities once it has backed off.
+     */
+    public static final long ACTIVITY_MONITOR_BACKOFF_CEILING_MILLIS = 50;
+
+    /**
+     * How the native log and logcat output persisted by log sessions is
+     * synced to storage.
+     */
+    public static final LogWriter.Durability LOG_DURABILITY = LogWriter.Durability.GROUP_COMMIT;
+
+    /**
+     * For group commit, the longest time persisted log output stays unsynced.
+     */
+    public static final long LOG_COMMIT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * For group commit, the number of unsynced bytes of log output that
+     * forces a sync.
+     */
+    public static final int LOG_COMMIT_BYTES = 256 * 1024;
+
+    /**
+     * The most log output buffered in memory while waiting for the disk,
+     * output past this is dropped from the log file (not from the terminal).
+     */
+    public static final int LOG_BUFFER_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * The size at which persisted log output moves on to a new segment
+     * file.
+     */
+    public static final long LOG_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The most persisted output kept per log, the oldest segments are
+     * deleted past this.
+     */
+    public static final long LOG_RETENTION_BYTES = 256 * 1024 * 1024;
+
+    /**
+     * How long a completed log segment is kept after it was last written.
+     */
+    public static final long LOG_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The block size completed log segments are compressed with, each
+     * block can be read on its own. 0 leaves completed segments
+     * uncompressed.
+     */
+    public static final int LOG_COMPRESSION_BLOCK_BYTES = 64 * 1024;
+
+    /**
+     * Run logcat sessions in threadtime format and also parse their output
+     * into a {@link LogcatRecordStore} of structured records, which the
+     * logcat filter in the context menu searches. The store grows as
+     * records come in, up to the limits below.
+     */
+    public static final boolean LOGCAT_STRUCTURED = true;
+
+    /**
+     * The most logcat records kept in memory, the oldest are evicted past
+     * this.
+     */
+    public static final int LOGCAT_RECORD_CAPACITY = 64 * 1024;
+
+    /**
+     * The most chars of logcat messages kept in memory, the oldest records
+     * are evicted past this.
+     */
+    public static final int LOGCAT_MESSAGE_ARENA_CHARS = 4 * 1024 * 1024;
+
+    /**
+     * The most matching logcat records listed by the logcat filter, the
+     * latest are listed.
+     */
+    public static final int LOGCAT_FILTER_SHOWN_RECORDS = 1000;
+
+    /**
+     * Returns path to the directory holding the segmented stores of the
+     * given log, such as "logcat" or "native_log", one per source.
+     */
+    public static File getLogDirectory(final Context context, final String logName) {
+        return new File(getDataDirectory(context) + "logs/" + logName);
+    }
+
+    /**
+     * Returns path to the segmented store persisting the given log of
+     * source, such as the package name of a tracked activity.
+     */
+    public static File getLogDirectory(final Context context, final String logName, final String source) {
+        return new File(getLogDirectory(context, logName), source);
+    }
+
     /**
      * Returns path to runtime environment directory.
      */
@@ -250,6 +250,11 @@ public final class InputDispatcher implements TerminalViewClient {
         return false;
     }
 
+    @Override
+    public void onPaste(CharSequence text, TerminalSession session) {
+        terminalController.paste(session, text);
+    }
+
     /** Handle dedicated volume buttons as virtual keys if applicable. */
     private boolean handleVirtualKeys(int keyCode, KeyEvent event, boolean down) {
         InputDevice inputDevice = event.getDevice();
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetManager;
 import android.net.Uri;
+import android.text.InputType;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -22,8 +23,11 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -48,13 +52,17 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import alpine.term.emulator.JNI;
+import alpine.term.emulator.LogcatFilter;
+import alpine.term.emulator.LogcatFilterEngine;
+import alpine.term.emulator.LogcatRecordStore;
+import alpine.term.emulator.SegmentedLogStore;
+import alpine.term.emulator.StreamingPaste;
 import alpine.term.emulator.TerminalColors;
 import alpine.term.emulator.TerminalSession;
 import alpine.term.emulator.TextStyle;
+import alpine.term.emulator.TranscriptUrlIndex;
 import alpine.term.terminal_view.TerminalView;
 
 public class TerminalController {
@@ -257,6 +265,9 @@ public class TerminalController {
     private static final int CONTEXTMENU_RESET_TERMINAL_ID = 5;
     private static final int CONTEXTMENU_CONSOLE_STYLE = 6;
     private static final int CONTEXTMENU_TOGGLE_IGNORE_BELL = 7;
+    private static final int CONTEXTMENU_REOPEN_LOG_ID = 8;
+    private static final int CONTEXTMENU_CLOSE_REPLAY_ID = 9;
+    private static final int CONTEXTMENU_FILTER_LOGCAT_ID = 10;
 
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo menuInfo) {
         TerminalSession currentSession = mTerminalView.getCurrentSession();
@@ -269,6 +280,13 @@ public class TerminalController {
         menu.add(Menu.NONE, CONTEXTMENU_SHOW_HELP, Menu.NONE, R.string.menu_show_help);
         menu.add(Menu.NONE, CONTEXTMENU_SELECT_URL_ID, Menu.NONE, R.string.menu_select_url);
         menu.add(Menu.NONE, CONTEXTMENU_SHARE_TRANSCRIPT_ID, Menu.NONE, R.string.menu_share_transcript);
+        menu.add(Menu.NONE, CONTEXTMENU_REOPEN_LOG_ID, Menu.NONE, R.string.menu_reopen_log);
+        if (currentSession.isReplay()) {
+            menu.add(Menu.NONE, CONTEXTMENU_CLOSE_REPLAY_ID, Menu.NONE, R.string.menu_close_replay);
+        }
+        if (currentSession.getLogcatRecords() != null) {
+            menu.add(Menu.NONE, CONTEXTMENU_FILTER_LOGCAT_ID, Menu.NONE, R.string.menu_filter_logcat);
+        }
         menu.add(Menu.NONE, CONTEXTMENU_RESET_TERMINAL_ID, Menu.NONE, R.string.menu_reset_terminal);
         menu.add(Menu.NONE, CONTEXTMENU_CONSOLE_STYLE, Menu.NONE, R.string.menu_console_style);
     }
@@ -306,7 +324,7 @@ public class TerminalController {
                 if (session != null) {
                     Intent intent = new Intent(Intent.ACTION_SEND);
                     intent.setType("text/plain");
-                    String transcriptText = session.getEmulator().getScreen().getTranscriptTextWithoutJoinedLines().trim();
+                    String transcriptText = session.getTranscriptTextWithoutJoinedLines().trim();
                     // See https://github.com/termux/termux-app/issues/1166.
                     final int MAX_LENGTH = 100_000;
                     if (transcriptText.length() > MAX_LENGTH) {
@@ -322,6 +340,15 @@ public class TerminalController {
                     activity.startActivity(Intent.createChooser(intent, activity.getString(R.string.share_transcript_chooser_title)));
                 }
                 return true;
+            case CONTEXTMENU_REOPEN_LOG_ID:
+                showReopenLog();
+                return true;
+            case CONTEXTMENU_CLOSE_REPLAY_ID:
+                if (session != null) session.closeReplay();
+                return true;
+            case CONTEXTMENU_FILTER_LOGCAT_ID:
+                showLogcatFilter();
+                return true;
             case CONTEXTMENU_PASTE_ID:
                 doPaste();
                 return true;
@@ -442,6 +469,79 @@ public class TerminalController {
         builder.create().show();
     }
 
+    /**
+     * Let the user pick a persisted log and replay it into a new read-only session, showing the progress of the
+     * replay in a dialog which can cancel it.
+     */
+    public void showReopenLog() {
+        List<File> sources = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (String name : new String[]{"logcat", "native_log"}) {
+            File directory = Config.getLogDirectory(activity, name);
+            // One store per source.
+            File[] stores = directory.listFiles(File::isDirectory);
+            if (stores != null) {
+                Arrays.sort(stores);
+                for (File store : stores) {
+                    sources.add(store);
+                    names.add(name + "/" + store.getName());
+                }
+            }
+            // Written by versions before each source had its own store.
+            if (!SegmentedLogStore.listSegmentFiles(directory).isEmpty()) {
+                sources.add(directory);
+                names.add(name);
+            }
+            // Written by versions before logs were segmented.
+            File legacy = new File(Config.getDataDirectory(activity), name + ".txt");
+            if (legacy.isFile() && legacy.length() > 0) {
+                sources.add(legacy);
+                names.add(legacy.getName());
+            }
+        }
+
+        if (sources.isEmpty()) {
+            showToast(activity.getResources().getString(R.string.reopen_log_toast_none_found), true);
+            return;
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+        builder.setTitle(R.string.reopen_log_dialog_title);
+        builder.setItems(names.toArray(new String[0]), (dialogInterface, which) -> {
+            dialogInterface.dismiss();
+            replayLog(sources.get(which));
+        });
+        builder.create().show();
+    }
+
+    private void replayLog(File source) {
+        final ProgressBar progressBar = new ProgressBar(activity, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(1000);
+        final TerminalSession[] replay = new TerminalSession[1];
+        final AlertDialog progressDialog = new AlertDialog.Builder(activity)
+            .setTitle(activity.getString(R.string.reopen_log_progress_title, source.getName()))
+            .setView(progressBar)
+            .setCancelable(false)
+            .setNegativeButton(R.string.cancel_label, (dialogInterface, which) -> {
+                if (replay[0] != null) replay[0].cancelReplay();
+            })
+            .create();
+        progressDialog.show();
+
+        replay[0] = terminalControllerService.createReplay(source, new TerminalSession.ReplayListener() {
+            @Override
+            public void onReplayProgress(TerminalSession session, long bytesReplayed, long bytesTotal) {
+                progressBar.setProgress(bytesTotal == 0 ? 1000 : (int) (bytesReplayed * 1000 / bytesTotal));
+            }
+
+            @Override
+            public void onReplayFinished(TerminalSession session, boolean completed) {
+                progressDialog.dismiss();
+            }
+        }, activity.getApplicationContext());
+        if (replay[0] == null) progressDialog.dismiss();
+    }
+
     /**
      * The current session as stored or the last one if that does not exist.
      */
@@ -589,12 +689,47 @@ public class TerminalController {
                 TerminalSession currentSession = mTerminalView.getCurrentSession();
 
                 if (currentSession != null) {
-                    currentSession.getEmulator().paste(paste.toString());
+                    paste(currentSession, paste);
                 }
             }
         }
     }
 
+    /**
+     * Paste text into session. A paste of more than {@link Config#TERMINAL_PASTE_CHUNK_BYTES} chars shows its
+     * progress in a dialog which can cancel it.
+     */
+    public void paste(TerminalSession session, CharSequence text) {
+        if (text.length() <= Config.TERMINAL_PASTE_CHUNK_BYTES) {
+            session.paste(text, null);
+            return;
+        }
+        final ProgressBar progressBar = new ProgressBar(activity, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(1000);
+        final StreamingPaste[] paste = new StreamingPaste[1];
+        final AlertDialog progressDialog = new AlertDialog.Builder(activity)
+            .setTitle(R.string.paste_progress_title)
+            .setView(progressBar)
+            .setCancelable(false)
+            .setNegativeButton(R.string.cancel_label, (dialogInterface, which) -> {
+                if (paste[0] != null) paste[0].cancel();
+            })
+            .create();
+        progressDialog.show();
+
+        paste[0] = session.paste(text, new StreamingPaste.Listener() {
+            @Override
+            public void onPasteProgress(StreamingPaste paste, int charsPasted, int charsTotal) {
+                progressBar.setProgress(charsTotal == 0 ? 1000 : (int) ((long) charsPasted * 1000 / charsTotal));
+            }
+
+            @Override
+            public void onPasteFinished(StreamingPaste paste, boolean completed) {
+                progressDialog.dismiss();
+            }
+        });
+    }
+
     /**
      * Extract URLs from the current transcript and show them in dialog.
      */
@@ -605,8 +740,8 @@ public class TerminalController {
             return;
         }
 
-        String text = currentSession.getEmulator().getScreen().getTranscriptText();
-        LinkedHashSet<CharSequence> urlSet = extractUrls(text);
+        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
+        for (TranscriptUrlIndex.Url url : currentSession.getTranscriptUrls()) urlSet.add(url.url);
 
         if (urlSet.isEmpty()) {
             showToast(activity.getResources().getString(R.string.select_url_toast_no_found), true);
@@ -655,92 +790,100 @@ public class TerminalController {
     }
 
     /**
-     * Extract URLs from the given text.
+     * Ask for a filter over the logcat records of the current session and list the records it lets through.
      */
-    @SuppressWarnings("StringBufferReplaceableByString")
-    private static LinkedHashSet<CharSequence> extractUrls(String text) {
-        StringBuilder regex_sb = new StringBuilder();
-
-        regex_sb.append("(");                       // Begin first matching group.
-        regex_sb.append("(?:");                     // Begin scheme group.
-        regex_sb.append("dav|");                    // The DAV proto.
-        regex_sb.append("dict|");                   // The DICT proto.
-        regex_sb.append("dns|");                    // The DNS proto.
-        regex_sb.append("file|");                   // File path.
-        regex_sb.append("finger|");                 // The Finger proto.
-        regex_sb.append("ftp(?:s?)|");              // The FTP proto.
-        regex_sb.append("git|");                    // The Git proto.
-        regex_sb.append("gopher|");                 // The Gopher proto.
-        regex_sb.append("http(?:s?)|");             // The HTTP proto.
-        regex_sb.append("imap(?:s?)|");             // The IMAP proto.
-        regex_sb.append("irc(?:[6s]?)|");           // The IRC proto.
-        regex_sb.append("ip[fn]s|");                // The IPFS proto.
-        regex_sb.append("ldap(?:s?)|");             // The LDAP proto.
-        regex_sb.append("pop3(?:s?)|");             // The POP3 proto.
-        regex_sb.append("redis(?:s?)|");            // The Redis proto.
-        regex_sb.append("rsync|");                  // The Rsync proto.
-        regex_sb.append("rtsp(?:[su]?)|");          // The RTSP proto.
-        regex_sb.append("sftp|");                   // The SFTP proto.
-        regex_sb.append("smb(?:s?)|");              // The SAMBA proto.
-        regex_sb.append("smtp(?:s?)|");             // The SMTP proto.
-        regex_sb.append("svn(?:(?:\\+ssh)?)|");     // The Subversion proto.
-        regex_sb.append("tcp|");                    // The TCP proto.
-        regex_sb.append("telnet|");                 // The Telnet proto.
-        regex_sb.append("tftp|");                   // The TFTP proto.
-        regex_sb.append("udp|");                    // The UDP proto.
-        regex_sb.append("vnc|");                    // The VNC proto.
-        regex_sb.append("ws(?:s?)");                // The Websocket proto.
-        regex_sb.append(")://");                    // End scheme group.
-        regex_sb.append(")");                       // End first matching group.
-
-        // Begin second matching group.
-        regex_sb.append("(");
-
-        // User name and/or password in format 'user:pass@'.
-        regex_sb.append("(?:\\S+(?::\\S*)?@)?");
-
-        // Begin host group.
-        regex_sb.append("(?:");
-
-        // IP address (from http://www.regular-expressions.info/examples.html).
-        regex_sb.append("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)|");
-
-        // Host name or domain.
-        regex_sb.append("(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)(?:(?:\\.(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)*(?:\\.(?:[a-z\\u00a1-\\uffff]{2,})))?|");
-
-        // Just path. Used in case of 'file://' scheme.
-        regex_sb.append("/(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)");
-
-        // End host group.
-        regex_sb.append(")");
-
-        // Port number.
-        regex_sb.append("(?::\\d{1,5})?");
-
-        // Resource path with optional query string.
-        regex_sb.append("(?:/[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
-
-        // Fragment.
-        regex_sb.append("(?:#[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
-
-        // End second matching group.
-        regex_sb.append(")");
-
-        final Pattern urlPattern = Pattern.compile(
-            regex_sb.toString(),
-            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
+    public void showLogcatFilter() {
+        final TerminalSession currentSession = mTerminalView.getCurrentSession();
+        final LogcatFilterEngine engine = currentSession == null ? null : currentSession.getLogcatFilterEngine();
 
-        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
-        Matcher matcher = urlPattern.matcher(text);
+        if (engine == null) {
+            return;
+        }
+
+        final LogcatFilter current = engine.getFilter();
+        final String[] levels = new String[LogcatFilter.LEVELS.length()];
+        for (int i = 0; i < levels.length; i++) levels[i] = String.valueOf(LogcatFilter.LEVELS.charAt(i));
+        final Spinner level = new Spinner(activity);
+        level.setAdapter(new ArrayAdapter<>(activity, android.R.layout.simple_spinner_dropdown_item, levels));
+        level.setSelection(LogcatFilter.LEVELS.indexOf(current.getMinLevel()));
+        final EditText tags = filterField(R.string.logcat_filter_tags_hint, TextUtils.join(", ", current.getIncludedTags()));
+        final EditText pid = filterField(R.string.logcat_filter_pid_hint, current.getPid() < 0 ? "" : String.valueOf(current.getPid()));
+        pid.setInputType(InputType.TYPE_CLASS_NUMBER);
+        final EditText message = filterField(R.string.logcat_filter_message_hint, current.getMessageContains());
+
+        LinearLayout layout = new LinearLayout(activity);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(level);
+        layout.addView(tags);
+        layout.addView(pid);
+        layout.addView(message);
+
+        new AlertDialog.Builder(activity)
+            .setTitle(R.string.logcat_filter_dialog_title)
+            .setView(layout)
+            .setNegativeButton(R.string.cancel_label, null)
+            .setPositiveButton(R.string.logcat_filter_apply, (dialogInterface, which) -> {
+                LogcatFilter filter = new LogcatFilter()
+                    .setMinLevel(LogcatFilter.LEVELS.charAt(level.getSelectedItemPosition()))
+                    .setMessageContains(message.getText().toString());
+                for (String tag : tags.getText().toString().split(",")) {
+                    if (!tag.trim().isEmpty()) filter.includeTag(tag.trim());
+                }
+                try {
+                    String pidText = pid.getText().toString().trim();
+                    if (!pidText.isEmpty()) filter.setPid(Integer.parseInt(pidText));
+                } catch (NumberFormatException e) {
+                    // Too long to be a pid, filter on any.
+                }
+                engine.setFilter(filter);
+                showLogcatRecords(currentSession.getLogcatRecords(), engine);
+            })
+            .show();
+    }
+
+    private EditText filterField(int hint, String text) {
+        EditText field = new EditText(activity);
+        field.setSingleLine();
+        field.setHint(hint);
+        field.setText(text);
+        return field;
+    }
 
-        while (matcher.find()) {
-            int matchStart = matcher.start(1);
-            int matchEnd = matcher.end();
-            String url = text.substring(matchStart, matchEnd);
-            urlSet.add(url);
+    /**
+     * List the latest records let through by the filter, see {@link Config#LOGCAT_FILTER_SHOWN_RECORDS}. Click to
+     * copy a record to the clipboard.
+     */
+    private void showLogcatRecords(LogcatRecordStore records, LogcatFilterEngine engine) {
+        final CharSequence[] lines;
+        final int count;
+        // Nothing is evicted while the lock is held, so every match listed is still kept.
+        synchronized (records) {
+            engine.update();
+            count = engine.getMatchCount();
+            lines = new CharSequence[Math.min(count, Config.LOGCAT_FILTER_SHOWN_RECORDS)];
+            for (int i = 0; i < lines.length; i++) lines[i] = formatLogcatRecord(records, engine.getMatch(count - 1 - i));
         }
 
-        return urlSet;
+        if (count == 0) {
+            showToast(activity.getResources().getString(R.string.logcat_filter_toast_none_found), true);
+            return;
+        }
+
+        new AlertDialog.Builder(activity).setItems(lines, (di, which) -> {
+            ClipboardManager clipboard = (ClipboardManager) activity.getSystemService(Context.CLIPBOARD_SERVICE);
+            if (clipboard != null) {
+                clipboard.setPrimaryClip(new ClipData(null, new String[]{"text/plain"}, new ClipData.Item(lines[which])));
+                showToast(activity.getResources().getString(R.string.logcat_filter_toast_copied_to_clipboard), true);
+            }
+        }).setTitle(activity.getString(R.string.logcat_filter_results_title, count)).show();
+    }
+
+    /** A record in logcat's brief format, "L/TAG(PID): message", or the whole line if it is not a record. */
+    private static String formatLogcatRecord(LogcatRecordStore records, long sequence) {
+        final byte level = records.getLevel(sequence);
+        if (level == LogcatRecordStore.LEVEL_NONE) return records.getMessage(sequence);
+        return (char) level + "/" + records.getTag(records.getTagId(sequence)) + "(" + records.getPid(sequence) + "): "
+            + records.getMessage(sequence);
     }
 
     /**
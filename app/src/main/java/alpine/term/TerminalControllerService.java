@@ -36,6 +36,7 @@ import androidx.annotation.NonNull;
 import com.example.libclient_service.LibService_Messenger;
 import com.example.libclient_service.LibService_Service_Connection;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -402,6 +403,35 @@ public class TerminalControllerService extends LibService_Service_Connection {
         return session;
     }
 
+    public TerminalSession createReplay(File source, TerminalSession.ReplayListener replayListener, Context context) {
+        log.errorAndThrowIfNull(context, "a context is required");
+        if (mTerminalService == null) {
+            logUtils.log_Error("error: mTerminalService is null");
+            return null;
+        }
+
+        TerminalSession session;
+        TerminalSession currentSession = terminalController.mTerminalView.getCurrentSession();
+
+        session = mTerminalService.createReplaySession(source, replayListener, context);
+        terminalController.mTerminalView.attachSession(session);
+        session.mSessionName = "REPLAY [" + source.getName() + "]";
+
+        terminalController.activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!LibService_Messenger.mainThread.equals(Thread.currentThread())) {
+                    logUtils.errorAndThrow(
+                        "ERROR: runOnUiThread IS NOT BEING INVOKED ON REAL UI THREAD"
+                    );
+                }
+                terminalController.switchToSession(currentSession, session);
+                mListViewAdapter.notifyDataSetChanged();
+            }
+        });
+        return session;
+    }
+
     public Boolean isCurrentSessionShell() {
         return
             mTerminalService == null
@@ -38,8 +38,10 @@ import android.os.RemoteException;
 import android.util.Pair;
 import android.widget.ArrayAdapter;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import androidx.core.app.NotificationCompat;
 
@@ -48,6 +50,7 @@ import com.example.libclient_service.LibService_Messenger;
 import com.example.libclient_service.LibService_Service_Component;
 
 import alpine.term.emulator.JNI;
+import alpine.term.emulator.TerminalIOLoop;
 import alpine.term.emulator.TerminalSession;
 import alpine.term.emulator.TerminalSession.SessionChangedCallback;
 
@@ -127,6 +130,8 @@ public class TerminalService extends LibService_Service_Component implements Ses
         }
 
         startForeground(NOTIFICATION_ID, buildNotification());
+
+        if (Config.TERMINAL_SHARED_IO_LOOP) TerminalIOLoop.getInstance().start();
     }
 
     @Override
@@ -139,6 +144,8 @@ public class TerminalService extends LibService_Service_Component implements Ses
         for (TerminalSession mTerminalSession : mTerminalSessions) {
             mTerminalSession.finishIfRunning();
         }
+
+        if (Config.TERMINAL_SHARED_IO_LOOP) TerminalIOLoop.getInstance().stop();
     }
 
     public static int toInt(boolean value) {
@@ -248,7 +255,10 @@ public class TerminalService extends LibService_Service_Component implements Ses
             @Override
             public void run() {
                 InfiniteLoop infiniteLoop = new InfiniteLoop();
-                infiniteLoop.setSleepTimeInMicroseconds(500);
+                infiniteLoop.setWaitStrategy(InfiniteLoop.WaitStrategy.BACKOFF);
+                infiniteLoop.setBackoffCeilingInNanoseconds(
+                    TimeUnit.MILLISECONDS.toNanos(Config.ACTIVITY_MONITOR_BACKOFF_CEILING_MILLIS)
+                );
                 infiniteLoop.loop(() -> {
                     // if there are tracked activities
                     if (!mTrackedActivities.isEmpty()) {
@@ -270,6 +280,7 @@ public class TerminalService extends LibService_Service_Component implements Ses
                                 );
                             }
                         }
+                        if (!ids.isEmpty()) infiniteLoop.markWork();
                         for (Pair<Integer, Pair<Pair<Integer, String>, String>> id : ids) {
                             String message =
                                 "the process " + id.second.second +
@@ -293,9 +304,10 @@ public class TerminalService extends LibService_Service_Component implements Ses
                                 }
                             }
                             for (TerminalSession terminal : terminals) {
-                                // close the master half of a pseudo-terminal pair of this terminal
-                                JNI.close(terminal.mTerminalFileDescriptor);
-                                terminal.sessionIsAlive.set(false);
+                                // close the master half of a pseudo-terminal pair of this terminal,
+                                // the shared I/O loop closes it itself once the session is unregistered
+                                if (!terminal.usesSharedIOLoop()) JNI.close(terminal.mTerminalFileDescriptor);
+                                terminal.stopReaders();
                                 terminal.waitForExit();
                                 removeSession(terminal);
                             }
@@ -446,7 +458,7 @@ public class TerminalService extends LibService_Service_Component implements Ses
         ArrayList<String> processArgs = new ArrayList<>();
         processArgs.add("/sbin/su");
         processArgs.add("-c");
-        processArgs.add("/bin/logcat -C --pid=" + trackedActivity.pid);
+        processArgs.add("/bin/logcat -C" + (Config.LOGCAT_STRUCTURED ? " -v threadtime" : "") + " --pid=" + trackedActivity.pid);
         logUtils.log_Info("initiating sh session with following arguments: " + processArgs.toString());
 
         TerminalSession session = new TerminalSession(true, processArgs.get(0), processArgs.toArray(new String[0]), environment.toArray(new String[0]), runtimeDataPath, this, trackedActivity, false, context);
@@ -459,6 +471,10 @@ public class TerminalService extends LibService_Service_Component implements Ses
         ArrayList<String> processArgs = new ArrayList<>();
         processArgs.add("/bin/logcat");
         processArgs.add("-C");
+        if (Config.LOGCAT_STRUCTURED) {
+            processArgs.add("-v");
+            processArgs.add("threadtime");
+        }
         if (trackedActivity != null) processArgs.add("--pid=" + trackedActivity.pid);
         else processArgs.add("--pid=" + JNI.getPid());
         logUtils.log_Info("initiating sh session with following arguments: " + processArgs.toString());
@@ -491,6 +507,19 @@ public class TerminalService extends LibService_Service_Component implements Ses
         else return startLogcatSessionWithoutRoot(trackedActivity, environment, runtimeDataPath, context);
     }
 
+    /**
+     * Creates a read-only terminal instance replaying a persisted log, without a process.
+     * @param source        a segmented log directory or a plain log file
+     * @return              a created terminal session that can be attached to TerminalView.
+     */
+    public TerminalSession createReplaySession(File source, TerminalSession.ReplayListener replayListener, Context context) {
+        logUtils.log_Info("replaying " + source);
+        TerminalSession session = new TerminalSession(source, this, replayListener, context);
+        mTerminalSessions.add(session);
+        updateNotification();
+        return session;
+    }
+
     private Notification buildNotification() {
         Intent notifyIntent = new Intent(this, TerminalActivity.class);
         // PendingIntent#getActivity(): "Note that the activity will be started outside of the context of an existing
@@ -0,0 +1,281 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import alpine.term.LogUtils;
+
+/**
+ * A lock-free circular byte buffer allowing exactly one producer and one consumer thread.
+ * <p>
+ * This is a drop-in for {@link ByteQueue}: the producer only ever advances the tail and the consumer only ever
+ * advances the head, so no monitor is needed. A blocked side parks itself with {@link LockSupport} and is unparked
+ * by the other side once there is something to do.
+ * <p>
+ * A ring buffer created with direct storage keeps its bytes in a direct {@link ByteBuffer}, so that the producer can
+ * have native code read into the free space in place with {@link #write(Filler, boolean)}, and the consumer can
+ * parse the stored bytes in place with {@link #read(Drainer, int)}.
+ */
+final class ByteRingBuffer {
+
+    LogUtils logUtils = new LogUtils("Byte Ring Buffer");
+
+    /** Writes straight into the free space of a ring buffer, see {@link #write(Filler, boolean)}. */
+    interface Filler {
+        /**
+         * Write at most length bytes into buffer starting at offset, without changing its position or limit.
+         *
+         * @return the number of bytes written, or a negative value to stop
+         */
+        int fill(ByteBuffer buffer, int offset, int length);
+    }
+
+    /** Consumes stored bytes in place, see {@link #read(Drainer, int)}. */
+    interface Drainer {
+        /** Consume length bytes of buffer starting at offset, without changing its position or limit. */
+        void drain(ByteBuffer buffer, int offset, int length);
+    }
+
+    /** The storage of a heap ring buffer, null for a direct one. */
+    private final byte[] mBuffer;
+    /** The storage of a direct ring buffer, null for a heap one. */
+    private final ByteBuffer mDirect;
+    /** Views of {@link #mDirect} private to the consumer and to the producer, for bulk copies. */
+    private final ByteBuffer mReadView;
+    private final ByteBuffer mWriteView;
+    private final int mCapacity;
+    private final int mMask;
+
+    /** Total number of bytes read, only written by the consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Total number of bytes written, only written by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile boolean mOpen = true;
+    private volatile Thread mParkedReader;
+    private volatile Thread mParkedWriter;
+
+    /** @param capacity the capacity in bytes, rounded up to the next power of two */
+    public ByteRingBuffer(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity the capacity in bytes, rounded up to the next power of two
+     * @param direct   true to store the bytes in a direct {@link ByteBuffer}
+     */
+    public ByteRingBuffer(int capacity, boolean direct) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        if (direct) {
+            mBuffer = null;
+            mDirect = ByteBuffer.allocateDirect(size);
+            mReadView = mDirect.duplicate();
+            mWriteView = mDirect.duplicate();
+        } else {
+            mBuffer = new byte[size];
+            mDirect = null;
+            mReadView = null;
+            mWriteView = null;
+        }
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /** Whether the bytes are stored in a direct {@link ByteBuffer}. */
+    public boolean isDirect() {
+        return mDirect != null;
+    }
+
+    /** The number of bytes currently stored, may be stale by the time it returns. */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public void close() {
+        mOpen = false;
+        LockSupport.unpark(mParkedReader);
+        LockSupport.unpark(mParkedWriter);
+    }
+
+    /**
+     * Read as many bytes as are available, up to buffer.length.
+     *
+     * @param block true to park until at least one byte is available
+     * @return the number of bytes read, 0 if none are available and block is false, -1 if closed
+     */
+    public int read(byte[] buffer, boolean block) {
+        final long head = mHead.get();
+        final long available = awaitReadable(head, block);
+        if (available <= 0) return (int) available;
+
+        final int bytesToRead = (int) Math.min(buffer.length, available);
+        final int start = (int) head & mMask;
+        final int firstRun = Math.min(bytesToRead, mCapacity - start);
+        if (mDirect == null) {
+            System.arraycopy(mBuffer, start, buffer, 0, firstRun);
+            if (firstRun < bytesToRead) System.arraycopy(mBuffer, 0, buffer, firstRun, bytesToRead - firstRun);
+        } else {
+            mReadView.position(start);
+            mReadView.get(buffer, 0, firstRun);
+            if (firstRun < bytesToRead) {
+                mReadView.position(0);
+                mReadView.get(buffer, firstRun, bytesToRead - firstRun);
+            }
+        }
+        consumed(head + bytesToRead);
+        return bytesToRead;
+    }
+
+    /**
+     * Hand up to max stored bytes to drainer in place, in at most two runs, without blocking. Only for a direct
+     * ring buffer.
+     *
+     * @return the number of bytes consumed, 0 if none are available, -1 if closed
+     */
+    public int read(Drainer drainer, int max) {
+        if (mDirect == null) throw new IllegalStateException("not a direct ring buffer");
+        final long head = mHead.get();
+        final long available = awaitReadable(head, false);
+        if (available <= 0) return (int) available;
+
+        final int bytesToRead = (int) Math.min(max, available);
+        final int start = (int) head & mMask;
+        final int firstRun = Math.min(bytesToRead, mCapacity - start);
+        drainer.drain(mDirect, start, firstRun);
+        if (firstRun < bytesToRead) drainer.drain(mDirect, 0, bytesToRead - firstRun);
+        consumed(head + bytesToRead);
+        return bytesToRead;
+    }
+
+    /** The number of readable bytes, parking for some if block, 0 if there are none, -1 if closed. */
+    private long awaitReadable(long head, boolean block) {
+        while (true) {
+            if (!mOpen) return -1;
+            long available = mTail.get() - head;
+            if (available > 0) return available;
+            if (!block) return 0;
+            mParkedReader = Thread.currentThread();
+            // Check again after publishing ourselves, the producer may have written in between.
+            if (mTail.get() == head && mOpen) LockSupport.park(this);
+            mParkedReader = null;
+        }
+    }
+
+    private void consumed(long head) {
+        mHead.set(head);
+        Thread writer = mParkedWriter;
+        if (writer != null) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Let filler write straight into the free space up to the end of the storage, once. Only for a direct ring
+     * buffer.
+     *
+     * @param block true to park while the ring buffer is full
+     * @return the number of bytes written, 0 if full and block is false, -1 if closed, or the negative value
+     * returned by filler
+     */
+    public int write(Filler filler, boolean block) {
+        if (mDirect == null) throw new IllegalStateException("not a direct ring buffer");
+        final long tail = mTail.get();
+        long free;
+        while (true) {
+            if (!mOpen) return -1;
+            free = mCapacity - (tail - mHead.get());
+            if (free > 0) break;
+            if (!block) return 0;
+            mParkedWriter = Thread.currentThread();
+            // Check again after publishing ourselves, the consumer may have read in between.
+            if (mCapacity == tail - mHead.get() && mOpen) LockSupport.park(this);
+            mParkedWriter = null;
+        }
+
+        final int start = (int) tail & mMask;
+        final int written = filler.fill(mDirect, start, (int) Math.min(free, mCapacity - start));
+        if (written <= 0) return written;
+        produced(tail + written);
+        return written;
+    }
+
+    private void produced(long tail) {
+        mTail.set(tail);
+        Thread reader = mParkedReader;
+        if (reader != null) LockSupport.unpark(reader);
+    }
+
+    /**
+     * Write the specified portion of the provided buffer, parking while the buffer is full.
+     *
+     * @return whether the output was totally written, false if it was closed before.
+     */
+    public boolean write(byte[] buffer, int offset, int lengthToWrite) {
+        if (lengthToWrite + offset > buffer.length) {
+            throw new IllegalArgumentException("length + offset > buffer.length");
+        } else if (lengthToWrite <= 0) {
+            throw new IllegalArgumentException("length <= 0");
+        }
+
+        final int capacity = mCapacity;
+        long tail = mTail.get();
+        while (lengthToWrite > 0) {
+            if (!mOpen) return false;
+            final long free = capacity - (tail - mHead.get());
+            if (free == 0) {
+                mParkedWriter = Thread.currentThread();
+                // Check again after publishing ourselves, the consumer may have read in between.
+                if (capacity == tail - mHead.get() && mOpen) LockSupport.park(this);
+                mParkedWriter = null;
+                continue;
+            }
+
+            final int bytesToWrite = (int) Math.min(free, lengthToWrite);
+            final int start = (int) tail & mMask;
+            final int firstRun = Math.min(bytesToWrite, capacity - start);
+            if (mDirect == null) {
+                System.arraycopy(buffer, offset, mBuffer, start, firstRun);
+                if (firstRun < bytesToWrite) System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToWrite - firstRun);
+            } else {
+                mWriteView.position(start);
+                mWriteView.put(buffer, offset, firstRun);
+                if (firstRun < bytesToWrite) {
+                    mWriteView.position(0);
+                    mWriteView.put(buffer, offset + firstRun, bytesToWrite - firstRun);
+                }
+            }
+            tail += bytesToWrite;
+            offset += bytesToWrite;
+            lengthToWrite -= bytesToWrite;
+            produced(tail);
+        }
+        return true;
+    }
+}
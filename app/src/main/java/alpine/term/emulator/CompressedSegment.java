@@ -0,0 +1,344 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import alpine.term.LogUtils;
+
+/**
+ * A completed log segment stored as independently deflated blocks, so that reading any point of it inflates a
+ * single block.
+ * <p>
+ * Blocks hold whole lines and end after roughly the block size given to {@link #compress(File, File, int)}. A block
+ * index at the end of the file records, for every block, its uncompressed offset and length, its compressed offset
+ * and length, the number of its first line and the time of its first line in logcat threadtime format, so that a
+ * block can be found by offset, by line or by time.
+ */
+public final class CompressedSegment implements Closeable {
+
+    LogUtils logUtils = new LogUtils("Compressed Segment");
+
+    /** Ends every compressed segment, after the offset of the block index. */
+    private static final int MAGIC = 0x4c4f475a; // "LOGZ"
+    private static final int TRAILER_BYTES = 8 + 4;
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 8 + 4 + 8 + 8;
+
+    private final RandomAccessFile mFile;
+    private final long[] mOffsets;
+    private final int[] mLengths;
+    private final long[] mCompressedOffsets;
+    private final int[] mCompressedLengths;
+    private final long[] mFirstLines;
+    private final long[] mFirstTimes;
+    private final long mLineCount;
+    private final Inflater mInflater = new Inflater(true);
+
+    private CompressedSegment(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            long length = mFile.length();
+            if (length < TRAILER_BYTES) throw new IOException(file + " is not a compressed segment");
+            mFile.seek(length - TRAILER_BYTES);
+            long indexOffset = mFile.readLong();
+            if (mFile.readInt() != MAGIC || indexOffset < 0 || indexOffset > length - TRAILER_BYTES - 4) {
+                throw new IOException(file + " is not a compressed segment");
+            }
+            mFile.seek(indexOffset);
+            int count = mFile.readInt();
+            if (count < 0 || (long) count * INDEX_ENTRY_BYTES + 4 != length - TRAILER_BYTES - indexOffset) {
+                throw new IOException(file + " has a corrupt block index");
+            }
+            byte[] index = new byte[count * INDEX_ENTRY_BYTES];
+            mFile.readFully(index);
+            ByteBuffer entries = ByteBuffer.wrap(index);
+            mOffsets = new long[count];
+            mLengths = new int[count];
+            mCompressedOffsets = new long[count];
+            mCompressedLengths = new int[count];
+            mFirstLines = new long[count];
+            mFirstTimes = new long[count];
+            for (int i = 0; i < count; i++) {
+                mOffsets[i] = entries.getLong();
+                mLengths[i] = entries.getInt();
+                mCompressedOffsets[i] = entries.getLong();
+                mCompressedLengths[i] = entries.getInt();
+                mFirstLines[i] = entries.getLong();
+                mFirstTimes[i] = entries.getLong();
+            }
+            mLineCount = count > 0 ? readLineCount(count) : 0;
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /** Open a file written by {@link #compress(File, File, int)}. */
+    public static CompressedSegment open(File file) throws IOException {
+        return new CompressedSegment(file);
+    }
+
+    /**
+     * Compress source into target as blocks of about blockBytes, cutting at line boundaries. Target is written
+     * through a temporary file and synced, so it is either complete or missing.
+     */
+    public static void compress(File source, File target, int blockBytes) throws IOException {
+        byte[] input;
+        // Not Files.readAllBytes, which needs API 26.
+        try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) throw new IOException(source + " is too large to compress");
+            input = new byte[(int) length];
+            file.readFully(input);
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(source.lastModified());
+        int year = calendar.get(Calendar.YEAR);
+
+        File temporary = new File(target.getPath() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (FileOutputStream stream = new FileOutputStream(temporary, false)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(index);
+            byte[] compressed = new byte[blockBytes + 1024];
+            long compressedOffset = 0;
+            long line = 0;
+            int blocks = 0;
+            for (int start = 0; start < input.length; blocks++) {
+                int end = blockEnd(input, start, blockBytes);
+                deflater.reset();
+                deflater.setInput(input, start, end - start);
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(compressed, 0, compressed.length);
+                    out.write(compressed, 0, count);
+                    compressedLength += count;
+                }
+                indexOut.writeLong(start);
+                indexOut.writeInt(end - start);
+                indexOut.writeLong(compressedOffset);
+                indexOut.writeInt(compressedLength);
+                indexOut.writeLong(line);
+                indexOut.writeLong(firstTime(input, start, end, year));
+                compressedOffset += compressedLength;
+                for (int i = start; i < end; i++) if (input[i] == '\n') line++;
+                start = end;
+            }
+            out.writeInt(blocks);
+            index.writeTo(out);
+            out.writeLong(compressedOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+        if (!temporary.renameTo(target)) {
+            temporary.delete();
+            throw new IOException("cannot rename " + temporary + " to " + target);
+        }
+    }
+
+    /** The end of the block starting at start: after the last newline within blockBytes, or the next one. */
+    private static int blockEnd(byte[] input, int start, int blockBytes) {
+        int limit = (int) Math.min(input.length, (long) start + blockBytes);
+        if (limit == input.length) return limit;
+        for (int i = limit - 1; i >= start; i--) if (input[i] == '\n') return i + 1;
+        for (int i = limit; i < input.length; i++) if (input[i] == '\n') return i + 1;
+        return input.length;
+    }
+
+    /** The time of the first line of a block carrying one in threadtime format, or -1. */
+    private static long firstTime(byte[] input, int start, int end, int year) {
+        Calendar calendar = Calendar.getInstance();
+        int lineStart = start;
+        while (lineStart < end) {
+            long time = parseThreadtime(input, lineStart, end, year, calendar);
+            if (time >= 0) return time;
+            while (lineStart < end && input[lineStart++] != '\n') ;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the "MM-DD HH:MM:SS.mmm" prefix logcat writes in threadtime format, in local time.
+     *
+     * @return the time in milliseconds, or -1 if the line does not start with one
+     */
+    static long parseThreadtime(byte[] line, int offset, int end, int year, Calendar calendar) {
+        if (!isThreadtime(line, offset, end)) return -1;
+        calendar.clear();
+        calendar.set(
+            year, digits(line, offset, 2) - 1, digits(line, offset + 3, 2),
+            digits(line, offset + 6, 2), digits(line, offset + 9, 2), digits(line, offset + 12, 2)
+        );
+        calendar.set(Calendar.MILLISECOND, digits(line, offset + 15, 3));
+        return calendar.getTimeInMillis();
+    }
+
+    /** Whether the line starts with the "MM-DD HH:MM:SS.mmm" prefix of threadtime format. */
+    static boolean isThreadtime(byte[] line, int offset, int end) {
+        // "MM-DD HH:MM:SS.mmm" is 18 bytes.
+        if (end - offset < 18) return false;
+        final String pattern = "00-00 00:00:00.000";
+        for (int i = 0; i < 18; i++) {
+            byte b = line[offset + i];
+            char expected = pattern.charAt(i);
+            if (expected == '0' ? b < '0' || b > '9' : b != expected) return false;
+        }
+        return true;
+    }
+
+    static int digits(byte[] line, int offset, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) value = value * 10 + (line[offset + i] - '0');
+        return value;
+    }
+
+    /** Lines before the last block plus the lines in it, inflating only the last block. */
+    private long readLineCount(int count) throws IOException {
+        byte[] last = readBlock(count - 1);
+        long lines = mFirstLines[count - 1];
+        for (byte b : last) if (b == '\n') lines++;
+        if (last.length > 0 && last[last.length - 1] != '\n') lines++;
+        return lines;
+    }
+
+    public int getBlockCount() {
+        return mOffsets.length;
+    }
+
+    /** The size of the segment before compression. */
+    public long getUncompressedLength() {
+        int last = mOffsets.length - 1;
+        return last < 0 ? 0 : mOffsets[last] + mLengths[last];
+    }
+
+    /** The number of lines, a last line without a newline included. */
+    public long getLineCount() {
+        return mLineCount;
+    }
+
+    /** The uncompressed offset of a block. */
+    public long getBlockOffset(int block) {
+        return mOffsets[block];
+    }
+
+    /** The uncompressed length of a block. */
+    public int getBlockLength(int block) {
+        return mLengths[block];
+    }
+
+    /** The number of the first line starting in a block. */
+    public long getBlockFirstLine(int block) {
+        return mFirstLines[block];
+    }
+
+    /** The time of the first timestamped line in a block, or -1 if it has none. */
+    public long getBlockFirstTime(int block) {
+        return mFirstTimes[block];
+    }
+
+    /** The block holding the given uncompressed offset, or -1 if it is past the end. */
+    public int findBlockByOffset(long offset) {
+        if (offset < 0 || offset >= getUncompressedLength()) return -1;
+        return floor(mOffsets, offset);
+    }
+
+    /** The block holding the given line, or -1 if there is no such line. */
+    public int findBlockByLine(long line) {
+        if (line < 0 || line >= mLineCount) return -1;
+        return floor(mFirstLines, line);
+    }
+
+    /**
+     * The last block whose first timestamped line is at or before time, so that lines at time are in it or after
+     * it. Blocks without a timestamp are skipped. Returns 0 if every block starts later, -1 if there are no blocks.
+     */
+    public int findBlockByTime(long time) {
+        int found = mOffsets.length == 0 ? -1 : 0;
+        for (int i = 0; i < mFirstTimes.length; i++) {
+            if (mFirstTimes[i] < 0) continue;
+            if (mFirstTimes[i] > time) break;
+            found = i;
+        }
+        return found;
+    }
+
+    /** Inflate a single block. */
+    public synchronized byte[] readBlock(int block) throws IOException {
+        byte[] compressed = new byte[mCompressedLengths[block]];
+        mFile.seek(mCompressedOffsets[block]);
+        mFile.readFully(compressed);
+        byte[] output = new byte[mLengths[block]];
+        mInflater.reset();
+        mInflater.setInput(compressed);
+        try {
+            int inflated = 0;
+            while (inflated < output.length) {
+                int count = mInflater.inflate(output, inflated, output.length - inflated);
+                if (count == 0 && (mInflater.finished() || mInflater.needsInput())) break;
+                inflated += count;
+            }
+            if (inflated != output.length) throw new IOException("block " + block + " is truncated");
+        } catch (DataFormatException e) {
+            throw new IOException("block " + block + " is corrupt", e);
+        }
+        return output;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mInflater.end();
+        mFile.close();
+    }
+
+    /** The index of the last element of a sorted array at or below value. */
+    private static int floor(long[] sorted, long value) {
+        int low = 0, high = sorted.length - 1, found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] <= value) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+}
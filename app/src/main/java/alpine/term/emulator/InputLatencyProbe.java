@@ -0,0 +1,107 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long input takes from {@link TerminalSession#write(byte[], int, int)} to the pseudo-terminal,
+ * for input written directly and for input that went through the queue.
+ * <p>
+ * Latencies are kept in power of two buckets of nanoseconds, so percentiles are upper bounds within a factor
+ * of two, which is enough to compare typing latency between releases.
+ */
+public final class InputLatencyProbe {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mDirectCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private volatile long mLastNanos;
+
+    /** Record one write that reached the pseudo-terminal latencyNanos after it was requested. */
+    void record(long latencyNanos, boolean direct) {
+        if (latencyNanos < 0) latencyNanos = 0;
+        // Bucket b holds latencies of b significant bits, that is up to 2^b - 1.
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(latencyNanos));
+        mCount.incrementAndGet();
+        if (direct) mDirectCount.incrementAndGet();
+        mTotalNanos.addAndGet(latencyNanos);
+        long max;
+        while ((max = mMaxNanos.get()) < latencyNanos && !mMaxNanos.compareAndSet(max, latencyNanos)) ;
+        mLastNanos = latencyNanos;
+    }
+
+    /** The number of writes recorded. */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** The number of writes that went straight to the pseudo-terminal instead of through the queue. */
+    public long getDirectCount() {
+        return mDirectCount.get();
+    }
+
+    public long getLastNanos() {
+        return mLastNanos;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /** The mean latency, 0 if nothing has been recorded. */
+    public long getMeanNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / count;
+    }
+
+    /**
+     * An upper bound of the given percentile, within a factor of two.
+     *
+     * @param percentile between 0 and 100
+     * @return the bound in nanoseconds, 0 if nothing has been recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mBuckets.get(bucket);
+            if (seen >= Math.max(rank, 1)) return (1L << bucket) - 1;
+        }
+        return getMaxNanos();
+    }
+
+    @Override
+    public String toString() {
+        return "input writes: " + getCount() + " (" + getDirectCount() + " direct), latency mean " +
+            getMeanNanos() / 1000 + "us, p99 <= " + getPercentileNanos(99) / 1000 + "us, max " +
+            getMaxNanos() / 1000 + "us";
+    }
+}
@@ -22,6 +22,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
+import java.nio.ByteBuffer;
+
 import alpine.term.LogUtils;
 
 /**
@@ -61,9 +63,110 @@ public final class JNI {
      */
     public static native int waitFor(int processId);
 
+    /**
+     * Find a child that has exited through waitid(2) with WNOWAIT, leaving it to be waited for.
+     *
+     * @param pid the child to check, or -1 for any child
+     * @param block whether to wait until a child exits
+     * @return the pid of an exited child, 0 if none has exited and block is false, -1 on error, such as when
+     * there is no such child
+     */
+    public static native int peekExitedChild(int pid, boolean block);
+
     /** Close a file descriptor through the close(2) system call. */
     public static native void close(int fileDescriptor);
 
+    /**
+     * Create a non-blocking, close-on-exec pipe used to interrupt {@link #pollRead(int, int, byte[], int)}.
+     *
+     * @return a two-element array holding the read end and the write end of the pipe.
+     */
+    public static native int[] createWakeupPipe();
+
+    /** Write a single byte to the write end of a wakeup pipe created by {@link #createWakeupPipe()}. */
+    public static native void wakeup(int wakeupFd);
+
+    /**
+     * Block in poll(2) until either fd is readable or wakeupFd has been written to, then read once from fd.
+     *
+     * @param fd            the file descriptor to read from
+     * @param wakeupFd      the read end of a wakeup pipe, or -1 to only wait on fd
+     * @param buffer        the buffer to read into, at most 8192 bytes are read per call
+     * @param timeoutMillis the poll(2) timeout, -1 to wait forever
+     * @return the number of bytes read, 0 on timeout or when poll(2) or read(2) should be retried, -1 on end of file
+     * or error, -2 if woken through wakeupFd. End of file is a read of 0 bytes, or a hang up with nothing left
+     * to read
+     */
+    public static native int pollRead(int fd, int wakeupFd, byte[] buffer, int timeoutMillis);
+
+    /**
+     * Like {@link #pollRead(int, int, byte[], int)}, but reading straight into a direct buffer, and reading again
+     * while more output is buffered, so that a burst of output takes a single call. The position and limit of
+     * buffer are left alone.
+     *
+     * @param buffer        a direct buffer
+     * @param offset        where in buffer to start writing
+     * @param length        the most bytes to read
+     * @param timeoutMillis the poll(2) timeout, -1 to wait forever. With 0 and no wakeupFd, fd is read without
+     *                      polling, for non-blocking file descriptors known to be readable
+     * @return the number of bytes read, 0 on timeout or if nothing is available yet, -1 on end of file or error,
+     * -2 if woken through wakeupFd
+     */
+    public static native int readInto(int fd, int wakeupFd, ByteBuffer buffer, int offset, int length, int timeoutMillis);
+
+    /** Create an epoll(7) instance, see {@link TerminalIOLoop}. */
+    public static native int epollCreate();
+
+    /**
+     * Add, modify or remove fd through epoll_ctl(2).
+     *
+     * @param op     one of the EPOLL_CTL_* constants in {@link TerminalIOLoop}
+     * @param events a mask of the EPOLL* event constants in {@link TerminalIOLoop}
+     * @return 0 on success, otherwise the negated errno
+     */
+    public static native int epollCtl(int epfd, int op, int fd, int events);
+
+    /**
+     * Wait for events through epoll_wait(2), at most 64 or fds.length events are returned.
+     *
+     * @param fds    filled with the ready file descriptors
+     * @param events filled with the event mask of each ready file descriptor
+     * @return the number of ready file descriptors, 0 on timeout or -1 on error
+     */
+    public static native int epollWait(int epfd, int[] fds, int[] events, int timeoutMillis);
+
+    /** Set or clear O_NONBLOCK on fd. */
+    public static native void setNonBlocking(int fd, boolean nonBlocking);
+
+    /**
+     * Read once from fd, at most length and at most 8192 bytes.
+     *
+     * @return the number of bytes read, 0 if fd is non-blocking and nothing is available, -1 on end of file or error
+     */
+    public static native int read(int fd, byte[] buffer, int length);
+
+    /**
+     * Write once to fd, at most 8192 bytes.
+     *
+     * @return the number of bytes written, 0 if fd is non-blocking and full, -1 on error
+     */
+    public static native int write(int fd, byte[] buffer, int offset, int length);
+
+    /**
+     * Write once to fd without blocking, at most 8192 bytes, whether or not fd is non-blocking.
+     *
+     * @return the number of bytes written, 0 if fd is full, -1 on error
+     */
+    public static native int writeNonBlocking(int fd, byte[] buffer, int offset, int length);
+
+    /**
+     * Open a pidfd for the process through pidfd_open(2), which becomes readable once it exits, see
+     * {@link ProcessReaper}. Requires Linux 5.3.
+     *
+     * @return the close-on-exec pidfd, or -1 on error
+     */
+    public static native int openPidFd(int pid);
+
     public static native void test_puts();
     public static native void puts(String fmt);
 
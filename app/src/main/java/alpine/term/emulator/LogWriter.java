@@ -0,0 +1,312 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alpine.term.LogUtils;
+
+/**
+ * Persists session output to a {@link Target}, such as a {@link SegmentedLogStore}, from a background thread, so
+ * that reader threads never wait for the disk.
+ * <p>
+ * Appended bytes are buffered, up to a limit past which they are dropped and counted, and written out by the
+ * writer thread. The limit covers the bytes the writer thread has taken and not yet written as well. How often
+ * written bytes are synced to storage is chosen through {@link Durability}.
+ */
+public final class LogWriter {
+
+    LogUtils logUtils = new LogUtils("Log Writer");
+
+    /** When written bytes are synced to storage. */
+    public enum Durability {
+        /** Never sync, leave it to the kernel. */
+        NONE,
+        /** Sync once enough bytes or enough time have accumulated since the last sync. */
+        GROUP_COMMIT,
+        /** Sync after every complete line. */
+        PER_LINE
+    }
+
+    /** Where the writer thread puts the bytes, only ever called from that thread. */
+    public interface Target {
+        void write(byte[] buffer, int offset, int length) throws IOException;
+
+        /** Sync everything written so far to storage. */
+        void sync() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final Target mTarget;
+    private final Durability mDurability;
+    private final long mCommitIntervalMillis;
+    private final int mCommitBytes;
+    private final int mBufferLimit;
+    private final Thread mThread;
+
+    private final Object mLock = new Object();
+    /** Bytes appended but not yet taken by the writer thread, guarded by {@link #mLock}. */
+    private byte[] mPending = new byte[4096];
+    private int mPendingLength;
+    /** Bytes taken by the writer thread and not yet written, guarded by {@link #mLock}. */
+    private int mWritingLength;
+    private long mAppendedBytes;
+    /** Of the bytes ever appended, how many are synced, or written when the durability is {@link Durability#NONE}. */
+    private long mSyncedBytes;
+    private boolean mFlushRequested;
+    private boolean mClosing;
+    private boolean mClosed;
+
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mFsyncs = new AtomicLong();
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    private long mRateSampleFsyncs;
+    private long mRateSampleTime = System.nanoTime();
+
+    /**
+     * @param name                 names the writer thread
+     * @param commitIntervalMillis for {@link Durability#GROUP_COMMIT}, the longest time written bytes stay unsynced
+     * @param commitBytes          for {@link Durability#GROUP_COMMIT}, the number of unsynced bytes forcing a sync
+     * @param bufferLimit          the most bytes buffered in memory, more are dropped
+     */
+    public LogWriter(Target target, String name, Durability durability, long commitIntervalMillis, int commitBytes, int bufferLimit) {
+        mTarget = target;
+        mDurability = durability;
+        mCommitIntervalMillis = commitIntervalMillis;
+        mCommitBytes = commitBytes;
+        mBufferLimit = bufferLimit;
+        mThread = new Thread("LogWriter [" + name + "]") {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        };
+        mThread.start();
+    }
+
+    /** Queue bytes to be written. Never blocks on the disk, drops bytes that do not fit in the buffer limit. */
+    public void append(byte[] buffer, int offset, int length) {
+        append(buffer, null, offset, length);
+    }
+
+    /** Like {@link #append(byte[], int, int)}, leaving the position and limit of buffer alone. */
+    public void append(ByteBuffer buffer, int offset, int length) {
+        append(null, buffer, offset, length);
+    }
+
+    private void append(byte[] array, ByteBuffer buffer, int offset, int length) {
+        synchronized (mLock) {
+            if (mClosing) return;
+            int room = mBufferLimit - mPendingLength - mWritingLength;
+            if (length > room) {
+                mDroppedBytes.addAndGet(length - room);
+                length = room;
+                if (length <= 0) return;
+            }
+            if (mPendingLength + length > mPending.length) {
+                mPending = Arrays.copyOf(mPending, Math.min(mBufferLimit, Math.max(mPending.length * 2, mPendingLength + length)));
+            }
+            if (array != null) {
+                System.arraycopy(array, offset, mPending, mPendingLength, length);
+            } else {
+                ByteBuffer source = buffer.duplicate();
+                source.position(offset);
+                source.get(mPending, mPendingLength, length);
+            }
+            boolean wasEmpty = mPendingLength == 0;
+            mPendingLength += length;
+            mAppendedBytes += length;
+            if (wasEmpty) mLock.notifyAll();
+        }
+    }
+
+    /** Block until everything appended so far is written, and synced unless the durability is {@link Durability#NONE}. */
+    public void flush() throws InterruptedException {
+        synchronized (mLock) {
+            final long target = mAppendedBytes;
+            // Bytes written before the request may still be unsynced, so ask again until they are synced too.
+            while (mSyncedBytes < target && !mClosed) {
+                mFlushRequested = true;
+                mLock.notifyAll();
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting bytes. The writer thread writes out what is still buffered, syncs unless the durability is
+     * {@link Durability#NONE}, and closes the target. Does not wait for that, see {@link #awaitClosed(long)}.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosing = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Wait for the writer thread to finish after {@link #close()}, returns true if it did. */
+    public boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+        mThread.join(timeoutMillis);
+        return !mThread.isAlive();
+    }
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+    /** The number of bytes written to the target. */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /** The number of times the target has been synced. */
+    public long getFsyncs() {
+        return mFsyncs.get();
+    }
+
+    /** The number of bytes dropped because the buffer limit was reached. */
+    public long getDroppedBytes() {
+        return mDroppedBytes.get();
+    }
+
+    /** The number of syncs per second since the previous call. */
+    public synchronized double getFsyncsPerSecond() {
+        long now = System.nanoTime();
+        long fsyncs = mFsyncs.get();
+        double seconds = (now - mRateSampleTime) / 1e9;
+        double rate = seconds <= 0 ? 0 : (fsyncs - mRateSampleFsyncs) / seconds;
+        mRateSampleTime = now;
+        mRateSampleFsyncs = fsyncs;
+        return rate;
+    }
+
+    private void runWriter() {
+        byte[] batch = new byte[4096];
+        long unsyncedBytes = 0;
+        long lastSync = System.currentTimeMillis();
+        try {
+            while (true) {
+                int length;
+                boolean closing;
+                boolean flushRequested;
+                long appended;
+                synchronized (mLock) {
+                    while (mPendingLength == 0 && !mClosing && !mFlushRequested) {
+                        if (mDurability == Durability.GROUP_COMMIT && unsyncedBytes > 0) {
+                            long wait = lastSync + mCommitIntervalMillis - System.currentTimeMillis();
+                            if (wait <= 0) break;
+                            mLock.wait(wait);
+                        } else {
+                            mLock.wait();
+                        }
+                    }
+                    byte[] swap = mPending;
+                    mPending = batch.length >= swap.length ? batch : new byte[swap.length];
+                    batch = swap;
+                    length = mPendingLength;
+                    mPendingLength = 0;
+                    mWritingLength = length;
+                    closing = mClosing;
+                    flushRequested = mFlushRequested;
+                    mFlushRequested = false;
+                    appended = mAppendedBytes;
+                }
+
+                if (mDurability == Durability.PER_LINE) {
+                    int start = 0;
+                    for (int i = 0; i < length; i++) {
+                        if (batch[i] == '\n') {
+                            write(batch, start, i + 1 - start);
+                            sync();
+                            unsyncedBytes = 0;
+                            start = i + 1;
+                        }
+                    }
+                    write(batch, start, length - start);
+                    unsyncedBytes += length - start;
+                } else {
+                    write(batch, 0, length);
+                    unsyncedBytes += length;
+                }
+
+                boolean syncNow = false;
+                if (mDurability != Durability.NONE && unsyncedBytes > 0) {
+                    if (closing || flushRequested) {
+                        syncNow = true;
+                    } else if (mDurability == Durability.GROUP_COMMIT) {
+                        syncNow = unsyncedBytes >= mCommitBytes ||
+                            System.currentTimeMillis() - lastSync >= mCommitIntervalMillis;
+                    }
+                }
+                if (syncNow) {
+                    sync();
+                    unsyncedBytes = 0;
+                    lastSync = System.currentTimeMillis();
+                }
+
+                synchronized (mLock) {
+                    mWritingLength = 0;
+                    if (mDurability == Durability.NONE || unsyncedBytes == 0) mSyncedBytes = appended;
+                    mLock.notifyAll();
+                    if (closing && mPendingLength == 0) break;
+                }
+            }
+        } catch (InterruptedException e) {
+            logUtils.log_Warning("interrupted, closing");
+        } finally {
+            try {
+                mTarget.close();
+            } catch (IOException e) {
+                logUtils.log_Error("close failed", e);
+            }
+            synchronized (mLock) {
+                mClosing = true;
+                mClosed = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private void write(byte[] buffer, int offset, int length) {
+        if (length <= 0) return;
+        try {
+            mTarget.write(buffer, offset, length);
+            mBytesWritten.addAndGet(length);
+        } catch (IOException e) {
+            logUtils.log_Error("write failed", e);
+        }
+    }
+
+    private void sync() {
+        try {
+            mTarget.sync();
+            mFsyncs.incrementAndGet();
+        } catch (IOException e) {
+            logUtils.log_Error("sync failed", e);
+        }
+    }
+}
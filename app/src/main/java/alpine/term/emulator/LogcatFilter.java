@@ -0,0 +1,128 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import alpine.term.LogUtils;
+
+/**
+ * What a {@link LogcatFilterEngine} lets through: records at or above a level, with a tag in the included tags if
+ * any are given and not in the excluded tags, from a pid and tid if given, with a message containing a string if
+ * given. Lines that are not records only get through when nothing but the message is filtered on.
+ * <p>
+ * Setters return the filter so that they can be chained. A filter is copied when it is handed to the engine.
+ */
+public final class LogcatFilter {
+
+    LogUtils logUtils = new LogUtils("Logcat Filter");
+
+    /** Levels from lowest to highest. */
+    public static final String LEVELS = "VDIWEFA";
+
+    char mMinLevel = 'V';
+    final Set<String> mIncludedTags = new HashSet<>();
+    final Set<String> mExcludedTags = new HashSet<>();
+    int mPid = -1;
+    int mTid = -1;
+    String mMessage = "";
+
+    public LogcatFilter() {
+    }
+
+    public LogcatFilter(LogcatFilter other) {
+        mMinLevel = other.mMinLevel;
+        mIncludedTags.addAll(other.mIncludedTags);
+        mExcludedTags.addAll(other.mExcludedTags);
+        mPid = other.mPid;
+        mTid = other.mTid;
+        mMessage = other.mMessage;
+    }
+
+    /** Only let through records at this level, one of "VDIWEFA", or above. */
+    public LogcatFilter setMinLevel(char level) {
+        if (LEVELS.indexOf(level) < 0) throw new IllegalArgumentException("level " + level);
+        mMinLevel = level;
+        return this;
+    }
+
+    /** Only let through records with one of the included tags, once any is included. */
+    public LogcatFilter includeTag(String tag) {
+        mIncludedTags.add(tag);
+        return this;
+    }
+
+    public LogcatFilter excludeTag(String tag) {
+        mExcludedTags.add(tag);
+        return this;
+    }
+
+    /** Only let through records of this pid, -1 for any. */
+    public LogcatFilter setPid(int pid) {
+        mPid = pid;
+        return this;
+    }
+
+    /** Only let through records of this tid, -1 for any. */
+    public LogcatFilter setTid(int tid) {
+        mTid = tid;
+        return this;
+    }
+
+    /** Only let through lines whose message contains this, case sensitively, "" for any. */
+    public LogcatFilter setMessageContains(String message) {
+        mMessage = message == null ? "" : message;
+        return this;
+    }
+
+    public char getMinLevel() {
+        return mMinLevel;
+    }
+
+    public Set<String> getIncludedTags() {
+        return Collections.unmodifiableSet(mIncludedTags);
+    }
+
+    public Set<String> getExcludedTags() {
+        return Collections.unmodifiableSet(mExcludedTags);
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    public int getTid() {
+        return mTid;
+    }
+
+    public String getMessageContains() {
+        return mMessage;
+    }
+
+    /** Whether lines that are not records can get through, see the class comment. */
+    boolean passesNonRecords() {
+        return mMinLevel == 'V' && mIncludedTags.isEmpty() && mPid < 0 && mTid < 0;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.Arrays;
+
+import alpine.term.LogUtils;
+
+/**
+ * Keeps the index of the records of a {@link LogcatRecordStore} that pass a {@link LogcatFilter}, so that a view
+ * can show the filtered log row by row.
+ * <p>
+ * Records are evaluated 64 at a time into a word of match bits, one filter column at a time: level, then tag,
+ * pid and tid, each a tight loop over that column of the store, skipped for the rest of the word once no bit is
+ * left. Only records still matching have their message searched. Changing the filter re-evaluates every record
+ * kept this way, and {@link #update()} evaluates only records added since the last call and drops evicted ones.
+ * <p>
+ * Not thread safe, use an engine from one thread. The store may be appended to from another thread meanwhile.
+ */
+public final class LogcatFilterEngine {
+
+    LogUtils logUtils = new LogUtils("Logcat Filter Engine");
+
+    /** Rank of each level letter, 0 for {@link LogcatRecordStore#LEVEL_NONE}. */
+    private static final byte[] LEVEL_RANKS = new byte[128];
+
+    static {
+        for (int i = 0; i < LogcatFilter.LEVELS.length(); i++) LEVEL_RANKS[LogcatFilter.LEVELS.charAt(i)] = (byte) (i + 1);
+    }
+
+    private final LogcatRecordStore mStore;
+    private LogcatFilter mFilter = new LogcatFilter();
+
+    private int mMinRank;
+    private boolean mFilterTags;
+    /** Whether each tag id passes the tag filter, extended as new tags show up. */
+    private boolean[] mTagPasses = new boolean[0];
+    private int mTagsResolved;
+    private char[] mMessage;
+
+    /** Sequence numbers of matching records, from mMatchesStart to mMatchesEnd. */
+    private long[] mMatches = new long[1024];
+    private int mMatchesStart, mMatchesEnd;
+    /** The sequence number of the next record to evaluate. */
+    private long mEvaluated;
+
+    private long mLastEvaluationNanos;
+
+    public LogcatFilterEngine(LogcatRecordStore store) {
+        mStore = store;
+        setFilter(mFilter);
+    }
+
+    /** Filter on a copy of filter from now on, re-evaluating every record kept. */
+    public void setFilter(LogcatFilter filter) {
+        mFilter = new LogcatFilter(filter);
+        mMinRank = LEVEL_RANKS[mFilter.mMinLevel];
+        mFilterTags = !mFilter.mIncludedTags.isEmpty() || !mFilter.mExcludedTags.isEmpty();
+        mTagsResolved = 0;
+        mMessage = mFilter.mMessage.isEmpty() ? null : mFilter.mMessage.toCharArray();
+        mMatchesStart = mMatchesEnd = 0;
+        synchronized (mStore) {
+            mEvaluated = mStore.mFirst;
+            evaluate();
+        }
+    }
+
+    /** A copy of the filter in use. */
+    public LogcatFilter getFilter() {
+        return new LogcatFilter(mFilter);
+    }
+
+    /**
+     * Evaluate the records added to the store since the last call, and drop evicted records from the index.
+     *
+     * @return the number of matching records added to the index
+     */
+    public int update() {
+        final int before = mMatchesEnd;
+        synchronized (mStore) {
+            final long first = mStore.mFirst;
+            while (mMatchesStart < mMatchesEnd && mMatches[mMatchesStart] < first) mMatchesStart++;
+            if (mEvaluated < first) mEvaluated = first;
+            evaluate();
+        }
+        return mMatchesEnd - before;
+    }
+
+    /** The number of matching records in the index. */
+    public int getMatchCount() {
+        return mMatchesEnd - mMatchesStart;
+    }
+
+    /** The sequence number of the index-th matching record, oldest first. */
+    public long getMatch(int index) {
+        if (index < 0 || index >= getMatchCount()) throw new IndexOutOfBoundsException("index=" + index + ", count=" + getMatchCount());
+        return mMatches[mMatchesStart + index];
+    }
+
+    /** How long the last {@link #setFilter(LogcatFilter)} or {@link #update()} took. */
+    public long getLastEvaluationNanos() {
+        return mLastEvaluationNanos;
+    }
+
+    /** Evaluate records from mEvaluated up to the end of the store, with the lock on the store held. */
+    private void evaluate() {
+        final long startNanos = System.nanoTime();
+        final long end = mStore.mNext;
+        if (mFilterTags) resolveTags();
+        final boolean nonRecords = mFilter.passesNonRecords();
+        final int mask = mStore.mMask;
+        final byte[] levels = mStore.mLevels;
+        final int[] tags = mStore.mTags;
+        final int[] pids = mStore.mPids;
+        final int[] tids = mStore.mTids;
+        final int pid = mFilter.mPid, tid = mFilter.mTid, minRank = mMinRank;
+
+        for (long base = mEvaluated; base < end; base += 64) {
+            final int count = (int) Math.min(64, end - base);
+            long bits = count == 64 ? -1L : (1L << count) - 1;
+
+            long passing = 0;
+            for (int i = 0; i < count; i++) {
+                final int rank = LEVEL_RANKS[levels[(int) ((base + i) & mask)]];
+                // Records at or above the level, and lines that are not records when nothing else is filtered on.
+                if (rank >= minRank || (rank == 0 && nonRecords)) passing |= 1L << i;
+            }
+            bits &= passing;
+
+            if (bits != 0 && mFilterTags) {
+                passing = 0;
+                final boolean[] tagPasses = mTagPasses;
+                for (int i = 0; i < count; i++) {
+                    final int tag = tags[(int) ((base + i) & mask)];
+                    if (tag < 0 ? nonRecords : tagPasses[tag]) passing |= 1L << i;
+                }
+                bits &= passing;
+            }
+            if (bits != 0 && pid >= 0) {
+                passing = 0;
+                for (int i = 0; i < count; i++) if (pids[(int) ((base + i) & mask)] == pid) passing |= 1L << i;
+                bits &= passing;
+            }
+            if (bits != 0 && tid >= 0) {
+                passing = 0;
+                for (int i = 0; i < count; i++) if (tids[(int) ((base + i) & mask)] == tid) passing |= 1L << i;
+                bits &= passing;
+            }
+
+            while (bits != 0) {
+                final int i = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (mMessage == null || mStore.messageContains(base + i, mMessage)) addMatch(base + i);
+            }
+        }
+        mEvaluated = end;
+        mLastEvaluationNanos = System.nanoTime() - startNanos;
+    }
+
+    /** Work out whether tags first seen since the last call pass the tag filter. */
+    private void resolveTags() {
+        final int tagCount = mStore.getTagCount();
+        if (mTagsResolved == tagCount) return;
+        if (mTagPasses.length < tagCount) mTagPasses = Arrays.copyOf(mTagPasses, Math.max(tagCount, mTagPasses.length * 2));
+        for (int id = mTagsResolved; id < tagCount; id++) {
+            final String tag = mStore.getTag(id);
+            mTagPasses[id] = (mFilter.mIncludedTags.isEmpty() || mFilter.mIncludedTags.contains(tag)) && !mFilter.mExcludedTags.contains(tag);
+        }
+        mTagsResolved = tagCount;
+    }
+
+    private void addMatch(long sequence) {
+        if (mMatchesEnd == mMatches.length) {
+            final int count = mMatchesEnd - mMatchesStart;
+            if (count * 2 > mMatches.length) mMatches = Arrays.copyOf(mMatches, mMatches.length * 2);
+            System.arraycopy(mMatches, mMatchesStart, mMatches, 0, count);
+            mMatchesStart = 0;
+            mMatchesEnd = count;
+        }
+        mMatches[mMatchesEnd++] = sequence;
+    }
+}
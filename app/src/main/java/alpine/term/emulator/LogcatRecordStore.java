@@ -0,0 +1,451 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import alpine.term.LogUtils;
+
+/**
+ * Logcat output in threadtime format ("MM-DD HH:MM:SS.mmm  PID  TID L TAG: message"), parsed line by line into
+ * records kept in primitive columns instead of one object per line: times in a long[], pids and tids in int[]s,
+ * levels in a byte[], tags as ids into a table interning each tag once, and messages in one shared char arena.
+ * <p>
+ * Records are numbered by a sequence that keeps counting as the oldest records are evicted, once either the
+ * record capacity or the arena is full, so a sequence number keeps referring to the same record for as long as
+ * it is kept. Lines that are not records, such as "--------- beginning of main", are kept as records with level
+ * {@link #LEVEL_NONE} and the whole line as message. Color escapes written by "logcat -v color" are skipped.
+ * <p>
+ * The columns and the arena start small and double as records come in, up to the capacities given, so a store only
+ * takes as much memory as the log it holds.
+ * <p>
+ * Output is fed in arbitrary chunks, a line split across chunks is kept until it is complete. All methods are
+ * synchronized, hold the lock on the store to read many records at once.
+ */
+public final class LogcatRecordStore {
+
+    LogUtils logUtils = new LogUtils("Logcat Record Store");
+
+    /** The level of a line that is not a threadtime record. */
+    public static final byte LEVEL_NONE = 0;
+
+    /** The tag id of a line that is not a threadtime record. */
+    public static final int NO_TAG = -1;
+
+    private static final String LEVELS = "VDIWEFA";
+
+    /** The longest line taken whole, longer lines are cut. */
+    private static final int MAX_LINE_BYTES = 16 * 1024;
+
+    /** The records and message chars a store starts with, before it grows. */
+    private static final int INITIAL_RECORDS = 1024;
+    private static final int INITIAL_ARENA_CHARS = 64 * 1024;
+
+    /** The most records and message chars kept, the columns and the arena grow up to these. */
+    private final int mRecordCapacity;
+    private final int mArenaCapacity;
+
+    // The columns are read directly by LogcatFilterEngine, with the lock on the store held, and replaced as they grow.
+    int mMask;
+    long[] mTimes;
+    int[] mPids;
+    int[] mTids;
+    byte[] mLevels;
+    int[] mTags;
+    /** Where each message starts in the arena, counted since the store was created. */
+    private long[] mMessageStarts;
+    private int[] mMessageLengths;
+
+    private char[] mArena;
+    private long mArenaEnd;
+
+    /** The sequence numbers of the oldest record kept and of the next record. */
+    long mFirst, mNext;
+
+    private String[] mTagNames = new String[64];
+    private byte[][] mTagBytes = new byte[64][];
+    private int mTagCount;
+    /** Open addressing table of tag id + 1 by hash of the tag bytes, 0 for a free slot. */
+    private int[] mTagTable = new int[128];
+
+    /** The start of a line not yet terminated by a newline, and a line with color escapes removed. */
+    private final byte[] mLine = new byte[MAX_LINE_BYTES];
+    private int mLineLength;
+    private final byte[] mStripped = new byte[MAX_LINE_BYTES];
+    /** Chunks fed through a buffer are copied here first. */
+    private byte[] mChunk;
+
+    /** Threadtime has no year, times are taken to be in this one. */
+    private final int mYear;
+    private final Calendar mCalendar = Calendar.getInstance();
+    /** "MM-DD HH" of the last line as a number, and the time of the start of that hour. */
+    private int mCachedHour = -1;
+    private long mCachedHourStart;
+
+    /**
+     * @param recordCapacity the most records kept, rounded up to a power of two
+     * @param arenaChars     the most message chars kept
+     */
+    public LogcatRecordStore(int recordCapacity, int arenaChars) {
+        if (recordCapacity <= 0 || arenaChars <= 0) throw new IllegalArgumentException("capacity <= 0");
+        mRecordCapacity = Integer.highestOneBit(recordCapacity) == recordCapacity ? recordCapacity : Integer.highestOneBit(recordCapacity) << 1;
+        mArenaCapacity = arenaChars;
+        allocateColumns(Math.min(INITIAL_RECORDS, mRecordCapacity));
+        mArena = new char[Math.min(INITIAL_ARENA_CHARS, mArenaCapacity)];
+        mYear = mCalendar.get(Calendar.YEAR);
+    }
+
+    private void allocateColumns(int capacity) {
+        mMask = capacity - 1;
+        mTimes = new long[capacity];
+        mPids = new int[capacity];
+        mTids = new int[capacity];
+        mLevels = new byte[capacity];
+        mTags = new int[capacity];
+        mMessageStarts = new long[capacity];
+        mMessageLengths = new int[capacity];
+    }
+
+    /** Double the columns, moving each record kept to its slot in the larger ones. */
+    private void growColumns() {
+        final int oldMask = mMask;
+        final long[] times = mTimes;
+        final int[] pids = mPids;
+        final int[] tids = mTids;
+        final byte[] levels = mLevels;
+        final int[] tags = mTags;
+        final long[] messageStarts = mMessageStarts;
+        final int[] messageLengths = mMessageLengths;
+        allocateColumns((oldMask + 1) * 2);
+        for (long sequence = mFirst; sequence < mNext; sequence++) {
+            final int from = (int) (sequence & oldMask);
+            final int to = (int) (sequence & mMask);
+            mTimes[to] = times[from];
+            mPids[to] = pids[from];
+            mTids[to] = tids[from];
+            mLevels[to] = levels[from];
+            mTags[to] = tags[from];
+            mMessageStarts[to] = messageStarts[from];
+            mMessageLengths[to] = messageLengths[from];
+        }
+    }
+
+    /** Double the arena, up to its capacity, moving the chars of the messages kept from start on. */
+    private void growArena(long start) {
+        final char[] arena = mArena;
+        mArena = new char[(int) Math.min(mArenaCapacity, arena.length * 2L)];
+        for (long at = start; at < mArenaEnd; at++) {
+            mArena[(int) (at % mArena.length)] = arena[(int) (at % arena.length)];
+        }
+    }
+
+    /** Parse output, completing the line left over from the last call. */
+    public synchronized void append(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] != '\n') continue;
+            if (mLineLength > 0) {
+                appendPartial(buffer, lineStart, i);
+                addLine(mLine, 0, mLineLength);
+                mLineLength = 0;
+            } else {
+                addLine(buffer, lineStart, Math.min(i, lineStart + MAX_LINE_BYTES));
+            }
+            lineStart = i + 1;
+        }
+        appendPartial(buffer, lineStart, end);
+    }
+
+    /** Like {@link #append(byte[], int, int)}, for bytes in a buffer, leaving its position and limit alone. */
+    public synchronized void append(ByteBuffer buffer, int offset, int length) {
+        if (mChunk == null || mChunk.length < length) mChunk = new byte[Math.max(length, 4096)];
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length).position(offset);
+        view.get(mChunk, 0, length);
+        append(mChunk, 0, length);
+    }
+
+    private void appendPartial(byte[] buffer, int start, int end) {
+        final int count = Math.min(end - start, MAX_LINE_BYTES - mLineLength);
+        System.arraycopy(buffer, start, mLine, mLineLength, count);
+        mLineLength += count;
+    }
+
+    /** Parse one line, without its newline. */
+    private void addLine(byte[] line, int start, int end) {
+        if (end > start && line[end - 1] == '\r') end--;
+        for (int i = start; i < end; i++) {
+            if (line[i] == 27) {
+                end = stripEscapes(line, start, end);
+                line = mStripped;
+                start = 0;
+                break;
+            }
+        }
+
+        final int s = start;
+        if (CompressedSegment.isThreadtime(line, s, end)) {
+            // "MM-DD HH:MM:SS.mmm  PID  TID L TAG: message"
+            int i = skipSpaces(line, s + 18, end);
+            final int pidStart = i;
+            int pid = 0;
+            while (i < end && line[i] >= '0' && line[i] <= '9') pid = pid * 10 + (line[i++] - '0');
+            if (i > pidStart && i < end && line[i] == ' ') {
+                i = skipSpaces(line, i, end);
+                final int tidStart = i;
+                int tid = 0;
+                while (i < end && line[i] >= '0' && line[i] <= '9') tid = tid * 10 + (line[i++] - '0');
+                if (i > tidStart && i + 2 < end && line[i] == ' ' && LEVELS.indexOf(line[i + 1]) >= 0 && line[i + 2] == ' ') {
+                    final byte level = line[i + 1];
+                    final int tagStart = i + 3;
+                    int colon = tagStart;
+                    while (colon < end && !(line[colon] == ':' && (colon + 1 == end || line[colon + 1] == ' '))) colon++;
+                    if (colon < end) {
+                        int tagEnd = colon;
+                        while (tagEnd > tagStart && line[tagEnd - 1] == ' ') tagEnd--;
+                        final int messageStart = Math.min(colon + 2, end);
+                        addRecord(parseTime(line, s), pid, tid, level, internTag(line, tagStart, tagEnd), line, messageStart, end);
+                        return;
+                    }
+                }
+            }
+        }
+        addRecord(-1, -1, -1, LEVEL_NONE, NO_TAG, line, start, end);
+    }
+
+    private static int skipSpaces(byte[] line, int i, int end) {
+        while (i < end && line[i] == ' ') i++;
+        return i;
+    }
+
+    /** Copy the line to {@link #mStripped} without "ESC [ ... final byte" sequences, returning its new length. */
+    private int stripEscapes(byte[] line, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            final byte b = line[i];
+            if (b == 27 && i + 1 < end && line[i + 1] == '[') {
+                i += 2;
+                while (i < end && (line[i] < 0x40 || line[i] > 0x7E)) i++;
+            } else if (b != 27) {
+                mStripped[length++] = b;
+            }
+        }
+        return length;
+    }
+
+    /** The time of a line starting with a threadtime prefix, going through the calendar once per hour of log. */
+    private long parseTime(byte[] line, int start) {
+        final int hour = CompressedSegment.digits(line, start, 2) * 10000 + CompressedSegment.digits(line, start + 3, 2) * 100
+            + CompressedSegment.digits(line, start + 6, 2);
+        final long withinHour = CompressedSegment.digits(line, start + 9, 2) * 60_000L
+            + CompressedSegment.digits(line, start + 12, 2) * 1000L + CompressedSegment.digits(line, start + 15, 3);
+        if (hour != mCachedHour) {
+            mCachedHourStart = CompressedSegment.parseThreadtime(line, start, start + 18, mYear, mCalendar) - withinHour;
+            mCachedHour = hour;
+        }
+        return mCachedHourStart + withinHour;
+    }
+
+    private int internTag(byte[] line, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + line[i];
+        final int tableMask = mTagTable.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & tableMask;
+        while (mTagTable[slot] != 0) {
+            final int id = mTagTable[slot] - 1;
+            final byte[] bytes = mTagBytes[id];
+            if (bytes.length == end - start && regionEquals(bytes, line, start)) return id;
+            slot = (slot + 1) & tableMask;
+        }
+
+        final int id = mTagCount++;
+        if (id == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, id * 2);
+            mTagBytes = Arrays.copyOf(mTagBytes, id * 2);
+        }
+        mTagBytes[id] = Arrays.copyOfRange(line, start, end);
+        mTagNames[id] = new String(mTagBytes[id], StandardCharsets.UTF_8);
+        mTagTable[slot] = id + 1;
+        if (mTagCount * 2 > mTagTable.length) rehashTags();
+        return id;
+    }
+
+    private static boolean regionEquals(byte[] bytes, byte[] line, int start) {
+        for (int i = 0; i < bytes.length; i++) if (bytes[i] != line[start + i]) return false;
+        return true;
+    }
+
+    private void rehashTags() {
+        mTagTable = new int[mTagTable.length * 2];
+        final int tableMask = mTagTable.length - 1;
+        for (int id = 0; id < mTagCount; id++) {
+            int hash = 0;
+            for (byte b : mTagBytes[id]) hash = 31 * hash + b;
+            int slot = (hash ^ (hash >>> 16)) & tableMask;
+            while (mTagTable[slot] != 0) slot = (slot + 1) & tableMask;
+            mTagTable[slot] = id + 1;
+        }
+    }
+
+    private void addRecord(long time, int pid, int tid, byte level, int tag, byte[] line, int start, int end) {
+        // Decode the message first, it is at most as many chars as bytes.
+        int length = end - start;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            if (line[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        final String decoded = ascii ? null : new String(line, start, length, StandardCharsets.UTF_8);
+        if (!ascii) length = decoded.length();
+        length = Math.min(length, mArenaCapacity);
+
+        // Grow before evicting anything.
+        if (mNext - mFirst > mMask && mMask + 1 < mRecordCapacity) growColumns();
+        final long oldestStart = mFirst < mNext ? mMessageStarts[(int) (mFirst & mMask)] : mArenaEnd;
+        while (mArenaEnd + length - oldestStart > mArena.length && mArena.length < mArenaCapacity) growArena(oldestStart);
+
+        while (mNext - mFirst > mMask || (mFirst < mNext && mArenaEnd + length - mMessageStarts[(int) (mFirst & mMask)] > mArena.length)) {
+            mFirst++;
+        }
+
+        final int index = (int) (mNext & mMask);
+        mTimes[index] = time;
+        mPids[index] = pid;
+        mTids[index] = tid;
+        mLevels[index] = level;
+        mTags[index] = tag;
+        mMessageStarts[index] = mArenaEnd;
+        mMessageLengths[index] = length;
+        int at = (int) (mArenaEnd % mArena.length);
+        for (int i = 0; i < length; i++) {
+            mArena[at] = ascii ? (char) line[start + i] : decoded.charAt(i);
+            if (++at == mArena.length) at = 0;
+        }
+        mArenaEnd += length;
+        mNext++;
+    }
+
+    /** The sequence number of the oldest record kept. */
+    public synchronized long getFirstSequence() {
+        return mFirst;
+    }
+
+    /** The sequence number the next record will get, which is also the number of records ever added. */
+    public synchronized long getNextSequence() {
+        return mNext;
+    }
+
+    /** The number of records kept. */
+    public synchronized int size() {
+        return (int) (mNext - mFirst);
+    }
+
+    /** Whether the record is still kept. */
+    public synchronized boolean contains(long sequence) {
+        return sequence >= mFirst && sequence < mNext;
+    }
+
+    /** The time in milliseconds, or -1 for a line that is not a record or a record no longer kept. */
+    public synchronized long getTime(long sequence) {
+        return contains(sequence) ? mTimes[(int) (sequence & mMask)] : -1;
+    }
+
+    public synchronized int getPid(long sequence) {
+        return contains(sequence) ? mPids[(int) (sequence & mMask)] : -1;
+    }
+
+    public synchronized int getTid(long sequence) {
+        return contains(sequence) ? mTids[(int) (sequence & mMask)] : -1;
+    }
+
+    /** The level letter, such as 'E', or {@link #LEVEL_NONE}. */
+    public synchronized byte getLevel(long sequence) {
+        return contains(sequence) ? mLevels[(int) (sequence & mMask)] : LEVEL_NONE;
+    }
+
+    /** The interned tag, see {@link #getTag(int)}, or {@link #NO_TAG}. */
+    public synchronized int getTagId(long sequence) {
+        return contains(sequence) ? mTags[(int) (sequence & mMask)] : NO_TAG;
+    }
+
+    /** The name of an interned tag. */
+    public synchronized String getTag(int tagId) {
+        return tagId >= 0 && tagId < mTagCount ? mTagNames[tagId] : null;
+    }
+
+    /** The id of a tag seen so far, or {@link #NO_TAG}. */
+    public synchronized int findTag(String tag) {
+        for (int id = 0; id < mTagCount; id++) if (mTagNames[id].equals(tag)) return id;
+        return NO_TAG;
+    }
+
+    /** The number of distinct tags seen, tag ids run from 0 to this. */
+    public synchronized int getTagCount() {
+        return mTagCount;
+    }
+
+    /** The message, or the whole line for a line that is not a record, or null for a record no longer kept. */
+    public synchronized String getMessage(long sequence) {
+        if (!contains(sequence)) return null;
+        final int index = (int) (sequence & mMask);
+        final int length = mMessageLengths[index];
+        final int start = (int) (mMessageStarts[index] % mArena.length);
+        if (start + length <= mArena.length) return new String(mArena, start, length);
+        return new StringBuilder(length).append(mArena, start, mArena.length - start).append(mArena, 0, length - (mArena.length - start)).toString();
+    }
+
+    /** The number of chars in the message, 0 for a record no longer kept. */
+    public synchronized int getMessageLength(long sequence) {
+        return contains(sequence) ? mMessageLengths[(int) (sequence & mMask)] : 0;
+    }
+
+    /** Whether the message of a record that is kept contains needle. */
+    synchronized boolean messageContains(long sequence, char[] needle) {
+        final int index = (int) (sequence & mMask);
+        final int length = mMessageLengths[index];
+        final int start = (int) (mMessageStarts[index] % mArena.length);
+        final char[] arena = mArena;
+        outer:
+        for (int from = 0; from + needle.length <= length; from++) {
+            int at = start + from;
+            if (at >= arena.length) at -= arena.length;
+            for (char c : needle) {
+                if (arena[at] != c) continue outer;
+                if (++at == arena.length) at = 0;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** A char of the message of a record that is kept. */
+    public synchronized char getMessageChar(long sequence, int index) {
+        return mArena[(int) ((mMessageStarts[(int) (sequence & mMask)] + index) % mArena.length)];
+    }
+}
@@ -0,0 +1,394 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import alpine.term.LogUtils;
+
+/**
+ * Random access by line to persisted log output, read through memory mapped files so that opening a large log
+ * costs only the lines actually read.
+ * <p>
+ * The files, typically the segments of a {@link SegmentedLogStore}, are read as one continuous stream. Line starts
+ * are found lazily, as far as the highest line asked for, and only every {@link #INDEX_STRIDE}th one is kept, so
+ * the index of a 500 MB log takes well under a megabyte. {@link #refresh()} picks up output appended since.
+ * <p>
+ * Compressed segments are read block by block, inflating a block only when it is read and keeping the last few
+ * inflated blocks.
+ */
+public final class MappedLogReader implements Closeable {
+
+    LogUtils logUtils = new LogUtils("Mapped Log Reader");
+
+    /** One line start out of this many is kept in the index, the others are found by scanning from it. */
+    static final int INDEX_STRIDE = 64;
+
+    /** The largest single mapping, larger files are mapped in several regions. */
+    private static final long MAX_REGION_BYTES = 256 * 1024 * 1024;
+
+    /** The number of inflated blocks of compressed segments kept. */
+    private static final int BLOCK_CACHE_SIZE = 4;
+
+    /** A mapped part of a file, or the part of a compressed block after skip bytes. */
+    private static final class Region {
+        final long mStart;
+        final int mLength;
+        final MappedByteBuffer mMapped;
+        final CompressedSegment mSegment;
+        final int mBlock;
+        final int mSkip;
+
+        Region(long start, MappedByteBuffer mapped) {
+            mStart = start;
+            mLength = mapped.capacity();
+            mMapped = mapped;
+            mSegment = null;
+            mBlock = -1;
+            mSkip = 0;
+        }
+
+        Region(long start, CompressedSegment segment, int block, int skip) {
+            mStart = start;
+            mLength = segment.getBlockLength(block) - skip;
+            mMapped = null;
+            mSegment = segment;
+            mBlock = block;
+            mSkip = skip;
+        }
+    }
+
+    private final File mDirectory;
+    private final List<File> mFiles = new ArrayList<>();
+    /** The number of bytes of each of {@link #mFiles} mapped so far. */
+    private long[] mMappedBytes = new long[0];
+    private final List<Region> mRegions = new ArrayList<>();
+    private final List<CompressedSegment> mCompressedSegments = new ArrayList<>();
+    private long mLength;
+
+    private final Map<Region, ByteBuffer> mBlockCache = new LinkedHashMap<Region, ByteBuffer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Region, ByteBuffer> eldest) {
+            return size() > BLOCK_CACHE_SIZE;
+        }
+    };
+
+    /** The offsets of lines 0, INDEX_STRIDE, 2 * INDEX_STRIDE and so on, as far as indexed. */
+    private long[] mCheckpoints = new long[64];
+    private int mCheckpointCount;
+    /** The number of line starts found so far, including the one at offset 0. */
+    private int mIndexedLines;
+    private long mLastLineStart;
+    /** Everything before this offset has been scanned for line starts. */
+    private long mScanOffset;
+
+    /** Read the given files, in that order, as one log. */
+    public MappedLogReader(List<File> files) throws IOException {
+        mDirectory = null;
+        for (File file : files) addFile(file);
+        startIndex();
+    }
+
+    /** Read the segments of the {@link SegmentedLogStore} in directory, {@link #refresh()} also finds new ones. */
+    public MappedLogReader(File directory) throws IOException {
+        mDirectory = directory;
+        for (File file : SegmentedLogStore.listSegmentFiles(directory)) addFile(file);
+        startIndex();
+    }
+
+    /**
+     * Map output appended since the reader was opened or last refreshed, including new segments.
+     *
+     * @return true if there is more to read
+     */
+    public synchronized boolean refresh() throws IOException {
+        long length = mLength;
+        if (!mFiles.isEmpty()) mapFile(mFiles.size() - 1);
+        if (mDirectory != null) {
+            long last = mFiles.isEmpty() ? 0 : SegmentedLogStore.segmentId(mFiles.get(mFiles.size() - 1));
+            for (File file : SegmentedLogStore.listSegmentFiles(mDirectory)) {
+                if (SegmentedLogStore.segmentId(file) > last) addFile(file);
+            }
+        }
+        return mLength != length;
+    }
+
+    /** The number of bytes that can be read. */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /** The number of lines, a last line without a newline included. Scans whatever is not indexed yet. */
+    public synchronized int getLineCount() {
+        indexLines(Integer.MAX_VALUE);
+        return mLastLineStart == mLength ? mIndexedLines - 1 : mIndexedLines;
+    }
+
+    /** The offset at which line starts, or -1 if there is no such line. */
+    public synchronized long getLineOffset(int line) {
+        if (line < 0) return -1;
+        indexLines(line + 1);
+        if (line >= mIndexedLines) return -1;
+        long offset = mCheckpoints[line / INDEX_STRIDE];
+        for (int i = line % INDEX_STRIDE; i > 0; i--) offset = nextLineStart(offset);
+        return offset < mLength ? offset : -1;
+    }
+
+    /**
+     * The offset of the first of the last lineCount lines, found by scanning backwards from the end so that the
+     * tail of a log is reached without indexing it.
+     */
+    public synchronized long getTailOffset(int lineCount) {
+        long offset = mLength;
+        // A last line without a newline counts as a line too.
+        if (offset > 0 && byteAt(offset - 1) != '\n') lineCount--;
+        while (offset > 0) {
+            if (byteAt(offset - 1) == '\n' && lineCount-- <= 0) break;
+            offset--;
+        }
+        return offset;
+    }
+
+    /**
+     * Copy bytes starting at offset.
+     *
+     * @return the number of bytes copied, less than length only at the end of the log
+     */
+    public synchronized int read(long offset, byte[] buffer, int bufferOffset, int length) {
+        int copied = 0;
+        int index = findRegion(offset);
+        while (copied < length && index >= 0 && index < mRegions.size()) {
+            Region region = mRegions.get(index);
+            int position = (int) (offset - region.mStart);
+            int count = Math.min(length - copied, region.mLength - position);
+            // Java 8 has no absolute bulk get, position a duplicate instead.
+            ByteBuffer view = buffer(region).duplicate();
+            view.position(position);
+            view.get(buffer, bufferOffset + copied, count);
+            copied += count;
+            offset += count;
+            index++;
+        }
+        return copied;
+    }
+
+    /** The bytes of lineCount lines starting at firstLine, newlines included, fewer at the end of the log. */
+    public synchronized byte[] readLines(int firstLine, int lineCount) {
+        long start = getLineOffset(firstLine);
+        if (start < 0 || lineCount <= 0) return new byte[0];
+        long end = getLineOffset(firstLine + lineCount);
+        if (end < 0) end = mLength;
+        byte[] bytes = new byte[(int) (end - start)];
+        read(start, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /** A line decoded as UTF-8, without its line terminator, for list views. Null if there is no such line. */
+    public synchronized String getLine(int line) {
+        long start = getLineOffset(line);
+        if (start < 0) return null;
+        long end = nextLineStart(start);
+        if (end > start && byteAt(end - 1) == '\n') end--;
+        if (end > start && byteAt(end - 1) == '\r') end--;
+        byte[] bytes = new byte[(int) (end - start)];
+        read(start, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Feed lineCount lines starting at firstLine to emulator. The caller must own the emulator. */
+    public void appendLines(TerminalEmulator emulator, int firstLine, int lineCount) {
+        byte[] bytes = readLines(firstLine, lineCount);
+        emulator.append(bytes, bytes.length);
+    }
+
+    /** Drop the mappings, the memory is released once they are garbage collected. */
+    @Override
+    public synchronized void close() {
+        for (CompressedSegment segment : mCompressedSegments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        mCompressedSegments.clear();
+        mBlockCache.clear();
+        mRegions.clear();
+        mFiles.clear();
+        mMappedBytes = new long[0];
+        mLength = 0;
+        startIndex();
+    }
+
+    private void addFile(File file) throws IOException {
+        mFiles.add(file);
+        mMappedBytes = Arrays.copyOf(mMappedBytes, mFiles.size());
+        mapFile(mFiles.size() - 1);
+    }
+
+    /**
+     * Map whatever of a file has not been mapped yet, such as output appended to the active segment. A compressed
+     * segment is added block by block instead, as is the rest of a segment compressed since it was last mapped.
+     */
+    private void mapFile(int index) throws IOException {
+        File file = mFiles.get(index);
+        if (file.getName().endsWith(".logz")) {
+            addBlocks(index, file);
+            return;
+        }
+        if (!file.exists()) {
+            File compressed = new File(file.getPath() + "z");
+            if (file.getName().endsWith(".log") && compressed.isFile()) {
+                mFiles.set(index, compressed);
+                addBlocks(index, compressed);
+            }
+            return;
+        }
+        try (FileInputStream stream = new FileInputStream(file)) {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            while (mMappedBytes[index] < size) {
+                long length = Math.min(MAX_REGION_BYTES, size - mMappedBytes[index]);
+                // The mapping stays valid after the channel is closed.
+                mRegions.add(new Region(mLength, channel.map(FileChannel.MapMode.READ_ONLY, mMappedBytes[index], length)));
+                mMappedBytes[index] += length;
+                mLength += length;
+            }
+        }
+    }
+
+    private void addBlocks(int index, File file) throws IOException {
+        if (mMappedBytes[index] == Long.MAX_VALUE) return;
+        CompressedSegment segment = CompressedSegment.open(file);
+        mCompressedSegments.add(segment);
+        for (int block = 0; block < segment.getBlockCount(); block++) {
+            long blockEnd = segment.getBlockOffset(block) + segment.getBlockLength(block);
+            if (blockEnd <= mMappedBytes[index]) continue;
+            int skip = (int) Math.max(0, mMappedBytes[index] - segment.getBlockOffset(block));
+            Region region = new Region(mLength, segment, block, skip);
+            mRegions.add(region);
+            mLength += region.mLength;
+        }
+        // Compressed segments are complete, there is never more to add.
+        mMappedBytes[index] = Long.MAX_VALUE;
+    }
+
+    /** The bytes of a region, inflating a compressed block if it is not cached. */
+    private ByteBuffer buffer(Region region) {
+        if (region.mMapped != null) return region.mMapped;
+        ByteBuffer buffer = mBlockCache.get(region);
+        if (buffer != null) return buffer;
+        byte[] bytes;
+        try {
+            bytes = region.mSegment.readBlock(region.mBlock);
+        } catch (IOException e) {
+            logUtils.log_Error("cannot read block " + region.mBlock + ", reading it as zeros", e);
+            bytes = new byte[region.mSkip + region.mLength];
+        }
+        buffer = ByteBuffer.wrap(bytes, region.mSkip, region.mLength).slice();
+        mBlockCache.put(region, buffer);
+        return buffer;
+    }
+
+    private void startIndex() {
+        mCheckpoints[0] = 0;
+        mCheckpointCount = 1;
+        mIndexedLines = 1;
+        mLastLineStart = 0;
+        mScanOffset = 0;
+    }
+
+    /** Scan forward until at least lineCount line starts are known, or to the end. */
+    private void indexLines(int lineCount) {
+        int index = findRegion(mScanOffset);
+        while (mIndexedLines < lineCount && index >= 0 && index < mRegions.size()) {
+            Region region = mRegions.get(index);
+            ByteBuffer buffer = buffer(region);
+            for (int i = (int) (mScanOffset - region.mStart); i < region.mLength; i++) {
+                if (buffer.get(i) != '\n') continue;
+                long lineStart = region.mStart + i + 1;
+                if (mIndexedLines % INDEX_STRIDE == 0) {
+                    if (mCheckpointCount == mCheckpoints.length) mCheckpoints = Arrays.copyOf(mCheckpoints, mCheckpointCount * 2);
+                    mCheckpoints[mCheckpointCount++] = lineStart;
+                }
+                mIndexedLines++;
+                mLastLineStart = lineStart;
+                if (mIndexedLines >= lineCount) {
+                    mScanOffset = lineStart;
+                    return;
+                }
+            }
+            mScanOffset = region.mStart + region.mLength;
+            index++;
+        }
+    }
+
+    /** The offset after the newline ending the line containing offset, or the length of the log. */
+    private long nextLineStart(long offset) {
+        int index = findRegion(offset);
+        while (index >= 0 && index < mRegions.size()) {
+            Region region = mRegions.get(index);
+            ByteBuffer buffer = buffer(region);
+            for (int i = (int) (offset - region.mStart); i < region.mLength; i++) {
+                if (buffer.get(i) == '\n') return region.mStart + i + 1;
+            }
+            offset = region.mStart + region.mLength;
+            index++;
+        }
+        return mLength;
+    }
+
+    private byte byteAt(long offset) {
+        Region region = mRegions.get(findRegion(offset));
+        return buffer(region).get((int) (offset - region.mStart));
+    }
+
+    /** The index of the region holding offset, or -1 if offset is at or past the end. */
+    private int findRegion(long offset) {
+        int low = 0, high = mRegions.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Region region = mRegions.get(middle);
+            if (offset < region.mStart) {
+                high = middle - 1;
+            } else if (offset >= region.mStart + region.mLength) {
+                low = middle + 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import alpine.term.LogUtils;
+
+/**
+ * Turns pasted text into the bytes written to the terminal a chunk at a time, in one pass and without copying the
+ * text: ESC and C1 control characters are removed, \n and \r\n become \r, and the rest is encoded in UTF-8 with
+ * unpaired surrogates encoded as '?', just like {@link String#getBytes(java.nio.charset.Charset)} does.
+ */
+final class PasteEncoder {
+
+    LogUtils logUtils = new LogUtils("Paste Encoder");
+
+    private final CharSequence mText;
+    private int mIndex;
+    /** Whether the last char kept was a \r of the text, so that a \n following it is dropped. */
+    private boolean mAfterCarriageReturn;
+
+    PasteEncoder(CharSequence text) {
+        mText = text;
+    }
+
+    boolean isDone() {
+        return mIndex == mText.length();
+    }
+
+    /** The number of chars of the text encoded so far. */
+    int getCharsEncoded() {
+        return mIndex;
+    }
+
+    /**
+     * Encode the next chars of the text into buffer, stopping short of length bytes rather than split a char.
+     *
+     * @param length at least 4
+     * @return the number of bytes encoded
+     */
+    int encode(byte[] buffer, int offset, int length) {
+        final CharSequence text = mText;
+        final int textLength = text.length();
+        final int start = offset;
+        final int limit = offset + length - 4;
+        int i = mIndex;
+        boolean afterCarriageReturn = mAfterCarriageReturn;
+        while (i < textLength && offset <= limit) {
+            char c = text.charAt(i++);
+            if (c < 0x80) {
+                if (c == 27) continue;
+                if (c == '\n') {
+                    final boolean joined = afterCarriageReturn;
+                    afterCarriageReturn = false;
+                    if (joined) continue;
+                    buffer[offset++] = '\r';
+                    continue;
+                }
+                afterCarriageReturn = c == '\r';
+                buffer[offset++] = (byte) c;
+                continue;
+            }
+            if (c <= 0x9F) continue;
+            afterCarriageReturn = false;
+            if (c < 0x800) {
+                buffer[offset++] = (byte) (0xC0 | (c >> 6));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[offset++] = (byte) (0xE0 | (c >> 12));
+                buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && isLowSurrogateAt(text, i = skipRemoved(text, i))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(i++));
+                buffer[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[offset++] = '?';
+            }
+        }
+        mIndex = i;
+        mAfterCarriageReturn = afterCarriageReturn;
+        return offset - start;
+    }
+
+    /** Skip the chars removed from pastes from an index on, which may join the surrogates of a pair around them. */
+    private static int skipRemoved(CharSequence text, int index) {
+        while (index < text.length()) {
+            final char c = text.charAt(index);
+            if (c != 27 && (c < 0x80 || c > 0x9F)) break;
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isLowSurrogateAt(CharSequence text, int index) {
+        return index < text.length() && Character.isLowSurrogate(text.charAt(index));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import alpine.term.LogUtils;
+
+/**
+ * A single thread waiting for the exit of every watched child process, instead of one
+ * {@link JNI#waitFor(int)} thread per session.
+ * <p>
+ * Each watched process is opened as a pidfd, which becomes readable once the process exits, and the reaper thread
+ * blocks in epoll(7) on all of them. Only watched children are ever waited on, so children owned by others, such as
+ * the one forked by {@link JNI#hasDied(String)}, are left alone.
+ * <p>
+ * Where pidfds are not available, a second thread blocks in waitid(2) for any child to exit, without reaping it,
+ * and then reaps it only if it is watched. While a child that is not watched stays unreaped, the same wait returns
+ * at once, so that thread then checks each watched pid instead and backs off between checks until its owner has
+ * waited for it.
+ */
+public final class ProcessReaper {
+
+    LogUtils logUtils = new LogUtils("Process Reaper");
+
+    /** Called on the reaper thread once a watched process has exited. */
+    public interface ExitListener {
+        /**
+         * @param exitStatus as returned by {@link JNI#waitFor(int)}
+         */
+        void onProcessExited(int pid, int exitStatus);
+    }
+
+    /** Android 12, the first whose seccomp filter allows apps to call pidfd_open(2). */
+    private static final int PIDFD_MIN_SDK = 31;
+
+    /** First and longest pause of the fallback thread while an exited child that is not watched stays unreaped. */
+    private static final long FALLBACK_MIN_BACKOFF_MILLIS = 10;
+    private static final long FALLBACK_MAX_BACKOFF_MILLIS = 500;
+
+    private static final class Watched {
+        final int mPid;
+        final ExitListener mListener;
+
+        Watched(int pid, ExitListener listener) {
+            mPid = pid;
+            mListener = listener;
+        }
+    }
+
+    /** Watched processes by their pidfd, kept across a restart. */
+    private final Map<Integer, Watched> mWatched = new HashMap<>();
+    private int mEpollFd = -1;
+    private int mWakeupWriteFd = -1;
+    private Thread mThread;
+    private boolean mRunning;
+
+    /** Watched processes by their pid, for when they cannot be opened as a pidfd. */
+    private final Map<Integer, ExitListener> mWaited = new HashMap<>();
+    private Thread mFallbackThread;
+
+    ProcessReaper() {
+    }
+
+    synchronized void start() {
+        if (mRunning) return;
+        final int epollFd = JNI.epollCreate();
+        final int[] pipe = JNI.createWakeupPipe();
+        JNI.epollCtl(epollFd, TerminalIOLoop.EPOLL_CTL_ADD, pipe[0], TerminalIOLoop.EPOLLIN);
+        for (int pidFd : mWatched.keySet()) JNI.epollCtl(epollFd, TerminalIOLoop.EPOLL_CTL_ADD, pidFd, TerminalIOLoop.EPOLLIN);
+        mEpollFd = epollFd;
+        mWakeupWriteFd = pipe[1];
+        mRunning = true;
+        mThread = new Thread("ProcessReaper") {
+            @Override
+            public void run() {
+                runReaper(epollFd, pipe[0], pipe[1]);
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    synchronized void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        JNI.wakeup(mWakeupWriteFd);
+    }
+
+    /** Reap pid once it exits and tell listener about it. */
+    public void watch(int pid, ExitListener listener) {
+        final int pidFd = Build.VERSION.SDK_INT >= PIDFD_MIN_SDK ? JNI.openPidFd(pid) : -1;
+        if (pidFd < 0) {
+            waitWithoutPidFd(pid, listener);
+            return;
+        }
+        synchronized (this) {
+            mWatched.put(pidFd, new Watched(pid, listener));
+            if (mRunning) JNI.epollCtl(mEpollFd, TerminalIOLoop.EPOLL_CTL_ADD, pidFd, TerminalIOLoop.EPOLLIN);
+        }
+    }
+
+    /** Wait for pid on the fallback thread, for when it cannot be opened as a pidfd. */
+    private synchronized void waitWithoutPidFd(int pid, ExitListener listener) {
+        mWaited.put(pid, listener);
+        if (mFallbackThread == null) {
+            mFallbackThread = new Thread("ProcessReaper [waitid]") {
+                @Override
+                public void run() {
+                    runFallbackReaper();
+                }
+            };
+            mFallbackThread.setDaemon(true);
+            mFallbackThread.start();
+        }
+        notifyAll();
+    }
+
+    private void runFallbackReaper() {
+        long backoff = FALLBACK_MIN_BACKOFF_MILLIS;
+        while (true) {
+            synchronized (this) {
+                while (mWaited.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            int exited = JNI.peekExitedChild(-1, true);
+            ExitListener listener;
+            synchronized (this) {
+                listener = exited > 0 ? mWaited.remove(exited) : null;
+            }
+            if (listener != null) {
+                reap(exited, listener);
+                backoff = FALLBACK_MIN_BACKOFF_MILLIS;
+                continue;
+            }
+            // Not ours, or exited before being watched: check every watched pid, then let its owner catch up.
+            if (reapExitedWaited()) {
+                backoff = FALLBACK_MIN_BACKOFF_MILLIS;
+                continue;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, FALLBACK_MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Reap every watched pid that has exited, or that is no longer a child to wait for.
+     *
+     * @return whether any was reaped
+     */
+    private boolean reapExitedWaited() {
+        Integer[] pids;
+        synchronized (this) {
+            pids = mWaited.keySet().toArray(new Integer[0]);
+        }
+        boolean reaped = false;
+        for (int pid : pids) {
+            if (JNI.peekExitedChild(pid, false) == 0) continue;
+            ExitListener listener;
+            synchronized (this) {
+                listener = mWaited.remove(pid);
+            }
+            if (listener == null) continue;
+            reap(pid, listener);
+            reaped = true;
+        }
+        return reaped;
+    }
+
+    private void runReaper(int epollFd, int wakeupReadFd, int wakeupWriteFd) {
+        final int[] fds = new int[64];
+        final int[] events = new int[64];
+        final byte[] drain = new byte[64];
+        while (isCurrentReaper()) {
+            int count = JNI.epollWait(epollFd, fds, events, -1);
+            for (int i = 0; i < count; i++) {
+                final int fd = fds[i];
+                if (fd == wakeupReadFd) {
+                    while (JNI.read(wakeupReadFd, drain, drain.length) > 0) ;
+                    continue;
+                }
+                Watched watched;
+                synchronized (this) {
+                    if (!isCurrentReaper()) break;
+                    watched = mWatched.remove(fd);
+                }
+                if (watched == null) continue;
+                JNI.epollCtl(epollFd, TerminalIOLoop.EPOLL_CTL_DEL, fd, 0);
+                JNI.close(fd);
+                reap(watched.mPid, watched.mListener);
+            }
+        }
+        JNI.close(epollFd);
+        JNI.close(wakeupReadFd);
+        JNI.close(wakeupWriteFd);
+    }
+
+    /** Collect the exit status of pid, which has exited or is about to, and tell listener about it. */
+    private void reap(int pid, ExitListener listener) {
+        int exitStatus = JNI.waitFor(pid);
+        try {
+            listener.onProcessExited(pid, exitStatus);
+        } catch (RuntimeException e) {
+            logUtils.log_Error("exit listener for pid " + pid + " failed", e);
+        }
+    }
+
+    /** False once stopped, or once a restart has replaced the calling thread. */
+    private synchronized boolean isCurrentReaper() {
+        return mRunning && mThread == Thread.currentThread();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alpine.term.LogUtils;
+
+/**
+ * Reads from a pseudo-terminal master by blocking in poll(2), so an idle session does not wake up at all.
+ * <p>
+ * A reader is stopped from another thread through {@link #stop()}, which writes to a private wakeup pipe
+ * and makes a pending {@link #read(ByteBuffer, int, int)} return -1.
+ */
+final class PtyReader {
+
+    LogUtils logUtils = new LogUtils("Pty Reader");
+
+    /** Returned by {@link JNI#readInto(int, int, ByteBuffer, int, int, int)} when woken through the wakeup pipe. */
+    static final int WOKEN = -2;
+
+    /** Counters shared by every reader of a session, so they survive a logcat restart. */
+    static final class Counters {
+        /** The number of times poll(2) returned. */
+        final AtomicLong wakeups = new AtomicLong();
+        /** The number of reads that returned data. */
+        final AtomicLong reads = new AtomicLong();
+        /** The total number of bytes read. */
+        final AtomicLong bytesRead = new AtomicLong();
+    }
+
+    private final int mFileDescriptor;
+    private final int mWakeupReadFd;
+    private final int mWakeupWriteFd;
+    private final Counters mCounters;
+    private volatile boolean mStopped;
+    private boolean mClosed;
+
+    PtyReader(int fileDescriptor, Counters counters) {
+        mFileDescriptor = fileDescriptor;
+        mCounters = counters;
+        int[] pipe = JNI.createWakeupPipe();
+        mWakeupReadFd = pipe[0];
+        mWakeupWriteFd = pipe[1];
+    }
+
+    /**
+     * Block until data is available and read as much of it as is buffered, up to length, straight into buffer.
+     *
+     * @param buffer a direct buffer, its position and limit are left alone
+     * @return the number of bytes read, or -1 on end of file, error or after {@link #stop()}
+     */
+    int read(ByteBuffer buffer, int offset, int length) {
+        while (!mStopped) {
+            int read = JNI.readInto(mFileDescriptor, mWakeupReadFd, buffer, offset, length, -1);
+            mCounters.wakeups.incrementAndGet();
+            // Nothing to read yet, after an interrupted or spurious wakeup.
+            if (read == WOKEN || read == 0) continue;
+            if (read > 0) {
+                mCounters.reads.incrementAndGet();
+                mCounters.bytesRead.addAndGet(read);
+            }
+            return read;
+        }
+        return -1;
+    }
+
+    /** Make a pending or future {@link #read(ByteBuffer, int, int)} return -1. Safe to call from any thread. */
+    synchronized void stop() {
+        mStopped = true;
+        if (!mClosed) JNI.wakeup(mWakeupWriteFd);
+    }
+
+    /**
+     * Release the wakeup pipe, should only be called by the reading thread once it is done reading.
+     *
+     * @param closeFileDescriptor true to also close the pseudo-terminal master
+     */
+    synchronized void close(boolean closeFileDescriptor) {
+        if (mClosed) return;
+        mClosed = true;
+        mStopped = true;
+        JNI.close(mWakeupReadFd);
+        JNI.close(mWakeupWriteFd);
+        if (closeFileDescriptor) JNI.close(mFileDescriptor);
+    }
+}
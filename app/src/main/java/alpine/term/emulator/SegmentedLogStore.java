@@ -0,0 +1,416 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import alpine.term.LogUtils;
+
+/**
+ * An append-only log kept as a directory of numbered segment files, used as the {@link LogWriter.Target} of log
+ * sessions so that their history survives restarts while taking a bounded amount of storage.
+ * <p>
+ * A new segment is started once the current one reaches the segment size, cutting at a line boundary where
+ * possible. Whenever a segment is completed, the oldest segments are deleted until the store fits the size limit,
+ * as are segments last written before the age limit. The active segment is never deleted.
+ * <p>
+ * Completed segments can be compressed in the background into a {@link CompressedSegment}, after which the
+ * retention limits apply to their compressed size.
+ * <p>
+ * The manifest lists the segments in order with their creation time, last write time and size. It is rewritten
+ * atomically whenever a segment is completed or compressed and when the store is closed. Sizes are taken from the
+ * segment files themselves when reopening, so that a manifest left stale by a crash does not lose output.
+ */
+public final class SegmentedLogStore implements LogWriter.Target {
+
+    LogUtils logUtils = new LogUtils("Segmented Log Store");
+
+    static final String MANIFEST_NAME = "manifest";
+    private static final String MANIFEST_HEADER = "# segmented log v1: id created-millis last-write-millis bytes";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".logz";
+
+    /** Compresses completed segments of every store, one at a time so as not to compete with the sessions. */
+    private static final ExecutorService sCompressor = new ThreadPoolExecutor(
+        0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "SegmentedLogStore compressor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    );
+
+    /** A completed or active segment file. */
+    public static final class Segment {
+        public final long mId;
+        /** Changes once the segment has been compressed. */
+        public File mFile;
+        public final long mCreatedMillis;
+        long mLastWriteMillis;
+        long mBytes;
+
+        Segment(long id, File file, long createdMillis, long lastWriteMillis, long bytes) {
+            mId = id;
+            mFile = file;
+            mCreatedMillis = createdMillis;
+            mLastWriteMillis = lastWriteMillis;
+            mBytes = bytes;
+        }
+
+        Segment copy() {
+            return new Segment(mId, mFile, mCreatedMillis, mLastWriteMillis, mBytes);
+        }
+
+        public long getLastWriteMillis() {
+            return mLastWriteMillis;
+        }
+
+        /** The size on storage, compressed if {@link #isCompressed()}. */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public boolean isCompressed() {
+            return mFile.getName().endsWith(COMPRESSED_SUFFIX);
+        }
+    }
+
+    private final File mDirectory;
+    private final long mSegmentBytes;
+    private final long mRetentionBytes;
+    private final long mRetentionMillis;
+    private final int mCompressionBlockBytes;
+
+    /** Oldest first, the last one is the active segment. */
+    private final List<Segment> mSegments = new ArrayList<>();
+    private FileOutputStream mStream;
+    private long mDeletedSegments;
+    private long mCompressedSegments;
+    private boolean mClosed;
+
+    /** Open a store whose completed segments are left uncompressed. */
+    public SegmentedLogStore(File directory, long segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this(directory, segmentBytes, retentionBytes, retentionMillis, 0);
+    }
+
+    /**
+     * Open the store in directory, creating it if needed, and continue appending to its newest segment.
+     *
+     * @param segmentBytes          the size at which a new segment is started
+     * @param retentionBytes        the most bytes kept across all segments
+     * @param retentionMillis       how long a completed segment is kept after its last write, 0 to keep it regardless
+     * @param compressionBlockBytes the block size completed segments are compressed with, 0 to not compress them
+     */
+    public SegmentedLogStore(File directory, long segmentBytes, long retentionBytes, long retentionMillis, int compressionBlockBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        mRetentionBytes = retentionBytes;
+        mRetentionMillis = retentionMillis;
+        mCompressionBlockBytes = compressionBlockBytes;
+
+        loadSegments();
+        Segment active = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (active == null || active.isCompressed() || active.mBytes >= mSegmentBytes) {
+            startSegment(active == null ? 1 : active.mId + 1);
+        } else {
+            mStream = new FileOutputStream(active.mFile, true);
+        }
+        applyRetention();
+        writeManifest();
+        // Completed segments left uncompressed by a previous run.
+        for (int i = 0; i < mSegments.size() - 1; i++) scheduleCompression(mSegments.get(i));
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** A copy of the segments, oldest first, the last one being the active segment. */
+    public synchronized List<Segment> getSegments() {
+        List<Segment> segments = new ArrayList<>(mSegments.size());
+        for (Segment segment : mSegments) segments.add(segment.copy());
+        return segments;
+    }
+
+    /** The number of bytes held across all segments. */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : mSegments) total += segment.mBytes;
+        return total;
+    }
+
+    /** The number of segments compressed since the store was opened. */
+    public synchronized long getCompressedSegments() {
+        return mCompressedSegments;
+    }
+
+    /** The number of segments deleted by retention since the store was opened. */
+    public synchronized long getDeletedSegments() {
+        return mDeletedSegments;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (mClosed) throw new IOException("store is closed");
+        while (length > 0) {
+            Segment active = mSegments.get(mSegments.size() - 1);
+            long room = mSegmentBytes - active.mBytes;
+            int count = length;
+            if (length > room) {
+                int lineEnd = lastLineEnd(buffer, offset, (int) Math.max(0, room));
+                if (lineEnd > 0) {
+                    count = lineEnd;
+                } else if (active.mBytes > 0) {
+                    rollOver();
+                    continue;
+                }
+                // Otherwise a single line longer than a whole segment, which is kept together.
+            }
+            mStream.write(buffer, offset, count);
+            active.mBytes += count;
+            active.mLastWriteMillis = System.currentTimeMillis();
+            offset += count;
+            length -= count;
+            if (active.mBytes >= mSegmentBytes) rollOver();
+        }
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (!mClosed) mStream.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            mStream.close();
+        } finally {
+            writeManifest();
+        }
+    }
+
+    /** The length of buffer[offset, offset + length) up to and including its last newline, 0 if there is none. */
+    private static int lastLineEnd(byte[] buffer, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            if (buffer[i] == '\n') return i + 1 - offset;
+        }
+        return 0;
+    }
+
+    /** Complete the active segment, start the next one and apply retention. */
+    private void rollOver() throws IOException {
+        // Synced regardless of durability, a completed segment is never written to again.
+        mStream.getFD().sync();
+        mStream.close();
+        Segment completed = mSegments.get(mSegments.size() - 1);
+        startSegment(completed.mId + 1);
+        applyRetention();
+        writeManifest();
+        scheduleCompression(completed);
+    }
+
+    private void scheduleCompression(Segment segment) {
+        if (mCompressionBlockBytes <= 0 || segment.isCompressed()) return;
+        final long id = segment.mId;
+        final File source = segment.mFile;
+        final File target = new File(mDirectory, segmentName(id, COMPRESSED_SUFFIX));
+        sCompressor.execute(() -> {
+            try {
+                CompressedSegment.compress(source, target, mCompressionBlockBytes);
+            } catch (IOException e) {
+                // Retention may have deleted the segment meanwhile.
+                if (source.exists()) logUtils.log_Error("cannot compress " + source, e);
+                return;
+            }
+            onCompressed(id, source, target);
+        });
+    }
+
+    private synchronized void onCompressed(long id, File source, File target) {
+        Segment segment = findSegment(id);
+        if (segment == null) {
+            // Deleted by retention while being compressed.
+            target.delete();
+            return;
+        }
+        segment.mFile = target;
+        segment.mBytes = target.length();
+        mCompressedSegments++;
+        writeManifest();
+        // Readers that mapped the uncompressed file keep their mapping.
+        source.delete();
+    }
+
+    private void startSegment(long id) throws IOException {
+        File file = new File(mDirectory, segmentName(id, SEGMENT_SUFFIX));
+        mStream = new FileOutputStream(file, false);
+        long now = System.currentTimeMillis();
+        mSegments.add(new Segment(id, file, now, now, 0));
+    }
+
+    private File segmentFile(long id) {
+        File compressed = new File(mDirectory, segmentName(id, COMPRESSED_SUFFIX));
+        return compressed.isFile() ? compressed : new File(mDirectory, segmentName(id, SEGMENT_SUFFIX));
+    }
+
+    private static String segmentName(long id, String suffix) {
+        return String.format(Locale.ROOT, "%010d%s", id, suffix);
+    }
+
+    private void applyRetention() {
+        long total = getTotalBytes();
+        long cutoff = mRetentionMillis > 0 ? System.currentTimeMillis() - mRetentionMillis : Long.MIN_VALUE;
+        while (mSegments.size() > 1) {
+            Segment oldest = mSegments.get(0);
+            if (total <= mRetentionBytes && oldest.mLastWriteMillis >= cutoff) break;
+            if (!oldest.mFile.delete() && oldest.mFile.exists()) {
+                logUtils.log_Error("cannot delete " + oldest.mFile);
+                break;
+            }
+            mSegments.remove(0);
+            total -= oldest.mBytes;
+            mDeletedSegments++;
+        }
+    }
+
+    /** Read the manifest, then pick up segment files it does not list, such as one started right before a crash. */
+    private void loadSegments() {
+        File manifest = new File(mDirectory, MANIFEST_NAME);
+        if (manifest.isFile()) {
+            try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length != 4) continue;
+                    long id = Long.parseLong(fields[0]);
+                    File file = segmentFile(id);
+                    if (!file.isFile()) continue;
+                    mSegments.add(new Segment(id, file, Long.parseLong(fields[1]), Long.parseLong(fields[2]), file.length()));
+                }
+            } catch (IOException | NumberFormatException e) {
+                logUtils.log_Error("cannot read " + manifest + ", rebuilding it from the segment files", e);
+                mSegments.clear();
+            }
+        }
+
+        for (File file : listSegmentFiles(mDirectory)) {
+            long id = segmentId(file);
+            if (findSegment(id) != null) continue;
+            long modified = file.lastModified();
+            mSegments.add(new Segment(id, file, modified, modified, file.length()));
+        }
+
+        Collections.sort(mSegments, (a, b) -> Long.compare(a.mId, b.mId));
+
+        // Left behind by a compression interrupted before or after renaming its output.
+        for (Segment segment : mSegments) {
+            new File(mDirectory, segmentName(segment.mId, COMPRESSED_SUFFIX) + ".tmp").delete();
+            if (segment.isCompressed()) new File(mDirectory, segmentName(segment.mId, SEGMENT_SUFFIX)).delete();
+        }
+    }
+
+    /**
+     * The segment files in directory, oldest first, without going through the manifest. Where a segment is there
+     * both compressed and uncompressed, only the compressed file is listed.
+     */
+    public static List<File> listSegmentFiles(File directory) {
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) return segments;
+        for (File file : files) {
+            long id = segmentId(file);
+            if (id <= 0) continue;
+            if (!file.getName().endsWith(COMPRESSED_SUFFIX) && new File(directory, segmentName(id, COMPRESSED_SUFFIX)).isFile()) continue;
+            segments.add(file);
+        }
+        Collections.sort(segments, (a, b) -> Long.compare(segmentId(a), segmentId(b)));
+        return segments;
+    }
+
+    /** The id of a segment file, compressed or not, or -1 if file is not one. */
+    static long segmentId(File file) {
+        String name = file.getName();
+        int end;
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+            end = name.length() - SEGMENT_SUFFIX.length();
+        } else if (name.endsWith(COMPRESSED_SUFFIX)) {
+            end = name.length() - COMPRESSED_SUFFIX.length();
+        } else {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Segment findSegment(long id) {
+        for (Segment segment : mSegments) if (segment.mId == id) return segment;
+        return null;
+    }
+
+    /** Replace the manifest through a temporary file, so that a crash leaves either the old or the new one. */
+    private void writeManifest() {
+        File temporary = new File(mDirectory, MANIFEST_NAME + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary, false)) {
+            Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+            writer.write(MANIFEST_HEADER);
+            writer.write('\n');
+            for (Segment segment : mSegments) {
+                writer.write(segment.mId + " " + segment.mCreatedMillis + " " + segment.mLastWriteMillis + " " + segment.mBytes + "\n");
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            logUtils.log_Error("cannot write " + temporary, e);
+            return;
+        }
+        if (!temporary.renameTo(new File(mDirectory, MANIFEST_NAME))) {
+            logUtils.log_Error("cannot replace the manifest in " + mDirectory);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import alpine.term.LogUtils;
+
+/**
+ * A paste written to the terminal a chunk at a time, so that a long paste can be fed to the process from a
+ * background thread as fast as it reads it, see {@link TerminalSession#paste(CharSequence, Listener)}.
+ * <p>
+ * The text is sanitized and encoded by a {@link PasteEncoder} as it is written. A cancelled paste stops after the
+ * chunk being written, and is still ended with the bracketed paste end marker if it was started with the start one.
+ */
+public final class StreamingPaste {
+
+    LogUtils logUtils = new LogUtils("Streaming Paste");
+
+    /** Called on the thread writing the paste. */
+    public interface Listener {
+        void onPasteProgress(StreamingPaste paste, int charsPasted, int charsTotal);
+
+        /** @param completed false if the paste was cancelled or the process stopped reading it */
+        void onPasteFinished(StreamingPaste paste, boolean completed);
+    }
+
+    /** Where a paste is written. */
+    interface Output {
+        /** Wait until count bytes can be written without blocking, false to stop the paste. */
+        boolean awaitSpace(StreamingPaste paste, int count);
+
+        void write(byte[] data, int offset, int count);
+    }
+
+    private static final byte[] BRACKETED_PASTE_START = {27, '[', '2', '0', '0', '~'};
+    private static final byte[] BRACKETED_PASTE_END = {27, '[', '2', '0', '1', '~'};
+
+    private final PasteEncoder mEncoder;
+    private final int mLength;
+    private final boolean mBracketed;
+    private final Listener mListener;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param bracketed whether to surround the text with the bracketed paste markers, see
+     *                  {@link TerminalEmulator#isBracketedPasteMode()}
+     * @param listener  may be null
+     */
+    StreamingPaste(CharSequence text, boolean bracketed, Listener listener) {
+        mEncoder = new PasteEncoder(text);
+        mLength = text.length();
+        mBracketed = bracketed;
+        mListener = listener;
+    }
+
+    /** Stop the paste after the chunk being written. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Write the whole paste, chunkBytes at a time, on the calling thread. */
+    void run(Output output, int chunkBytes) {
+        final byte[] chunk = new byte[Math.max(16, Math.min(chunkBytes, mLength * 3 + 4))];
+        if (mBracketed) output.write(BRACKETED_PASTE_START, 0, BRACKETED_PASTE_START.length);
+        boolean completed = true;
+        while (!mEncoder.isDone()) {
+            final int count = mEncoder.encode(chunk, 0, chunk.length);
+            if (mCancelled || !output.awaitSpace(this, count)) {
+                completed = false;
+                break;
+            }
+            if (count > 0) output.write(chunk, 0, count);
+            if (mListener != null) mListener.onPasteProgress(this, mEncoder.getCharsEncoded(), mLength);
+        }
+        if (mBracketed) output.write(BRACKETED_PASTE_END, 0, BRACKETED_PASTE_END.length);
+        if (mListener != null) mListener.onPasteFinished(this, completed);
+    }
+}
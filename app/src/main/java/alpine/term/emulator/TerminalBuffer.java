@@ -22,6 +22,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import alpine.term.LogUtils;
@@ -45,6 +46,12 @@ public final class TerminalBuffer {
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /** The id of the top row of the screen, the number of rows scrolled off the top of the screen so far. */
+    private long mScreenRowId = 0;
+    /** Created on the first search. */
+    private TranscriptIndex mTranscriptIndex;
+    /** Created on the first URL lookup. */
+    private TranscriptUrlIndex mUrlIndex;
 
     /**
      * Create a transcript screen.
@@ -127,6 +134,31 @@ public final class TerminalBuffer {
         return mActiveTranscriptRows + mScreenRows;
     }
 
+    /**
+     * The id of an external row, which stays with the text of the row as the screen scrolls up and the row moves
+     * into the transcript. Ids grow by one per row scrolled off the top of the screen.
+     */
+    public long getRowId(int externalRow) {
+        return mScreenRowId + externalRow;
+    }
+
+    /** The external row of a row id, which may be outside of the active rows. */
+    public long getExternalRow(long rowId) {
+        return rowId - mScreenRowId;
+    }
+
+    /** The full-text index of this buffer, see {@link TranscriptIndex#search(String, boolean, int)}. */
+    public TranscriptIndex getTranscriptIndex() {
+        if (mTranscriptIndex == null) mTranscriptIndex = new TranscriptIndex(this);
+        return mTranscriptIndex;
+    }
+
+    /** The URLs of this buffer, see {@link TranscriptUrlIndex}. */
+    public TranscriptUrlIndex getUrlIndex() {
+        if (mUrlIndex == null) mUrlIndex = new TranscriptUrlIndex(this);
+        return mUrlIndex;
+    }
+
     /**
      * Convert a row value from the public external coordinate system to our internal private coordinate system.
      *
@@ -201,8 +233,12 @@ public final class TerminalBuffer {
             }
             mScreenFirstRow += shiftDownOfTopRow;
             mScreenFirstRow = (mScreenFirstRow < 0) ? (mScreenFirstRow + mTotalRows) : (mScreenFirstRow % mTotalRows);
+            mScreenRowId += shiftDownOfTopRow;
             mTotalRows = newTotalRows;
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
+            // Rows moved back from the transcript to the screen may change, forget them:
+            if (mTranscriptIndex != null && shiftDownOfTopRow < 0) mTranscriptIndex.truncate(mScreenRowId);
+            if (mUrlIndex != null && shiftDownOfTopRow < 0) mUrlIndex.truncate(mScreenRowId);
             cursor[1] -= shiftDownOfTopRow;
             mScreenRows = newRows;
         } else {
@@ -220,6 +256,8 @@ public final class TerminalBuffer {
             mScreenRows = newRows;
             mActiveTranscriptRows = mScreenFirstRow = 0;
             mColumns = newColumns;
+            if (mTranscriptIndex != null) mTranscriptIndex.clear();
+            if (mUrlIndex != null) mUrlIndex.clear();
 
             int newCursorRow = -1;
             int newCursorColumn = -1;
@@ -368,6 +406,7 @@ public final class TerminalBuffer {
 
         // Update the screen location in the ring buffer:
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScreenRowId++;
         // Note that the history has grown if not already full:
         if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
 
@@ -415,8 +454,7 @@ public final class TerminalBuffer {
                 "illegal arguments: blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
         }
         for (int y = 0; y < h; y++)
-            for (int x = 0; x < w; x++)
-                setChar(sx + x, sy + y, val, style);
+            allocateFullLineIfNecessary(externalToInternalRow(sy + y)).fill(sx, sx + w, val, style);
     }
 
     public TerminalRow allocateFullLineIfNecessary(int row) {
@@ -430,6 +468,20 @@ public final class TerminalBuffer {
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /** Write one column wide chars to consecutive columns of a row, see {@link TerminalRow#setChars}. */
+    public void setChars(int column, int row, char[] source, int offset, int length, long style) {
+        if (row >= mScreenRows || column + length > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", length=" + length + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        allocateFullLineIfNecessary(externalToInternalRow(row)).setChars(column, source, offset, length, style);
+    }
+
+    /** Write printable ASCII to consecutive columns of a row, see {@link TerminalRow#setAscii}. */
+    public void setAscii(int column, int row, byte[] bytes, ByteBuffer buffer, int offset, int length, long style) {
+        if (row >= mScreenRows || column + length > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", length=" + length + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        allocateFullLineIfNecessary(externalToInternalRow(row)).setAscii(column, bytes, buffer, offset, length, style);
+    }
+
     public long getStyleAt(int externalRow, int column) {
         return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
     }
@@ -467,5 +519,7 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        if (mTranscriptIndex != null) mTranscriptIndex.clear();
+        if (mUrlIndex != null) mUrlIndex.clear();
     }
 }
@@ -25,12 +25,14 @@ package alpine.term.emulator;
 import android.util.Base64;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Stack;
 
+import alpine.term.Config;
 import alpine.term.LogUtils;
 
 /**
@@ -219,6 +221,18 @@ public final class TerminalEmulator {
      */
     private boolean mInsertMode;
 
+    /**
+     * Write runs of printable ASCII a row at a time instead of a byte at a time, see {@link #appendAsciiRun}.
+     * Only turned off by tests comparing both ways.
+     */
+    boolean mAsciiFastPath = true;
+
+    /**
+     * In a log view, apply line feeds and SGR color sequences without going through the escape parser, see
+     * {@link #appendLogControl}. Only turned off by tests comparing both ways.
+     */
+    boolean mLogFastPath = true;
+
     /** An array of tab stops. mTabStop[i] is true if there is a tab stop set for column i. */
     private boolean[] mTabStop;
 
@@ -253,8 +267,19 @@ public final class TerminalEmulator {
      */
     private int mScrollCounter = 0;
 
-    private byte mUtf8ToFollow, mUtf8Index;
-    private final byte[] mUtf8InputBuffer = new byte[4];
+    private final Utf8Decoder mUtf8Decoder = new Utf8Decoder();
+    private final Utf8Decoder.Sink mUtf8Sink = new Utf8Decoder.Sink() {
+        @Override
+        public void onCodePoint(int codePoint) {
+            processCodePoint(codePoint);
+        }
+
+        @Override
+        public void onTruncatedSequence() {
+            // Replace the entire sequence up to now with the replacement char.
+            emitCodePoint(UNICODE_REPLACEMENT_CHAR);
+        }
+    };
     private int mLastEmittedCodePoint = -1;
 
     public final TerminalColors mColors = new TerminalColors();
@@ -449,72 +474,133 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        for (int i = 0; i < length; ) {
+            final byte b = buffer[i];
+            int next;
+            if (b >= 0x20 && b < 0x7F && canAppendAsciiRun()) {
+                i = appendAsciiRun(buffer, null, i, length);
+            } else if ((b == '\n' || b == 27) && (next = appendLogControl(buffer, null, i, length)) > i) {
+                i = next;
+            } else {
+                processByte(b);
+                i++;
+            }
+        }
     }
 
-    private void processByte(byte byteToProcess) {
-        if (mUtf8ToFollow > 0) {
-            if ((byteToProcess & 0b11000000) == 0b10000000) {
-                // 10xxxxxx, a continuation byte.
-                mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
-                if (--mUtf8ToFollow == 0) {
-                    byte firstByteMask = (byte) (mUtf8Index == 2 ? 0b00011111 : (mUtf8Index == 3 ? 0b00001111 : 0b00000111));
-                    int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
-                    for (int i = 1; i < mUtf8Index; i++)
-                        codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
-                    if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
-                        || (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
-                        // Overlong encoding.
-                        codePoint = UNICODE_REPLACEMENT_CHAR;
-                    }
+    /**
+     * Like {@link #append(byte[], int)}, for bytes in a buffer such as a direct one filled by native code,
+     * leaving its position and limit alone.
+     *
+     * @param buffer the buffer containing the bytes to be processed
+     * @param offset the index of the first byte to process
+     * @param length the number of bytes to process
+     */
+    public void append(ByteBuffer buffer, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; ) {
+            final byte b = buffer.get(i);
+            int next;
+            if (b >= 0x20 && b < 0x7F && canAppendAsciiRun()) {
+                i = appendAsciiRun(null, buffer, i, end);
+            } else if ((b == '\n' || b == 27) && (next = appendLogControl(null, buffer, i, end)) > i) {
+                i = next;
+            } else {
+                processByte(b);
+                i++;
+            }
+        }
+    }
 
-                    mUtf8Index = mUtf8ToFollow = 0;
+    /**
+     * Whether printable ASCII would be emitted one column per byte as it is, so that a run of it can be written to
+     * the row in bulk: no escape sequence or UTF-8 sequence is pending, no line drawing character set is in use,
+     * insert mode is off and the cursor is left of the right margin.
+     */
+    private boolean canAppendAsciiRun() {
+        return mAsciiFastPath && mEscapeState == ESC_NONE && mUtf8Decoder.isIdle()
+            && !(mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)
+            && !mInsertMode && mCursorCol < mRightMargin;
+    }
 
-                    if (codePoint >= 0x80 && codePoint <= 0x9F) {
-                        // Sequence decoded to a C1 control character which we ignore. They are
-                        // not used nowadays and increases the risk of messing up the terminal state
-                        // on binary input. XTerm does not allow them in utf-8:
-                        // "It is not possible to use a C1 control obtained from decoding the
-                        // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
-                    } else {
-                        switch (Character.getType(codePoint)) {
-                            case Character.UNASSIGNED:
-                            case Character.SURROGATE:
-                                codePoint = UNICODE_REPLACEMENT_CHAR;
-                        }
-                        processCodePoint(codePoint);
-                    }
-                }
+    /**
+     * Write the run of printable ASCII starting at start, a row at a time, exactly as {@link #emitCodePoint(int)}
+     * would one byte at a time. Either array or buffer is null.
+     *
+     * @return the index of the first byte after the run
+     */
+    private int appendAsciiRun(byte[] array, ByteBuffer buffer, int start, int end) {
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+        mContinueSequence = false;
+        int i = start;
+        while (i < end) {
+            // Like emitCodePoint(), only wrap once there is a character to put on the next line.
+            final byte first = array != null ? array[i] : buffer.get(i);
+            if (first < 0x20 || first >= 0x7F) break;
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1) autoWrapToNextLine();
+            // Without auto-wrap every byte past the margin overwrites the last column, a room of one at a time.
+            final int runLimit = Math.min(end, i + (mRightMargin - mCursorCol));
+            int runEnd = i + 1;
+            if (array != null) {
+                while (runEnd < runLimit && array[runEnd] >= 0x20 && array[runEnd] < 0x7F) runEnd++;
             } else {
-                // Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char:
-                mUtf8Index = mUtf8ToFollow = 0;
-                emitCodePoint(UNICODE_REPLACEMENT_CHAR);
-                // The Unicode Standard Version 6.2 – Core Specification
-                // (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
-                // "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid first
-                // byte, but which does not continue with valid successor bytes (see Table 3-7), it must not consume the
-                // successor bytes as part of the ill-formed subsequence
-                // whenever those successor bytes themselves constitute part of a well-formed UTF-8 code unit
-                // subsequence."
-                processByte(byteToProcess);
+                byte b;
+                while (runEnd < runLimit && (b = buffer.get(runEnd)) >= 0x20 && b < 0x7F) runEnd++;
             }
+
+            final int count = runEnd - i;
+            mScreen.setAscii(mCursorCol, mCursorRow, array, buffer, i, count, style);
+            final int lastColumn = mCursorCol + count - 1;
+            if (autoWrap) mAboutToAutoWrap = lastColumn == mRightMargin - 1;
+            mCursorCol = Math.min(lastColumn + 1, mRightMargin - 1);
+            mLastEmittedCodePoint = array != null ? array[runEnd - 1] : buffer.get(runEnd - 1);
+            i = runEnd;
+            if (runEnd < runLimit) break;
+        }
+        return i;
+    }
+
+    /**
+     * In a log view, which is mostly lines of plain or colored text, handle the line feed or escape at start
+     * directly, exactly as the escape parser would: a line feed moves to the start of the next line, and a
+     * complete "ESC [ Ps ; ... m" sequence sets the colors. Printable text in between is written in runs by
+     * {@link #appendAsciiRun}, so a typical line never reaches the escape parser. Either array or buffer is null.
+     *
+     * @return the index after what was handled, or start if the escape parser has to handle it
+     */
+    private int appendLogControl(byte[] array, ByteBuffer buffer, int start, int end) {
+        if (!isLogView || !mLogFastPath || !mUtf8Decoder.isIdle()) return start;
+        if ((array != null ? array[start] : buffer.get(start)) == '\n') {
+            // A control character, executed the same way in the middle of an escape sequence.
+            doLinefeed();
+            setCursorCol(mLeftMargin);
+            return start + 1;
+        }
+
+        if (mEscapeState != ESC_NONE || start + 1 >= end || (array != null ? array[start + 1] : buffer.get(start + 1)) != '[') return start;
+        // Only take the sequence if it is complete and nothing but parameters and 'm', before changing any state.
+        int finalByte = start + 2;
+        while (true) {
+            if (finalByte >= end) return start;
+            final byte b = array != null ? array[finalByte] : buffer.get(finalByte);
+            if (b == 'm') break;
+            if ((b < '0' || b > '9') && b != ';') return start;
+            finalByte++;
+        }
+        startEscapeSequence();
+        for (int i = start + 2; i < finalByte; i++) parseArg(array != null ? array[i] : buffer.get(i));
+        selectGraphicRendition();
+        mContinueSequence = false;
+        mEscapeState = ESC_NONE;
+        return finalByte + 1;
+    }
+
+    private void processByte(byte byteToProcess) {
+        if (byteToProcess >= 0 && mUtf8Decoder.isIdle()) {
+            processCodePoint(byteToProcess);
         } else {
-            if ((byteToProcess & 0b10000000) == 0) { // The leading bit is not set so it is a 7-bit ASCII character.
-                processCodePoint(byteToProcess);
-                return;
-            } else if ((byteToProcess & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
-                mUtf8ToFollow = 1;
-            } else if ((byteToProcess & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
-                mUtf8ToFollow = 2;
-            } else if ((byteToProcess & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
-                mUtf8ToFollow = 3;
-            } else {
-                // Not a valid UTF-8 sequence start, signal invalid data:
-                processCodePoint(UNICODE_REPLACEMENT_CHAR);
-                return;
-            }
-            mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
+            mUtf8Decoder.decode(byteToProcess, mUtf8Sink);
         }
     }
 
@@ -554,7 +640,7 @@ public final class TerminalEmulator {
                 doLinefeed();
                 // some times the terminal may glitch and not reset the cursor when a new line
                 // occurs, make sure the cursor is reset when a new line occurs
-                if (isLogView) processByte(Integer.valueOf('\r').byteValue());
+                if (isLogView) setCursorCol(mLeftMargin);
                 break;
             case 11: // Vertical tab (VT, \v).
             case 12: // Form feed (FF, \f).
@@ -674,10 +760,15 @@ public final class TerminalEmulator {
                                     int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
                                     int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
                                     long style = getStyle();
-                                    for (int row = top - 1; row < bottom; row++)
-                                        for (int col = left - 1; col < right; col++)
-                                            if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                                                mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+                                    if (!selective) {
+                                        if (right >= left && bottom >= top)
+                                            mScreen.blockSet(left - 1, top - 1, right - left + 1, bottom - top + 1, fillChar, style);
+                                    } else {
+                                        for (int row = top - 1; row < bottom; row++)
+                                            for (int col = left - 1; col < right; col++)
+                                                if ((TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
+                                                    mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+                                    }
                                 }
                                 break;
                             case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
@@ -1017,9 +1108,16 @@ public final class TerminalEmulator {
                 }
                 long style = getStyle();
                 for (int row = startRow; row < endRow; row++) {
-                    for (int col = startCol; col < endCol; col++) {
-                        if ((TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                            mScreen.setChar(col, row, fillChar, style);
+                    // Erase each run of unprotected cells at once.
+                    for (int col = startCol; col < endCol; ) {
+                        if (isProtected(row, col)) {
+                            col++;
+                            continue;
+                        }
+                        int runEnd = col + 1;
+                        while (runEnd < endCol && !isProtected(row, runEnd)) runEnd++;
+                        mScreen.blockSet(col, row, runEnd - col, 1, fillChar, style);
+                        col = runEnd;
                     }
                 }
                 break;
@@ -2011,6 +2109,11 @@ public final class TerminalEmulator {
         return TextStyle.encode(mForeColor, mBackColor, mEffect);
     }
 
+    /** Whether the cell is protected from selective erase by DECSCA. */
+    private boolean isProtected(int row, int column) {
+        return (TextStyle.decodeEffect(mScreen.getStyleAt(row, column)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) != 0;
+    }
+
     /** "CSI P_m h" for set or "CSI P_m l" for reset ANSI mode. */
     private void doSetMode(boolean newValue) {
         int modeBit = getArg0(0);
@@ -2276,13 +2379,7 @@ public final class TerminalEmulator {
 
         if (autoWrap) {
             if (cursorInLastColumn && ((mAboutToAutoWrap && displayWidth == 1) || displayWidth == 2)) {
-                mScreen.setLineWrap(mCursorRow);
-                mCursorCol = mLeftMargin;
-                if (mCursorRow + 1 < mBottomMargin) {
-                    mCursorRow++;
-                } else {
-                    scrollDownOneLine();
-                }
+                autoWrapToNextLine();
             }
         } else if (cursorInLastColumn && displayWidth == 2) {
             // The behaviour when a wide character is output with cursor in the last column when
@@ -2306,6 +2403,17 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /** Mark the cursor row as wrapped and move to the start of the next line, scrolling at the bottom margin. */
+    private void autoWrapToNextLine() {
+        mScreen.setLineWrap(mCursorRow);
+        mCursorCol = mLeftMargin;
+        if (mCursorRow + 1 < mBottomMargin) {
+            mCursorRow++;
+        } else {
+            scrollDownOneLine();
+        }
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2369,7 +2477,7 @@ public final class TerminalEmulator {
         mSavedDecSetFlags = mSavedStateMain.mSavedDecFlags = mSavedStateAlt.mSavedDecFlags = mCurrentDecSetFlags;
 
         // XXX: Should we set terminal driver back to IUTF8 with termios?
-        mUtf8Index = mUtf8ToFollow = 0;
+        mUtf8Decoder.reset();
 
         mColors.reset();
         mSession.onColorsChanged();
@@ -2393,18 +2501,29 @@ public final class TerminalEmulator {
         }
     }
 
-    /** If DECSET 2004 is set, prefix paste with "\033[200~" and suffix with "\033[201~". */
+    /**
+     * Write text to the session as pasted: without escape key and C1 control characters [0x80,0x9F], with newlines
+     * (\n) and CRLF (\r\n) turned into carriage returns (\r). If DECSET 2004 is set, prefix paste with "\033[200~"
+     * and suffix with "\033[201~". The text is written a chunk at a time, see
+     * {@link TerminalSession#paste(CharSequence, StreamingPaste.Listener)} for long texts.
+     */
     public void paste(String text) {
-        // First: Always remove escape key and C1 control characters [0x80,0x9F]:
-        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
-        // Second: Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r).
-        text = text.replaceAll("\r?\n", "\r");
-
-        // Then: Implement bracketed paste mode if enabled:
-        boolean bracketed = isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
-        if (bracketed) mSession.write("\033[200~");
-        mSession.write(text);
-        if (bracketed) mSession.write("\033[201~");
+        new StreamingPaste(text, isBracketedPasteMode(), null).run(new StreamingPaste.Output() {
+            @Override
+            public boolean awaitSpace(StreamingPaste paste, int count) {
+                return true;
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int count) {
+                mSession.write(data, offset, count);
+            }
+        }, Config.TERMINAL_PASTE_CHUNK_BYTES);
+    }
+
+    /** Whether pasted text is to be surrounded by the bracketed paste markers, see {@link #paste(String)}. */
+    public boolean isBracketedPasteMode() {
+        return isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
     }
 
     /** http://www.vt100.net/docs/vt510-rm/DECSC */
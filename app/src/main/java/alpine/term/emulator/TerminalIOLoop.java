@@ -0,0 +1,257 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alpine.term.LogUtils;
+
+/**
+ * A single thread multiplexing the pseudo-terminal masters of every session through epoll(7).
+ * <p>
+ * Registration changes are queued and applied on the loop thread, so a {@link Channel} is never called back after
+ * {@link Channel#onUnregistered(int)}, which is where the owner may close its file descriptor. Since the number of a
+ * closed file descriptor may be reused, every change names the channel it is meant for and is ignored if fd now
+ * belongs to another one.
+ * <p>
+ * The loop is owned by {@link alpine.term.TerminalService}, which starts it with {@link #start()} and stops it
+ * with {@link #stop()}.
+ */
+public final class TerminalIOLoop {
+
+    LogUtils logUtils = new LogUtils("Terminal IO Loop");
+
+    static final int EPOLL_CTL_ADD = 1;
+    static final int EPOLL_CTL_DEL = 2;
+    static final int EPOLL_CTL_MOD = 3;
+
+    static final int EPOLLIN = 0x001;
+    static final int EPOLLOUT = 0x004;
+    static final int EPOLLERR = 0x008;
+    static final int EPOLLHUP = 0x010;
+
+    /** Callbacks for a registered file descriptor, all called on the loop thread. */
+    public interface Channel {
+        /** fd is readable, or has hung up. Return false to unregister it. */
+        boolean onReadable(int fd);
+
+        /** fd is writable and write interest is set. Return false to clear write interest. */
+        boolean onWritable(int fd);
+
+        /** fd has been removed from the loop and will not be called back again. */
+        void onUnregistered(int fd);
+    }
+
+    private static TerminalIOLoop sInstance;
+
+    /** The loop shared by every session, created on first use. */
+    public static synchronized TerminalIOLoop getInstance() {
+        if (sInstance == null) sInstance = new TerminalIOLoop();
+        return sInstance;
+    }
+
+    private final Map<Integer, Channel> mChannels = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> mInterest = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Runnable> mPendingChanges = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mWakeups = new AtomicLong();
+    private final ProcessReaper mReaper = new ProcessReaper();
+
+    private int mEpollFd = -1;
+    private int mWakeupReadFd = -1;
+    private int mWakeupWriteFd = -1;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private TerminalIOLoop() {
+    }
+
+    /** The reaper watching the processes of every session, started together with the loop. */
+    public ProcessReaper getReaper() {
+        return mReaper;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /** Start the loop and reaper threads if they are not running already. */
+    public synchronized void start() {
+        if (mRunning) return;
+        mEpollFd = JNI.epollCreate();
+        int[] pipe = JNI.createWakeupPipe();
+        mWakeupReadFd = pipe[0];
+        mWakeupWriteFd = pipe[1];
+        JNI.epollCtl(mEpollFd, EPOLL_CTL_ADD, mWakeupReadFd, EPOLLIN);
+        mRunning = true;
+        mThread = new Thread("TerminalIOLoop") {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        mThread.start();
+        mReaper.start();
+    }
+
+    /** Stop the loop, every channel still registered gets {@link Channel#onUnregistered(int)}. */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!mRunning) return;
+            mRunning = false;
+            JNI.wakeup(mWakeupWriteFd);
+            thread = mThread;
+        }
+        // Join outside the lock, channels may still post changes while they are being unregistered.
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mReaper.stop();
+    }
+
+    /** Start watching fd for input. fd is switched to non-blocking mode. */
+    public void register(final int fd, final Channel channel) {
+        post(() -> {
+            JNI.setNonBlocking(fd, true);
+            int r = JNI.epollCtl(mEpollFd, EPOLL_CTL_ADD, fd, EPOLLIN);
+            if (r != 0) {
+                logUtils.log_Error("epoll_ctl(ADD, " + fd + ") failed: " + r);
+                channel.onUnregistered(fd);
+                return;
+            }
+            mChannels.put(fd, channel);
+            mInterest.put(fd, EPOLLIN);
+        });
+    }
+
+    /** Stop watching fd, its channel then gets {@link Channel#onUnregistered(int)}. */
+    public void unregister(final int fd, final Channel channel) {
+        post(() -> {
+            if (mChannels.get(fd) == channel) remove(fd);
+        });
+    }
+
+    /** Ask for {@link Channel#onWritable(int)} once fd can be written to, until the channel returns false. */
+    public void requestWrite(final int fd, final Channel channel) {
+        post(() -> {
+            if (mChannels.get(fd) == channel) updateInterest(fd, EPOLLOUT, 0);
+        });
+    }
+
+    /** Stop calling {@link Channel#onReadable(int)} for fd until {@link #resumeRead(int, Channel)}, for back pressure. */
+    public void pauseRead(final int fd, final Channel channel) {
+        post(() -> {
+            if (mChannels.get(fd) == channel) updateInterest(fd, 0, EPOLLIN);
+        });
+    }
+
+    /** Undo {@link #pauseRead(int, Channel)}. */
+    public void resumeRead(final int fd, final Channel channel) {
+        post(() -> {
+            if (mChannels.get(fd) == channel) updateInterest(fd, EPOLLIN, 0);
+        });
+    }
+
+    /** The number of times the loop thread has returned from epoll_wait(2). */
+    public long getWakeups() {
+        return mWakeups.get();
+    }
+
+    /** The number of file descriptors currently registered. */
+    public int getRegisteredCount() {
+        return mChannels.size();
+    }
+
+    private void post(Runnable change) {
+        mPendingChanges.add(change);
+        synchronized (this) {
+            if (mRunning) {
+                JNI.wakeup(mWakeupWriteFd);
+                return;
+            }
+        }
+        // Not running, apply right away so that owners are not left waiting for onUnregistered().
+        logUtils.log_Warning("loop is not running, applying change on the calling thread");
+        Runnable pending;
+        while ((pending = mPendingChanges.poll()) != null) pending.run();
+    }
+
+    private void updateInterest(int fd, int set, int clear) {
+        Integer current = mInterest.get(fd);
+        if (current == null) return;
+        int events = (current | set) & ~clear;
+        if (events == current) return;
+        JNI.epollCtl(mEpollFd, EPOLL_CTL_MOD, fd, events);
+        mInterest.put(fd, events);
+    }
+
+    private void remove(int fd) {
+        Channel channel = mChannels.remove(fd);
+        mInterest.remove(fd);
+        if (channel == null) return;
+        JNI.epollCtl(mEpollFd, EPOLL_CTL_DEL, fd, 0);
+        channel.onUnregistered(fd);
+    }
+
+    private void runLoop() {
+        final int[] fds = new int[64];
+        final int[] events = new int[64];
+        final byte[] drain = new byte[64];
+        while (mRunning) {
+            int count = JNI.epollWait(mEpollFd, fds, events, -1);
+            mWakeups.incrementAndGet();
+            for (int i = 0; i < count; i++) {
+                final int fd = fds[i];
+                if (fd == mWakeupReadFd) {
+                    while (JNI.read(mWakeupReadFd, drain, drain.length) > 0) ;
+                    continue;
+                }
+                Channel channel = mChannels.get(fd);
+                if (channel == null) continue;
+                try {
+                    if ((events[i] & EPOLLOUT) != 0 && !channel.onWritable(fd)) updateInterest(fd, 0, EPOLLOUT);
+                    if ((events[i] & (EPOLLIN | EPOLLHUP | EPOLLERR)) != 0 && !channel.onReadable(fd)) remove(fd);
+                } catch (RuntimeException e) {
+                    logUtils.log_Error("channel for fd " + fd + " failed, unregistering", e);
+                    remove(fd);
+                }
+            }
+            Runnable change;
+            while ((change = mPendingChanges.poll()) != null) change.run();
+        }
+
+        for (Integer fd : mChannels.keySet()) remove(fd);
+        Runnable change;
+        while ((change = mPendingChanges.poll()) != null) change.run();
+        synchronized (this) {
+            JNI.close(mEpollFd);
+            JNI.close(mWakeupReadFd);
+            JNI.close(mWakeupWriteFd);
+        }
+    }
+}
@@ -22,6 +22,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package alpine.term.emulator;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import alpine.term.LogUtils;
@@ -60,11 +61,18 @@ public final class TerminalRow {
 
     /** NOTE: The sourceX2 is exclusive. */
     public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
+        if (!mHasNonOneWidthOrSurrogateChars && !line.mHasNonOneWidthOrSurrogateChars) {
+            // One char per column in both rows, so columns index the arrays directly.
+            System.arraycopy(line.mText, sourceX1, mText, destinationX, sourceX2 - sourceX1);
+            System.arraycopy(line.mStyle, sourceX1, mStyle, destinationX, sourceX2 - sourceX1);
+            return;
+        }
         mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
         final int x1 = line.findStartOfColumn(sourceX1);
         final int x2 = line.findStartOfColumn(sourceX2);
         boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
         final char[] sourceChars = (this == line) ? Arrays.copyOf(line.mText, line.mText.length) : line.mText;
+        final long[] sourceStyles = (this == line) ? Arrays.copyOf(line.mStyle, line.mStyle.length) : line.mStyle;
         int latestNonCombiningWidth = 0;
         for (int i = x1; i < x2; i++) {
             char sourceChar = sourceChars[i];
@@ -80,10 +88,20 @@ public final class TerminalRow {
                 sourceX1 += latestNonCombiningWidth;
                 latestNonCombiningWidth = w;
             }
-            setChar(destinationX, codePoint, line.getStyle(sourceX1));
+            setChar(destinationX, codePoint, sourceStyles[sourceX1]);
         }
     }
 
+    /** Make this row an exact copy of a row with the same number of columns. */
+    void copyFrom(TerminalRow source) {
+        if (mText.length < source.mSpaceUsed) mText = new char[source.mText.length];
+        System.arraycopy(source.mText, 0, mText, 0, source.mSpaceUsed);
+        System.arraycopy(source.mStyle, 0, mStyle, 0, mColumns);
+        mSpaceUsed = source.mSpaceUsed;
+        mLineWrap = source.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = source.mHasNonOneWidthOrSurrogateChars;
+    }
+
     public int getSpaceUsed() {
         return mSpaceUsed;
     }
@@ -148,6 +166,62 @@ public final class TerminalRow {
         mHasNonOneWidthOrSurrogateChars = false;
     }
 
+    /**
+     * Set the columns from startColumn up to endColumn to codePoint, with the same result as
+     * {@link #setChar(int, int, long)} for every column.
+     */
+    public void fill(int startColumn, int endColumn, int codePoint, long style) {
+        if (startColumn >= endColumn) return;
+        final boolean oneColumnChar = codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT && WcWidth.width(codePoint) == 1;
+        if (oneColumnChar && startColumn == 0 && endColumn == mColumns) {
+            // Nothing of the old text survives, so start over with one char per column.
+            Arrays.fill(mText, 0, mColumns, (char) codePoint);
+            Arrays.fill(mStyle, style);
+            mSpaceUsed = (short) mColumns;
+            mHasNonOneWidthOrSurrogateChars = false;
+        } else if (oneColumnChar && !mHasNonOneWidthOrSurrogateChars) {
+            Arrays.fill(mText, startColumn, endColumn, (char) codePoint);
+            Arrays.fill(mStyle, startColumn, endColumn, style);
+        } else {
+            for (int column = startColumn; column < endColumn; column++)
+                setChar(column, codePoint, style);
+        }
+    }
+
+    /**
+     * Write chars that each take one column, that is no surrogates, wide or combining characters, to consecutive
+     * columns starting at columnToSet, with the same result as {@link #setChar(int, int, long)} for every char.
+     */
+    public void setChars(int columnToSet, char[] source, int offset, int length, long style) {
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < length; i++)
+                setChar(columnToSet + i, source[offset + i], style);
+            return;
+        }
+        System.arraycopy(source, offset, mText, columnToSet, length);
+        Arrays.fill(mStyle, columnToSet, columnToSet + length, style);
+    }
+
+    /**
+     * Write printable ASCII bytes to consecutive columns starting at columnToSet, with the same result as
+     * {@link #setChar(int, int, long)} for every byte. Either bytes or buffer is null.
+     */
+    public void setAscii(int columnToSet, byte[] bytes, ByteBuffer buffer, int offset, int length, long style) {
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < length; i++)
+                setChar(columnToSet + i, bytes != null ? bytes[offset + i] : buffer.get(offset + i), style);
+            return;
+        }
+        // Every column is one char, so columns index mText directly.
+        final char[] text = mText;
+        if (bytes != null) {
+            for (int i = 0; i < length; i++) text[columnToSet + i] = (char) bytes[offset + i];
+        } else {
+            for (int i = 0; i < length; i++) text[columnToSet + i] = (char) buffer.get(offset + i);
+        }
+        Arrays.fill(mStyle, columnToSet, columnToSet + length, style);
+    }
+
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
     public void setChar(int columnToSet, int codePoint, long style) {
         mStyle[columnToSet] = style;
@@ -25,26 +25,45 @@ package alpine.term.emulator;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.view.Choreographer;
 
 import com.example.libclient_service.InfiniteLoop;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 import alpine.term.Config;
 import alpine.term.LogUtils;
 import alpine.term.TrackedActivity;
 
+import static alpine.term.TrackedActivity.unwrapFileDescriptor;
 import static alpine.term.TrackedActivity.wrapFileDescriptor;
 
 /**
@@ -52,10 +71,15 @@ import static alpine.term.TrackedActivity.wrapFileDescriptor;
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int, Context)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * All callback methods will be performed on the main thread. Terminal emulation is performed on the main thread too,
+ * unless {@link Config#TERMINAL_PARSE_OFF_MAIN_THREAD} is set, in which case a parser thread owns the emulator and
+ * publishes a {@link TerminalSnapshot} for drawing after each drain, see {@link #getSnapshotForDrawing(int)}.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
+ * A session may also replay persisted log output instead of running a process, see
+ * {@link #TerminalSession(File, SessionChangedCallback, ReplayListener, Context)}.
+ * <p>
  * NOTE: The terminal session may outlive the EmulatorView, so be careful with callbacks!
  */
 public final class TerminalSession extends TerminalOutput {
@@ -87,7 +111,23 @@ public final class TerminalSession extends TerminalOutput {
 
     }
 
+    /** Told on the main thread how a replay progresses. */
+    public interface ReplayListener {
+        /** Called as chunks are parsed, bytesTotal being the size of the replayed tail. */
+        void onReplayProgress(TerminalSession session, long bytesReplayed, long bytesTotal);
+
+        /** @param completed false if the replay was cancelled or failed */
+        void onReplayFinished(TerminalSession session, boolean completed);
+    }
+
+    /** How long a long paste waits between checks for room in the input queue. */
+    private static final long PASTE_POLL_NANOS = 2_000_000;
+
+    /** The number of persisted bytes parsed at a time when replaying, between snapshots. */
+    static final int REPLAY_CHUNK_BYTES = 256 * 1024;
+
     private static final int MSG_NEW_INPUT = 1;
+    private static final int MSG_SCREEN_UPDATED = 2;
     private static final int MSG_PROCESS_EXITED = 4;
 
     public final String mHandle = UUID.randomUUID().toString();
@@ -98,12 +138,12 @@ public final class TerminalSession extends TerminalOutput {
      * A queue written to from a separate thread when the process outputs, and read by main thread to process by
      * terminal emulator.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    final ByteRingBuffer mProcessToTerminalIOQueue;
     /**
      * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
      * writing to the {@link #mTerminalFileDescriptor}.
      */
-    final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
+    final ByteRingBuffer mTerminalToProcessIOQueue;
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
@@ -125,18 +165,74 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** The maximum time spent parsing queued output before yielding the main thread, about half a frame. */
+    static final long INPUT_DRAIN_BUDGET_NANOS = 8_000_000;
+
+    /** The most output parsed per hold of {@link #mEmulatorLock} while draining. */
+    static final int INPUT_DRAIN_CHUNK_BYTES = 4 * 1024;
+
+    /** With jump scrolling, the parser thread publishes at most one snapshot per this while output is backlogged. */
+    static final long SNAPSHOT_INTERVAL_NANOS = 16_000_000;
+
+    /** Parses output in place in {@link #mProcessToTerminalIOQueue}, with {@link #mEmulatorLock} held. */
+    private final ByteRingBuffer.Drainer mEmulatorDrainer = (buffer, offset, length) -> mEmulator.append(buffer, offset, length);
+
+    /** True while a {@link #MSG_NEW_INPUT} is queued, so that readers post at most one at a time. */
+    final AtomicBoolean mInputDrainPending = new AtomicBoolean(false);
+
+    /** The number of bytes parsed by the last drain, that is during the last frame. */
+    volatile int mLastDrainBytes;
+    /** The number of bytes still queued when the last drain ran out of its time budget, 0 if it emptied the queue. */
+    volatile int mLastDrainBacklog;
+    /** The highest backlog seen so far. */
+    volatile int mMaxDrainBacklog;
+
+    /**
+     * Held while the emulator is modified or a snapshot is captured. Only contended when parsing off the main
+     * thread, in which case the main thread must hold it before touching the emulator.
+     */
+    final ReentrantLock mEmulatorLock = new ReentrantLock();
+
+    /** True if output is parsed on {@link #mParserThread} instead of the main thread. */
+    private final boolean mParseOffMainThread;
+    private HandlerThread mParserThread;
+    private Handler mParserHandler;
+
+    /** The last snapshot published by the parser thread, null if it must be captured again. */
+    private volatile TerminalSnapshot mPublishedSnapshot;
+    /** The top row the view drew last, used by the parser thread when publishing. */
+    private volatile int mSnapshotTopRow;
+    private final AtomicLong mSnapshotGeneration = new AtomicLong();
+    /** Reused for drawing when parsing on the main thread, wrapping the emulator's rows rather than copying them. */
+    private final TerminalSnapshot mDrawSnapshot = new TerminalSnapshot();
+    private final AtomicBoolean mScreenUpdatePending = new AtomicBoolean(false);
+    /** When the parser thread last published a snapshot. */
+    private long mLastPublishNanos;
+
+    /** True while {@link #mFrameUpdate} is posted, only accessed on the main thread. */
+    private boolean mFrameUpdatePosted;
+    /** Output notifications since the session started, and screen updates they were coalesced into. */
+    private long mOutputNotifications, mFrameUpdates;
+    private final Choreographer.FrameCallback mFrameUpdate = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameUpdatePosted = false;
+            mFrameUpdates++;
+            notifyScreenUpdate();
+        }
+    };
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
-
         @Override
         public void handleMessage(Message msg) {
-            if (msg.what == MSG_NEW_INPUT && isRunning()) {
-                int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-                if (bytesRead > 0) {
-                    mEmulator.append(mReceiveBuffer, bytesRead);
-                    notifyScreenUpdate();
-                }
+            if (msg.what == MSG_NEW_INPUT) {
+                // Clear the flag even when not draining, or output of a restarted process would never be posted.
+                if (!isRunning()) mInputDrainPending.set(false);
+                else if (drainInput() > 0) notifyOutput();
+            } else if (msg.what == MSG_SCREEN_UPDATED) {
+                mScreenUpdatePending.set(false);
+                notifyOutput();
             } else if (msg.what == MSG_PROCESS_EXITED) {
                 int exitCode = (Integer) msg.obj;
                 cleanupResources(exitCode);
@@ -153,7 +249,13 @@ public final class TerminalSession extends TerminalOutput {
                 exitDescription += "]";
 
                 byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
+                mEmulatorLock.lock();
+                try {
+                    mEmulator.append(bytesToWrite, bytesToWrite.length);
+                    mPublishedSnapshot = null;
+                } finally {
+                    mEmulatorLock.unlock();
+                }
                 notifyScreenUpdate();
             }
         }
@@ -167,8 +269,45 @@ public final class TerminalSession extends TerminalOutput {
     private final TrackedActivity trackedActivity;
     private final boolean printWelcomeMessage;
 
+    /** The log replayed by this session, null if it runs a process. */
+    private final File mReplaySource;
+    private final ReplayListener mReplayListener;
+    private volatile boolean mReplayCancelled;
+
+    /** Writes pastes, one at a time in the order they were made, created on the first. */
+    private ExecutorService mPaster;
+    /** Pastes not yet finished, added and removed under {@link #mInputWriteLock}. */
+    private final List<StreamingPaste> mPastes = new CopyOnWriteArrayList<>();
+
+    /** The regex search of the transcript running or last run, see {@link #searchTranscript(Pattern, TranscriptRegexSearch.Listener)}. */
+    private TranscriptRegexSearch mRegexSearch;
+
     public TerminalSession(boolean isLogView, String shellPath, String[] args, String[] env, String cwd, SessionChangedCallback changeCallback, TrackedActivity trackedActivity, boolean printWelcomeMessage, Context context) {
+        this(isLogView, shellPath, args, env, cwd, changeCallback, trackedActivity, printWelcomeMessage, context, Config.TERMINAL_IO_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param ioQueueCapacity the capacity in bytes of each I/O queue, rounded up to a power of two
+     */
+    public TerminalSession(boolean isLogView, String shellPath, String[] args, String[] env, String cwd, SessionChangedCallback changeCallback, TrackedActivity trackedActivity, boolean printWelcomeMessage, Context context, int ioQueueCapacity) {
+        this(isLogView, shellPath, args, env, cwd, changeCallback, trackedActivity, printWelcomeMessage, context, ioQueueCapacity, null, null);
+    }
+
+    /**
+     * Create a read-only log view replaying persisted output, without a process. The tail of source that fits the
+     * transcript is parsed in large chunks on the parser thread, so the main thread only ever draws snapshots.
+     *
+     * @param source a {@link SegmentedLogStore} directory, or a plain log file
+     */
+    public TerminalSession(File source, SessionChangedCallback changeCallback, ReplayListener replayListener, Context context) {
+        this(true, null, null, null, null, changeCallback, null, false, context, Config.TERMINAL_IO_QUEUE_CAPACITY, source, replayListener);
+    }
+
+    private TerminalSession(boolean isLogView, String shellPath, String[] args, String[] env, String cwd, SessionChangedCallback changeCallback, TrackedActivity trackedActivity, boolean printWelcomeMessage, Context context, int ioQueueCapacity, File replaySource, ReplayListener replayListener) {
         mChangeCallback = changeCallback;
+        // Direct, so that output is read into it by native code and parsed straight from it.
+        mProcessToTerminalIOQueue = new ByteRingBuffer(ioQueueCapacity, true);
+        mTerminalToProcessIOQueue = new ByteRingBuffer(ioQueueCapacity);
 
         this.trackedActivity = trackedActivity;
         if (trackedActivity != null) {
@@ -184,16 +323,231 @@ public final class TerminalSession extends TerminalOutput {
         this.mEnv = env;
         this.mCwd = cwd;
         this.printWelcomeMessage = printWelcomeMessage;
+        this.mReplaySource = replaySource;
+        this.mReplayListener = replayListener;
+        if (replaySource != null) mTerminalFileDescriptor = -1;
+        // A replay always parses off the main thread, that is the point of it.
+        this.mParseOffMainThread = Config.TERMINAL_PARSE_OFF_MAIN_THREAD || replaySource != null;
+        if (mParseOffMainThread) startParserThread();
         updateSize(80,80, context);
     }
 
+    private void startParserThread() {
+        mParserThread = new HandlerThread("TermSessionParser [" + mHandle + "]");
+        mParserThread.start();
+        mParserHandler = new Handler(mParserThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_NEW_INPUT) {
+                    if (!isRunning()) mInputDrainPending.set(false);
+                    else if (drainInput() > 0) publishParsedOutput(mLastDrainBacklog > 0);
+                }
+            }
+        };
+    }
+
+    private void stopParserThread() {
+        if (mParserThread != null) mParserThread.quitSafely();
+    }
+
+    /**
+     * Parse queued output until the queue is empty or {@link #INPUT_DRAIN_BUDGET_NANOS} has passed, re-posting
+     * {@link #MSG_NEW_INPUT} if output is left.
+     *
+     * @return the number of bytes parsed
+     */
+    private int drainInput() {
+        // Clear before draining so that output arriving after the last read below posts a new message.
+        mInputDrainPending.set(false);
+        final long deadline = System.nanoTime() + INPUT_DRAIN_BUDGET_NANOS;
+        int totalBytes = 0;
+        while (true) {
+            // Lock per chunk so that the main thread never waits for more than one chunk to be parsed.
+            mEmulatorLock.lock();
+            try {
+                int bytesRead = mProcessToTerminalIOQueue.read(mEmulatorDrainer, INPUT_DRAIN_CHUNK_BYTES);
+                if (bytesRead <= 0) break;
+                totalBytes += bytesRead;
+            } finally {
+                mEmulatorLock.unlock();
+            }
+            if (System.nanoTime() >= deadline) break;
+        }
+        if (mIOLoopReadPaused.compareAndSet(true, false)) {
+            for (IOLoopChannel channel : mIOLoopChannels) channel.resumeRead();
+        }
+        int backlog = mProcessToTerminalIOQueue.size();
+        mLastDrainBytes = totalBytes;
+        mLastDrainBacklog = backlog;
+        if (backlog > mMaxDrainBacklog) mMaxDrainBacklog = backlog;
+        // Out of budget, yield to input and drawing and continue with the rest afterwards.
+        if (backlog > 0) scheduleInputDrain();
+        return totalBytes;
+    }
+
+    /**
+     * Publish what the parser thread parsed and tell the main thread. With jump scrolling, while more output is
+     * about to be parsed a snapshot is published at most once per {@link #SNAPSHOT_INTERVAL_NANOS}, so a burst is
+     * captured once per frame instead of once per chunk; the end of a burst is always published.
+     *
+     * @param more whether more output is about to be parsed
+     */
+    private void publishParsedOutput(boolean more) {
+        final long now = System.nanoTime();
+        if (Config.TERMINAL_JUMP_SCROLL && more && now - mLastPublishNanos < SNAPSHOT_INTERVAL_NANOS) return;
+        mLastPublishNanos = now;
+        publishSnapshot();
+        if (mScreenUpdatePending.compareAndSet(false, true)) {
+            mMainThreadHandler.sendEmptyMessage(MSG_SCREEN_UPDATED);
+        }
+    }
+
+    /**
+     * Tell the view about new output, on the main thread. With jump scrolling, like xterm's, all output parsed
+     * until the next frame starts is reported once then, so the view scrolls straight to the final state, batching
+     * the scroll counter, instead of updating for every drain.
+     */
+    private void notifyOutput() {
+        mOutputNotifications++;
+        if (!Config.TERMINAL_JUMP_SCROLL) {
+            mFrameUpdates++;
+            notifyScreenUpdate();
+        } else if (!mFrameUpdatePosted) {
+            mFrameUpdatePosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrameUpdate);
+        }
+    }
+
+    /** The number of times new output was parsed on, or published to, the main thread. */
+    public long getOutputNotifications() {
+        return mOutputNotifications;
+    }
+
+    /** The number of screen updates that output was reported in, lower than the notifications when jump scrolling. */
+    public long getFrameUpdates() {
+        return mFrameUpdates;
+    }
+
+    /** Capture a new snapshot on the parser thread and make it the one drawn next. */
+    private void publishSnapshot() {
+        TerminalSnapshot snapshot = new TerminalSnapshot();
+        mEmulatorLock.lock();
+        try {
+            snapshot.capture(mEmulator, mSnapshotTopRow, mSnapshotGeneration.incrementAndGet());
+        } finally {
+            mEmulatorLock.unlock();
+        }
+        mPublishedSnapshot = snapshot;
+    }
+
+    /**
+     * Get the state to draw, starting at topRow. Never blocks on parsing: when parsing off the main thread this
+     * returns the last published snapshot, capturing a new one only if the emulator is not being modified, and may
+     * return null before anything has been published. Otherwise nothing is copied and the snapshot refers to the
+     * emulator's own rows, which only the main thread modifies.
+     */
+    public TerminalSnapshot getSnapshotForDrawing(int topRow) {
+        mSnapshotTopRow = topRow;
+        if (!mParseOffMainThread) {
+            mDrawSnapshot.wrap(mEmulator, topRow, mSnapshotGeneration.incrementAndGet());
+            return mDrawSnapshot;
+        }
+        TerminalSnapshot snapshot = mPublishedSnapshot;
+        if ((snapshot == null || snapshot.mTopRow != topRow) && mEmulatorLock.tryLock()) {
+            try {
+                snapshot = new TerminalSnapshot();
+                snapshot.capture(mEmulator, topRow, mSnapshotGeneration.incrementAndGet());
+                mPublishedSnapshot = snapshot;
+            } finally {
+                mEmulatorLock.unlock();
+            }
+        }
+        // If the parser held the lock it is about to publish and post MSG_SCREEN_UPDATED, which redraws.
+        return snapshot;
+    }
+
+    /** True if this session is serviced by the shared {@link TerminalIOLoop}, see {@link Config#TERMINAL_SHARED_IO_LOOP}. */
+    public boolean usesSharedIOLoop() {
+        return mUseIOLoop;
+    }
+
+    /** True if output is parsed on a dedicated thread, see {@link Config#TERMINAL_PARSE_OFF_MAIN_THREAD}. */
+    public boolean isParsingOffMainThread() {
+        return mParseOffMainThread;
+    }
+
+    /**
+     * The rows of the transcript in use, see {@link TerminalBuffer#getActiveTranscriptRows()}. Like the methods
+     * below, safe to call from the main thread while output is parsed off it.
+     */
+    public int getActiveTranscriptRows() {
+        mEmulatorLock.lock();
+        try {
+            return mEmulator.getScreen().getActiveTranscriptRows();
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** The external row of a row given by its id, see {@link TerminalBuffer#getExternalRow(long)}. */
+    public long getExternalRow(long rowId) {
+        mEmulatorLock.lock();
+        try {
+            return mEmulator.getScreen().getExternalRow(rowId);
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** The number of rows scrolled since the last call, see {@link TerminalEmulator#getScrollCounter()}. */
+    public int takeScrollCounter() {
+        mEmulatorLock.lock();
+        try {
+            int scrolled = mEmulator.getScrollCounter();
+            mEmulator.clearScrollCounter();
+            return scrolled;
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** The transcript to share, see {@link TerminalBuffer#getTranscriptTextWithoutJoinedLines()}. */
+    public String getTranscriptTextWithoutJoinedLines() {
+        mEmulatorLock.lock();
+        try {
+            return mEmulator.getScreen().getTranscriptTextWithoutJoinedLines();
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** The text between two cells given by their external rows, see {@link TerminalBuffer#getSelectedText}. */
+    public String getSelectedText(int x1, int y1, int x2, int y2) {
+        mEmulatorLock.lock();
+        try {
+            return mEmulator.getScreen().getSelectedText(x1, y1, x2, y2);
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
     /** Inform the attached pty of the new size and reflow or initialize the emulator. */
     public void updateSize(int columns, int rows, Context context) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows, context);
         } else {
-            JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
-            mEmulator.resize(columns, rows);
+            if (mReplaySource == null) {
+                synchronized (mInputWriteLock) {
+                    if (mTerminalFileDescriptor >= 0) JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
+                }
+            }
+            mEmulatorLock.lock();
+            try {
+                mEmulator.resize(columns, rows);
+                mPublishedSnapshot = null;
+            } finally {
+                mEmulatorLock.unlock();
+            }
         }
     }
 
@@ -206,43 +560,116 @@ public final class TerminalSession extends TerminalOutput {
     AtomicBoolean TermSessionOutputWriter__shell__running = new AtomicBoolean(false);
     AtomicBoolean TermSessionInputReader___logcat_running = new AtomicBoolean(false);
     AtomicBoolean logcat_restarter_running = new AtomicBoolean(false);
+    /** The reader thread of the last logcat started, null when logcat is serviced by the {@link TerminalIOLoop}. */
+    private volatile Thread mLogcatReader;
     AtomicBoolean TermSessionInputReader___log____running = new AtomicBoolean(false);
     public AtomicBoolean sessionIsAlive = new AtomicBoolean(true);
 
-    public void waitForExit() {
-        if (TermSessionInputReader___shell__running.get() || TermSessionOutputWriter__shell__running.get()) {
-            JNI.puts("waiting for shell to stop...");
-            boolean stopped = false;
-            while (!stopped)
-                if (
-                    !TermSessionInputReader___shell__running.get() &&
-                    !TermSessionOutputWriter__shell__running.get()
-                ) {
-                    JNI.puts("shell has stopped");
-                    stopped = true;
-                }
-        }
-        if (TermSessionInputReader___logcat_running.get() || logcat_restarter_running.get()) {
-            JNI.puts("waiting for logcat to stop...");
-            boolean stopped = false;
-            while (!stopped)
-                if (
-                    !TermSessionInputReader___logcat_running.get() &&
-                    !logcat_restarter_running.get()
-                ) {
-                    JNI.puts("logcat has stopped");
-                    stopped = true;
-                }
+    /**
+     * True if this session's pseudo-terminal is serviced by the shared {@link TerminalIOLoop} and its process is
+     * watched by the shared {@link ProcessReaper}, instead of by threads of its own.
+     */
+    private final boolean mUseIOLoop =
+        Config.TERMINAL_SHARED_IO_LOOP && TerminalIOLoop.getInstance().isRunning();
+    /** Channels this session has registered with the {@link TerminalIOLoop}. */
+    private final List<IOLoopChannel> mIOLoopChannels = new CopyOnWriteArrayList<>();
+    /** The channel of the shell, which input is written to. */
+    private volatile IOLoopChannel mShellChannel;
+    /** Set when the loop stopped reading because {@link #mProcessToTerminalIOQueue} was full. */
+    private final AtomicBoolean mIOLoopReadPaused = new AtomicBoolean(false);
+
+    /** Output readers currently running for this session, see {@link #stopReaders()}. */
+    private final List<PtyReader> mPtyReaders = new CopyOnWriteArrayList<>();
+    private final PtyReader.Counters mPtyReaderCounters = new PtyReader.Counters();
+
+    /** Held while deciding whether input is written directly or queued, see {@link #write(byte[], int, int)}. */
+    private final Object mInputWriteLock = new Object();
+    /** The thread writing a paste, whose input alone goes to the process until it is done, guarded by {@link #mInputWriteLock}. */
+    private Thread mPasteWriter;
+    /** Input written by other threads while {@link #mPasteWriter} is set, guarded by {@link #mInputWriteLock}. */
+    private final ByteArrayOutputStream mInputHeldForPaste = new ByteArrayOutputStream();
+    /** Input queued in {@link #mTerminalToProcessIOQueue} and not yet written to the pty. */
+    private final AtomicInteger mPendingInputBytes = new AtomicInteger();
+    /** When {@link #mPendingInputBytes} last became non-zero. */
+    private volatile long mPendingInputSinceNanos;
+    private final InputLatencyProbe mInputLatency = new InputLatencyProbe();
+
+    /** Persists the output of log and logcat sessions, shared by every restart of logcat. */
+    private volatile LogWriter mLogWriter;
+
+    /** The store directories claimed by the log writers of all sessions, see {@link #claimLogDirectory}. */
+    private static final Set<File> sOpenLogDirectories = new HashSet<>();
+
+    /** Structured records of a logcat session's output, shared by every restart of logcat, see {@link Config#LOGCAT_STRUCTURED}. */
+    private volatile LogcatRecordStore mLogcatRecords;
+    /** Filters {@link #mLogcatRecords} for the logcat filter dialog, created on first use on the main thread. */
+    private LogcatFilterEngine mLogcatFilterEngine;
+
+    /** Threads doing I/O for this session, each removes itself once done, see {@link #waitForExit(long)}. */
+    private final List<Thread> mIOThreads = new CopyOnWriteArrayList<>();
+    /** When {@link #stopReaders()} was called, 0 if it has not been. */
+    private volatile long mTeardownStartNanos;
+    /** How long the last teardown took from {@link #stopReaders()} to every I/O thread finishing, -1 if none has. */
+    private volatile long mLastTeardownNanos = -1;
+
+    /** Start a thread doing I/O for this session, tracked in {@link #mIOThreads} until it finishes. */
+    private Thread startIOThread(String name, Runnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } finally {
+                mIOThreads.remove(Thread.currentThread());
+            }
+        }, name);
+        mIOThreads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /** {@link #waitForExit(long)} with {@link Config#SESSION_TEARDOWN_TIMEOUT_MILLIS}. */
+    public boolean waitForExit() {
+        return waitForExit(Config.SESSION_TEARDOWN_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Wait, after {@link #stopReaders()}, for the I/O threads of this session to finish and for its channels to be
+     * unregistered from the {@link TerminalIOLoop}. Blocks without spinning.
+     *
+     * @return true if everything finished within timeoutMillis
+     */
+    public boolean waitForExit(long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (Thread thread : mIOThreads) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) thread.join(remaining);
+            }
+            for (IOLoopChannel channel : mIOLoopChannels) {
+                channel.awaitUnregistered(deadline - System.nanoTime());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        if (TermSessionInputReader___log____running.get()) {
-            JNI.puts("waiting for log to stop...");
-            boolean stopped = false;
-            while (!stopped)
-                if (!TermSessionInputReader___log____running.get()) {
-                    JNI.puts("log has stopped");
-                    stopped = true;
-                }
+
+        boolean stopped = mIOThreads.isEmpty() && mIOLoopChannels.isEmpty();
+        if (stopped) {
+            long start = mTeardownStartNanos;
+            if (start != 0 && mLastTeardownNanos < 0) {
+                mLastTeardownNanos = System.nanoTime() - start;
+                logUtils.log_Info("session I/O stopped in " + TimeUnit.NANOSECONDS.toMicros(mLastTeardownNanos) + " us");
+            }
+        } else {
+            logUtils.log_Warning(
+                "session I/O has not stopped after " + timeoutMillis + " ms: " + mIOThreads.size() +
+                    " threads, " + mIOLoopChannels.size() + " loop channels left"
+            );
         }
+        return stopped;
+    }
+
+    /** How long the teardown took from {@link #stopReaders()} to all I/O stopping, -1 if it has not finished. */
+    public long getLastTeardownNanos() {
+        return mLastTeardownNanos;
     }
 
     public void createShellSession(int columns, int rows) {
@@ -257,62 +684,39 @@ public final class TerminalSession extends TerminalOutput {
         final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor);
         if (terminalFileDescriptorWrapped == null) throw new NullPointerException();
 
-        new Thread("TermSessionInputReader (stdout/stderr) [pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                try (FileInputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
-                    TermSessionInputReader___shell__running.set(true);
-                    InfiniteLoop infiniteLoop = new InfiniteLoop();
-                    infiniteLoop.setSleepTimeInMicroseconds(500);
-                    infiniteLoop.loopMayThrowException(() -> sessionIsAlive.get(), () -> {
-                        if (termIn.available() != 0) {
-                            int read = termIn.read(buffer);
-                            if (read == -1) {
-                                logUtils.log_Error("stdout/stderr reader return -1");
-                                TermSessionInputReader___shell__running.set(false);
-                                return;
-                            }
-                            if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) {
-                                logUtils.log_Error("stdout/stderr reader [write] returned false (closed)");
-                                TermSessionInputReader___shell__running.set(false);
-                                return;
-                            }
-                            mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
-                        }
-                    });
-                    TermSessionInputReader___shell__running.set(false);
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
-                    TermSessionInputReader___shell__running.set(false);
-                }
-            }
-        }.start();
-
-        new Thread("TermSessionOutputWriter (stdin) [pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                final byte[] buffer = new byte[4096];
-                try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-                    TermSessionOutputWriter__shell__running.set(true);
-                    InfiniteLoop infiniteLoop = new InfiniteLoop();
-                    infiniteLoop.setSleepTimeInMicroseconds(500);
-                    infiniteLoop.loopMayThrowException(() -> sessionIsAlive.get(), () -> {
-                        int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-                        if (bytesToWrite == -1) {
-                            logUtils.log_Error("stdin writer return -1");
-                            TermSessionOutputWriter__shell__running.set(false);
-                            return;
-                        }
-                        termOut.write(buffer, 0, bytesToWrite);
-                    });
-                    TermSessionOutputWriter__shell__running.set(false);
-                } catch (Exception e) {
-                    // Ignore.
-                    TermSessionOutputWriter__shell__running.set(false);
-                }
+        startReader(
+            "TermSessionInputReader (stdout/stderr) [pid=" + mShellPid + "]",
+            mTerminalFileDescriptor, mUseIOLoop, TermSessionInputReader___shell__running, null, null
+        );
+
+        // With the shared loop, input is written by the loop thread, see write(byte[], int, int).
+        if (mUseIOLoop) return;
+
+        startIOThread("TermSessionOutputWriter (stdin) [pid=" + mShellPid + "]", () -> {
+            final byte[] buffer = new byte[4096];
+            try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
+                TermSessionOutputWriter__shell__running.set(true);
+                // The queue read blocks until input arrives, so there is nothing to wait for in between.
+                InfiniteLoop infiniteLoop = new InfiniteLoop();
+                infiniteLoop.setWaitStrategy(InfiniteLoop.WaitStrategy.BUSY_SPIN);
+                infiniteLoop.loopMayThrowException(
+                    () -> sessionIsAlive.get() && TermSessionOutputWriter__shell__running.get(), () -> {
+                    int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
+                    if (bytesToWrite == -1) {
+                        logUtils.log_Error("stdin writer return -1");
+                        TermSessionOutputWriter__shell__running.set(false);
+                        return;
+                    }
+                    termOut.write(buffer, 0, bytesToWrite);
+                    onQueuedInputWritten(bytesToWrite);
+                    infiniteLoop.markWork();
+                });
+                TermSessionOutputWriter__shell__running.set(false);
+            } catch (Exception e) {
+                // Ignore.
+                TermSessionOutputWriter__shell__running.set(false);
             }
-        }.start();
+        });
     }
 
     public void createLogSession(int columns, int rows, Context context) {
@@ -336,44 +740,12 @@ public final class TerminalSession extends TerminalOutput {
         JNI.puts("created log");
         logUtils.log_Info("created log");
 
-        new Thread("TermSessionInputReader (stdout/stderr) [log (pid=" + mShellPid + ")]") {
-            @Override
-            public void run() {
-                try (FileInputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
-                    File log = new File(Config.getDataDirectory(context) + "/native_log.txt");
-                    if (!log.exists()) log.createNewFile();
-                    if (!log.canRead()) log.setReadable(true);
-                    if (!log.canWrite()) log.setWritable(true);
-                    FileOutputStream logFile = new FileOutputStream(log);
-                    FileDescriptor logFileFileDescriptor = logFile.getFD();
-                    InfiniteLoop infiniteLoop = new InfiniteLoop();
-                    infiniteLoop.setSleepTimeInMicroseconds(500);
-                    infiniteLoop.loopMayThrowException(() -> sessionIsAlive.get(), () -> {
-                        if (termIn.available() != 0) {
-                            int read = termIn.read(buffer);
-                            if (read == -1) {
-                                logUtils.log_Error("stdout/stderr reader return -1");
-                                TermSessionInputReader___log____running.set(false);
-                                return;
-                            }
-                            logFile.write(buffer, 0, read);
-                            logFileFileDescriptor.sync();
-                            if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) {
-                                logUtils.log_Error("stdout/stderr reader [write] returned false (closed)");
-                                TermSessionInputReader___log____running.set(false);
-                                return;
-                            }
-                            mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
-                        }
-                    });
-                    TermSessionInputReader___log____running.set(false);
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
-                    TermSessionInputReader___log____running.set(false);
-                }
-            }
-        }.start();
+        startReader(
+            "TermSessionInputReader (stdout/stderr) [log (pid=" + mShellPid + ")]",
+            unwrapFileDescriptor(terminalFileDescriptorWrapped), true,
+            TermSessionInputReader___log____running,
+            openLogWriter(context, "native_log"), null
+        );
     }
 
     public void createLogcatSession(int columns, int rows, Context context) {
@@ -387,48 +759,327 @@ public final class TerminalSession extends TerminalOutput {
         JNI.puts("created Logcat");
         logUtils.log_Info("created Logcat");
 
-        final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor);
-        logUtils.errorAndThrowIfNull(terminalFileDescriptorWrapped);
+        mLogcatReader = startReader(
+            "TermSessionInputReader (stdout/stderr) [Logcat (pid=" + mShellPid + ")]",
+            mTerminalFileDescriptor, true, TermSessionInputReader___logcat_running,
+            openLogWriter(context, "logcat"),
+            Config.LOGCAT_STRUCTURED ? openLogcatRecords() : null
+        );
+    }
 
-        new Thread("TermSessionInputReader (stdout/stderr) [Logcat (pid=" + mShellPid + ")]") {
-            @Override
-            public void run() {
-                try (FileInputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
-                    File log = new File(Config.getDataDirectory(context) + "/logcat.txt");
-                    if (!log.exists()) log.createNewFile();
-                    if (!log.canRead()) log.setReadable(true);
-                    if (!log.canWrite()) log.setWritable(true);
-                    FileOutputStream logFile = new FileOutputStream(log);
-                    FileDescriptor logFileFileDescriptor = logFile.getFD();
-                    TermSessionInputReader___logcat_running.set(true);
-                    InfiniteLoop infiniteLoop = new InfiniteLoop();
-                    infiniteLoop.setSleepTimeInMicroseconds(500);
-                    infiniteLoop.loopMayThrowException(() -> sessionIsAlive.get(), () -> {
-                        if (termIn.available() != 0) {
-                            int read = termIn.read(buffer);
-                            if (read == -1) {
-                                logUtils.log_Error("stdout/stderr reader return -1");
-                                TermSessionInputReader___logcat_running.set(false);
-                                return;
-                            }
-                            logFile.write(buffer, 0, read);
-                            logFileFileDescriptor.sync();
-                            if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) {
-                                logUtils.log_Error("stdout/stderr reader [write] returned false (closed)");
-                                TermSessionInputReader___logcat_running.set(false);
-                                return;
-                            }
-                            mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
-                        }
-                    });
-                    TermSessionInputReader___logcat_running.set(false);
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
-                    TermSessionInputReader___logcat_running.set(false);
+    /** Create the store of logcat records, or return the one already created by an earlier run of logcat. */
+    private LogcatRecordStore openLogcatRecords() {
+        if (mLogcatRecords == null) {
+            mLogcatRecords = new LogcatRecordStore(Config.LOGCAT_RECORD_CAPACITY, Config.LOGCAT_MESSAGE_ARENA_CHARS);
+        }
+        return mLogcatRecords;
+    }
+
+    /** The structured records of a logcat session's output, null for other sessions. */
+    public LogcatRecordStore getLogcatRecords() {
+        return mLogcatRecords;
+    }
+
+    /** The filter over {@link #getLogcatRecords()}, null if there are none. Only to be used on the main thread. */
+    public LogcatFilterEngine getLogcatFilterEngine() {
+        final LogcatRecordStore records = mLogcatRecords;
+        if (mLogcatFilterEngine == null && records != null) mLogcatFilterEngine = new LogcatFilterEngine(records);
+        return mLogcatFilterEngine;
+    }
+
+    /**
+     * Open the writer persisting this session's output to a {@link SegmentedLogStore} of its own, or return the
+     * one already open so that a restarted logcat keeps appending to the same store. Earlier output is kept, subject
+     * to the retention limits in {@link Config}. Returns null if the store cannot be opened.
+     */
+    private LogWriter openLogWriter(Context context, String logName) {
+        if (mLogWriter != null) return mLogWriter;
+        final File directory = claimLogDirectory(context, logName);
+        try {
+            final SegmentedLogStore store = new SegmentedLogStore(
+                directory, Config.LOG_SEGMENT_BYTES, Config.LOG_RETENTION_BYTES, Config.LOG_RETENTION_MILLIS,
+                Config.LOG_COMPRESSION_BLOCK_BYTES
+            );
+            LogWriter.Target target = new LogWriter.Target() {
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    store.write(buffer, offset, length);
+                }
+
+                @Override
+                public void sync() throws IOException {
+                    store.sync();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        store.close();
+                    } finally {
+                        releaseLogDirectory(directory);
+                    }
+                }
+            };
+            mLogWriter = new LogWriter(
+                target, logName + "/" + directory.getName(), Config.LOG_DURABILITY,
+                Config.LOG_COMMIT_INTERVAL_MILLIS, Config.LOG_COMMIT_BYTES, Config.LOG_BUFFER_LIMIT
+            );
+        } catch (IOException e) {
+            releaseLogDirectory(directory);
+            logUtils.log_Error("cannot open " + directory, e);
+        }
+        return mLogWriter;
+    }
+
+    /**
+     * Claim a store directory of logName no other session in this process writes to, so that stores never
+     * truncate, expire or rewrite the manifest of each other's segments. It is keyed by the package of the tracked
+     * activity, or of this app, with a numbered suffix while another session of that package holds it.
+     */
+    private File claimLogDirectory(Context context, String logName) {
+        String source = isTrackedActivity ? trackedActivity.packageName : context.getPackageName();
+        synchronized (sOpenLogDirectories) {
+            File directory = Config.getLogDirectory(context, logName, source);
+            for (int i = 2; !sOpenLogDirectories.add(directory); i++) {
+                directory = Config.getLogDirectory(context, logName, source + "-" + i);
+            }
+            return directory;
+        }
+    }
+
+    /** Give up a directory claimed by {@link #claimLogDirectory}, once its store is closed. */
+    private static void releaseLogDirectory(File directory) {
+        synchronized (sOpenLogDirectories) {
+            sOpenLogDirectories.remove(directory);
+        }
+    }
+
+    /** Close the log writer, which writes out and syncs whatever it still buffers in the background. */
+    private void closeLogWriter() {
+        LogWriter logWriter = mLogWriter;
+        if (logWriter != null) logWriter.close();
+    }
+
+    /** The writer persisting this session's output, null for a shell. */
+    public LogWriter getLogWriter() {
+        return mLogWriter;
+    }
+
+    /**
+     * Start a thread that forwards everything read from a pseudo-terminal master to
+     * {@link #mProcessToTerminalIOQueue}, optionally copying it to a log file.
+     * <p>
+     * The thread blocks in poll(2) until output arrives, it is stopped by {@link #stopReaders()}
+     * or when the pseudo-terminal reaches end of file.
+     *
+     * @param closeOnExit true if the reader owns fd and should close it when done
+     * @param logWriter   the writer to copy output to, or null
+     * @param records     the store to parse output into, or null
+     * @return the reader thread, or null if fd is serviced by the {@link TerminalIOLoop}
+     */
+    private Thread startReader(String threadName, int fd, boolean closeOnExit, AtomicBoolean running, LogWriter logWriter, LogcatRecordStore records) {
+        if (mUseIOLoop) {
+            running.set(true);
+            IOLoopChannel channel = new IOLoopChannel(fd, closeOnExit, running, logWriter, records);
+            mIOLoopChannels.add(channel);
+            if (!isLogView) mShellChannel = channel;
+            TerminalIOLoop.getInstance().register(fd, channel);
+            return null;
+        }
+        final PtyReader reader = new PtyReader(fd, mPtyReaderCounters);
+        mPtyReaders.add(reader);
+        running.set(true);
+        return startIOThread(threadName, () -> {
+            try {
+                // Read straight into the free space of the queue, parking while it is full.
+                final ByteRingBuffer.Filler filler = (buffer, offset, length) -> {
+                    int read = reader.read(buffer, offset, length);
+                    if (read > 0 && logWriter != null) logWriter.append(buffer, offset, read);
+                    if (read > 0 && records != null) records.append(buffer, offset, read);
+                    return read;
+                };
+                while (sessionIsAlive.get()) {
+                    if (mProcessToTerminalIOQueue.write(filler, true) < 0) {
+                        logUtils.log_Error("stdout/stderr reader return -1 (end of file, error or closed)");
+                        break;
+                    }
+                    scheduleInputDrain();
                 }
+            } catch (Exception e) {
+                // Ignore, just shutting down.
+            } finally {
+                reader.close(closeOnExit);
+                mPtyReaders.remove(reader);
+                running.set(false);
             }
-        }.start();
+        });
+    }
+
+    /** Post a {@link #MSG_NEW_INPUT} unless one is already pending. */
+    void scheduleInputDrain() {
+        if (mInputDrainPending.compareAndSet(false, true)) {
+            (mParseOffMainThread ? mParserHandler : mMainThreadHandler).sendEmptyMessage(MSG_NEW_INPUT);
+        }
+    }
+
+    /** The number of output bytes parsed by the last main thread drain. */
+    public int getLastDrainBytes() {
+        return mLastDrainBytes;
+    }
+
+    /** The number of output bytes left queued after the last main thread drain. */
+    public int getLastDrainBacklog() {
+        return mLastDrainBacklog;
+    }
+
+    /** The highest number of output bytes left queued after a main thread drain. */
+    public int getMaxDrainBacklog() {
+        return mMaxDrainBacklog;
+    }
+
+    /**
+     * Mark this session as no longer alive and wake up every reader blocked in poll(2) so that it exits.
+     * <p>
+     * Use {@link #waitForExit()} afterwards to wait for the reader threads to finish.
+     */
+    public void stopReaders() {
+        if (mTeardownStartNanos == 0) mTeardownStartNanos = System.nanoTime();
+        sessionIsAlive.set(false);
+        for (PtyReader reader : mPtyReaders) reader.stop();
+        // Wakes the writer thread, which may be blocked waiting for input.
+        mTerminalToProcessIOQueue.close();
+        if (mUseIOLoop) {
+            for (IOLoopChannel channel : mIOLoopChannels) channel.unregister();
+            // The reaper keeps watching logcat so that it is reaped, but it will no longer be restarted.
+            logcat_restarter_running.set(false);
+        }
+        closeLogWriter();
+        stopParserThread();
+    }
+
+    /**
+     * Services one pseudo-terminal master on the {@link TerminalIOLoop} thread: output is forwarded to
+     * {@link #mProcessToTerminalIOQueue}, and input queued in {@link #mTerminalToProcessIOQueue} is written back.
+     * Never blocks the loop, reading is paused while the output queue is full.
+     */
+    private final class IOLoopChannel implements TerminalIOLoop.Channel {
+        private final int mFd;
+        private final boolean mCloseOnExit;
+        private final AtomicBoolean mRunning;
+        private final ByteRingBuffer.Filler mFiller = this::fill;
+        private final byte[] mWriteBuffer = new byte[4096];
+        private int mWriteOffset;
+        private int mWriteLength;
+        private final LogWriter mLogWriter;
+        private final LogcatRecordStore mRecords;
+        private final CountDownLatch mUnregistered = new CountDownLatch(1);
+
+        IOLoopChannel(int fd, boolean closeOnExit, AtomicBoolean running, LogWriter logWriter, LogcatRecordStore records) {
+            mFd = fd;
+            mCloseOnExit = closeOnExit;
+            mRunning = running;
+            mLogWriter = logWriter;
+            mRecords = records;
+        }
+
+        @Override
+        public boolean onReadable(int fd) {
+            mPtyReaderCounters.wakeups.incrementAndGet();
+            if (!sessionIsAlive.get()) return false;
+            final int free = mProcessToTerminalIOQueue.capacity() - mProcessToTerminalIOQueue.size();
+            if (free == 0) {
+                mIOLoopReadPaused.set(true);
+                TerminalIOLoop.getInstance().pauseRead(fd, this);
+                scheduleInputDrain();
+                return true;
+            }
+            // Cannot block, there is free space.
+            int read = mProcessToTerminalIOQueue.write(mFiller, false);
+            if (read == 0) return true;
+            if (read < 0) {
+                logUtils.log_Error("stdout/stderr reader return -1 (end of file, error or closed)");
+                return false;
+            }
+            scheduleInputDrain();
+            return true;
+        }
+
+        /** Read the non-blocking pty straight into the free space of the output queue. */
+        private int fill(ByteBuffer buffer, int offset, int length) {
+            int read = JNI.readInto(mFd, -1, buffer, offset, length, 0);
+            if (read <= 0) return read;
+            mPtyReaderCounters.reads.incrementAndGet();
+            mPtyReaderCounters.bytesRead.addAndGet(read);
+            if (mLogWriter != null) mLogWriter.append(buffer, offset, read);
+            if (mRecords != null) mRecords.append(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public boolean onWritable(int fd) {
+            if (mWriteLength == 0) {
+                int bytesToWrite = mTerminalToProcessIOQueue.read(mWriteBuffer, false);
+                if (bytesToWrite <= 0) return false;
+                mWriteOffset = 0;
+                mWriteLength = bytesToWrite;
+            }
+            int written = JNI.write(fd, mWriteBuffer, mWriteOffset, mWriteLength);
+            if (written < 0) {
+                logUtils.log_Error("stdin writer return -1");
+                mWriteLength = 0;
+                return false;
+            }
+            mWriteOffset += written;
+            mWriteLength -= written;
+            if (written > 0) onQueuedInputWritten(written);
+            return true;
+        }
+
+        @Override
+        public void onUnregistered(int fd) {
+            if (mCloseOnExit) closeTerminalFileDescriptor(fd);
+            mIOLoopChannels.remove(this);
+            mRunning.set(false);
+            mUnregistered.countDown();
+        }
+
+        /** Wait up to timeoutNanos for {@link #onUnregistered(int)}. */
+        void awaitUnregistered(long timeoutNanos) throws InterruptedException {
+            if (timeoutNanos > 0) mUnregistered.await(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void unregister() {
+            TerminalIOLoop.getInstance().unregister(mFd, this);
+        }
+
+        void resumeRead() {
+            TerminalIOLoop.getInstance().resumeRead(mFd, this);
+        }
+
+        void requestWrite() {
+            TerminalIOLoop.getInstance().requestWrite(mFd, this);
+        }
+    }
+
+    /** The number of times the output readers of this session have returned from poll(2). */
+    public long getReaderWakeups() {
+        return mPtyReaderCounters.wakeups.get();
+    }
+
+    /** The number of reads that returned output for this session. */
+    public long getReaderReads() {
+        return mPtyReaderCounters.reads.get();
+    }
+
+    /** The total number of output bytes read for this session. */
+    public long getReaderBytesRead() {
+        return mPtyReaderCounters.bytesRead.get();
+    }
+
+    /** The average number of bytes returned per read, 0 if nothing has been read yet. */
+    public long getReaderBytesPerRead() {
+        long reads = getReaderReads();
+        return reads == 0 ? 0 : getReaderBytesRead() / reads;
     }
 
     boolean should_exit = false;
@@ -444,7 +1095,11 @@ public final class TerminalSession extends TerminalOutput {
         mEmulator.currentFontSize = 24;
         mEmulator.appendLine("Terminal Emulator: Initializing...");
 
-        if (isLogView) {
+        if (mReplaySource != null) {
+            mEmulator.isLogView = true;
+            mEmulator.appendLine("replaying " + mReplaySource);
+            mParserHandler.post(this::runReplay);
+        } else if (isLogView) {
             // should this be true for a shell as well?
             mEmulator.isLogView = true;
             if (
@@ -453,46 +1108,288 @@ public final class TerminalSession extends TerminalOutput {
                 mShellPath.contentEquals("/sbin/magisk")
             ) {
                 createLogcatSession(columns, rows, context);
-                new Thread("TermSession[pid=" + mShellPid + "]") {
-                    @Override
-                    public void run() {
-                        logcat_restarter_running.set(true);
-                        while (sessionIsAlive.get()) {
-                            int processExitCode = JNI.waitFor(mShellPid);
-                            mEmulator.appendLine("Logcat returned " + processExitCode);
-                            if (sessionIsAlive.get()) {
-                                mEmulator.appendLine("restarting...");
-                                createLogcatSession(columns, rows, context);
-                            }
+                if (mUseIOLoop) {
+                    watchLogcat(columns, rows, context);
+                } else startIOThread("TermSession[pid=" + mShellPid + "]", () -> {
+                    logcat_restarter_running.set(true);
+                    while (sessionIsAlive.get()) {
+                        int processExitCode = JNI.waitFor(mShellPid);
+                        appendStatusLine("Logcat returned " + processExitCode);
+                        if (sessionIsAlive.get()) {
+                            appendStatusLine("restarting...");
+                            // The output queue takes a single producer, let the old reader drain logcat first.
+                            if (!joinLogcatReader()) break;
+                            createLogcatSession(columns, rows, context);
                         }
-                        logcat_restarter_running.set(false);
                     }
-                }.start();
+                    logcat_restarter_running.set(false);
+                });
             } else {
                 createLogSession(columns, rows, context);
             }
         } else {
             createShellSession(columns, rows);
-            new Thread("TermSession[pid=" + mShellPid + "]") {
+            if (mUseIOLoop) {
+                TerminalIOLoop.getInstance().getReaper().watch(mShellPid, (pid, processExitCode) -> onShellExited(processExitCode));
+            } else new Thread("TermSession[pid=" + mShellPid + "]") {
                 @Override
                 public void run() {
-                    int processExitCode = JNI.waitFor(mShellPid);
-                    mEmulator.appendLine("shell returned " + processExitCode);
-                    should_exit = true;
-                    mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+                    onShellExited(JNI.waitFor(mShellPid));
                 }
             }.start();
         }
-        mEmulator.appendLine("Terminal Emulator: Initialized");
+        // Output may already be parsed off the main thread.
+        appendStatusLine("Terminal Emulator: Initialized");
         String fmt = "emulator initialized";
         JNI.puts(fmt);
         logUtils.log_Info(fmt);
     }
 
-    /** Write data to the shell process. */
+    /**
+     * Parse the tail of {@link #mReplaySource} that fits the transcript, on the parser thread, a chunk at a time,
+     * publishing a snapshot after each chunk.
+     */
+    private void runReplay() {
+        long total = 0;
+        long replayed = 0;
+        try (MappedLogReader reader = mReplaySource.isDirectory()
+            ? new MappedLogReader(mReplaySource)
+            : new MappedLogReader(Collections.singletonList(mReplaySource))) {
+            final long start = reader.getTailOffset(mEmulator.getScreen().mTotalRows);
+            total = reader.getLength() - start;
+            final byte[] chunk = new byte[REPLAY_CHUNK_BYTES];
+            while (replayed < total && !mReplayCancelled && sessionIsAlive.get()) {
+                int count = reader.read(start + replayed, chunk, 0, (int) Math.min(chunk.length, total - replayed));
+                if (count <= 0) break;
+                mEmulatorLock.lock();
+                try {
+                    mEmulator.append(chunk, count);
+                } finally {
+                    mEmulatorLock.unlock();
+                }
+                replayed += count;
+                publishParsedOutput(replayed < total);
+                if (mReplayListener != null) {
+                    final long bytesReplayed = replayed, bytesTotal = total;
+                    mMainThreadHandler.post(() -> mReplayListener.onReplayProgress(this, bytesReplayed, bytesTotal));
+                }
+            }
+        } catch (IOException e) {
+            logUtils.log_Error("cannot replay " + mReplaySource, e);
+        }
+
+        final boolean completed = replayed == total && !mReplayCancelled;
+        mEmulatorLock.lock();
+        try {
+            mEmulator.appendLine(completed
+                ? "\r\n[Replayed " + replayed + " bytes]"
+                : "\r\n[Replay stopped after " + replayed + " of " + total + " bytes]");
+        } finally {
+            mEmulatorLock.unlock();
+        }
+        publishSnapshot();
+        mMainThreadHandler.sendEmptyMessage(MSG_SCREEN_UPDATED);
+        if (mReplayListener != null) mMainThreadHandler.post(() -> mReplayListener.onReplayFinished(this, completed));
+        // Nothing is parsed after the replay, snapshots are captured on demand from now on.
+        stopParserThread();
+    }
+
+    /** Stop a replay after the chunk being parsed, what was parsed so far stays on screen. */
+    public void cancelReplay() {
+        mReplayCancelled = true;
+    }
+
+    /**
+     * Close this replay, stopping it if it still runs, and report it finished through
+     * {@link SessionChangedCallback#onSessionFinished} so that it is removed.
+     */
+    public void closeReplay() {
+        cancelReplay();
+        mMainThreadHandler.post(() -> mChangeCallback.onSessionFinished(this));
+    }
+
+    /** True if this session replays a persisted log instead of running a process. */
+    public boolean isReplay() {
+        return mReplaySource != null;
+    }
+
+    private void onShellExited(int processExitCode) {
+        appendStatusLine("shell returned " + processExitCode);
+        should_exit = true;
+        mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+    }
+
+    /** Wait for the reader of the last logcat to finish, returns false if interrupted. */
+    private boolean joinLogcatReader() {
+        Thread reader = mLogcatReader;
+        if (reader == null) return true;
+        try {
+            reader.join();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Append a line about the session itself to the emulator, holding {@link #mEmulatorLock} as it may be called
+     * from any thread.
+     */
+    private void appendStatusLine(String line) {
+        mEmulatorLock.lock();
+        try {
+            mEmulator.appendLine(line);
+            mPublishedSnapshot = null;
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** Restart logcat through the shared {@link ProcessReaper} each time it exits, while the session is alive. */
+    private void watchLogcat(int columns, int rows, Context context) {
+        logcat_restarter_running.set(true);
+        TerminalIOLoop.getInstance().getReaper().watch(mShellPid, (pid, processExitCode) -> {
+            appendStatusLine("Logcat returned " + processExitCode);
+            if (sessionIsAlive.get()) {
+                appendStatusLine("restarting...");
+                createLogcatSession(columns, rows, context);
+                watchLogcat(columns, rows, context);
+            } else {
+                logcat_restarter_running.set(false);
+            }
+        });
+    }
+
+    /**
+     * Write data to the shell process.
+     * <p>
+     * Short writes such as keystrokes go straight to the pty with a non-blocking write when nothing is queued
+     * ahead of them, see {@link Config#TERMINAL_DIRECT_WRITE_MAX_BYTES}. Anything else, and whatever a direct
+     * write could not fit, goes through {@link #mTerminalToProcessIOQueue}, which blocks while it is full.
+     * <p>
+     * While a paste is waiting or being written, input from any other thread is held back until it is done, so that
+     * keystrokes never end up inside or ahead of the paste.
+     */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (!isLogView) if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        if (!isLogView) if (mShellPid > 0) {
+            final long start = System.nanoTime();
+            synchronized (mInputWriteLock) {
+                if (mPasteWriter != Thread.currentThread() && (mPasteWriter != null || !mPastes.isEmpty())) {
+                    mInputHeldForPaste.write(data, offset, count);
+                    return;
+                }
+                // Queued input has to reach the pty first, and only the queue writer writes while some is pending.
+                boolean direct = count <= Config.TERMINAL_DIRECT_WRITE_MAX_BYTES && mPendingInputBytes.get() == 0;
+                if (direct && sessionIsAlive.get() && mTerminalFileDescriptor >= 0) {
+                    int written = JNI.writeNonBlocking(mTerminalFileDescriptor, data, offset, count);
+                    if (written > 0) {
+                        offset += written;
+                        count -= written;
+                    }
+                    if (count == 0) {
+                        mInputLatency.record(System.nanoTime() - start, true);
+                        return;
+                    }
+                }
+                if (mPendingInputBytes.getAndAdd(count) == 0) mPendingInputSinceNanos = start;
+                mTerminalToProcessIOQueue.write(data, offset, count);
+            }
+            IOLoopChannel shellChannel = mShellChannel;
+            if (shellChannel != null) shellChannel.requestWrite();
+        }
+    }
+
+    /**
+     * Paste text as {@link TerminalEmulator#paste(String)} does. The paste is written from a background thread,
+     * {@link Config#TERMINAL_PASTE_CHUNK_BYTES} at a time as the input queue has room for it, so that it never blocks
+     * the calling thread, and after any paste before it. The listener, which may be null, is called on the main thread.
+     */
+    public StreamingPaste paste(CharSequence text, StreamingPaste.Listener listener) {
+        final StreamingPaste paste = new StreamingPaste(text, mEmulator.isBracketedPasteMode(), listener == null ? null : new StreamingPaste.Listener() {
+            @Override
+            public void onPasteProgress(StreamingPaste paste, int charsPasted, int charsTotal) {
+                mMainThreadHandler.post(() -> listener.onPasteProgress(paste, charsPasted, charsTotal));
+            }
+
+            @Override
+            public void onPasteFinished(StreamingPaste paste, boolean completed) {
+                mMainThreadHandler.post(() -> listener.onPasteFinished(paste, completed));
+            }
+        });
+        final StreamingPaste.Output output = new StreamingPaste.Output() {
+            @Override
+            public boolean awaitSpace(StreamingPaste paste, int count) {
+                // Wait for room outside of the write lock, so that keystrokes are not held up behind the paste.
+                final int needed = Math.min(count, mTerminalToProcessIOQueue.capacity());
+                while (mTerminalToProcessIOQueue.capacity() - mTerminalToProcessIOQueue.size() < needed) {
+                    if (paste.isCancelled() || !sessionIsAlive.get()) return false;
+                    LockSupport.parkNanos(PASTE_POLL_NANOS);
+                }
+                return sessionIsAlive.get();
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int count) {
+                TerminalSession.this.write(data, offset, count);
+            }
+        };
+        synchronized (mPastes) {
+            if (mPaster == null) {
+                mPaster = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "TermSessionPaster [" + mHandle + "]");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        synchronized (mInputWriteLock) {
+            mPastes.add(paste);
+        }
+        mPaster.execute(() -> runPaste(paste, output));
+        return paste;
+    }
+
+    /**
+     * Write a paste on the calling thread, holding back input from other threads until it is done and then writing
+     * that input after it, ahead of the next paste.
+     */
+    private void runPaste(StreamingPaste paste, StreamingPaste.Output output) {
+        synchronized (mInputWriteLock) {
+            mPasteWriter = Thread.currentThread();
+        }
+        try {
+            paste.run(output, Config.TERMINAL_PASTE_CHUNK_BYTES);
+        } finally {
+            synchronized (mInputWriteLock) {
+                if (mInputHeldForPaste.size() > 0) {
+                    byte[] held = mInputHeldForPaste.toByteArray();
+                    mInputHeldForPaste.reset();
+                    // Still the paste writer and holding the lock, so the held input goes ahead of any written later.
+                    write(held, 0, held.length);
+                }
+                mPasteWriter = null;
+                mPastes.remove(paste);
+            }
+        }
+    }
+
+    /** Cancel the pastes not yet finished. */
+    public void cancelPastes() {
+        for (StreamingPaste paste : mPastes) paste.cancel();
+    }
+
+    /** Account for queued input written to the pty, recording the latency once the queue has drained. */
+    private void onQueuedInputWritten(int count) {
+        if (mPendingInputBytes.addAndGet(-count) == 0) {
+            mInputLatency.record(System.nanoTime() - mPendingInputSinceNanos, false);
+        }
+    }
+
+    /** Keystroke to pty latency of this session. */
+    public InputLatencyProbe getInputLatency() {
+        return mInputLatency;
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -541,14 +1438,87 @@ public final class TerminalSession extends TerminalOutput {
         mChangeCallback.onTextChanged(this);
     }
 
+    /**
+     * Find text in the transcript and on the screen of the emulator, see
+     * {@link TranscriptIndex#search(String, boolean, int)}. Safe to call from the main thread while output is parsed
+     * off it.
+     */
+    public List<TranscriptIndex.Match> searchTranscript(String text, boolean ignoreCase, int maxMatches) {
+        mEmulatorLock.lock();
+        try {
+            return mEmulator.getScreen().getTranscriptIndex().search(text, ignoreCase, maxMatches);
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** The URLs in the transcript and on the screen of the emulator, oldest first, see {@link TranscriptUrlIndex}. */
+    public List<TranscriptUrlIndex.Url> getTranscriptUrls() {
+        mEmulatorLock.lock();
+        try {
+            return mEmulator.getScreen().getUrlIndex().getUrls();
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /** The URL covering a cell given by its external row, null if there is none. */
+    public TranscriptUrlIndex.Url findUrlAt(int externalRow, int column) {
+        mEmulatorLock.lock();
+        try {
+            final TerminalBuffer screen = mEmulator.getScreen();
+            if (externalRow < -screen.getActiveTranscriptRows() || externalRow >= mEmulator.mRows) return null;
+            return screen.getUrlIndex().findUrlAt(externalRow, column);
+        } finally {
+            mEmulatorLock.unlock();
+        }
+    }
+
+    /**
+     * Search the transcript and screen of the emulator for a pattern on a worker thread, cancelling the last such
+     * search. The listener is called on the main thread, and not with matches once the search is cancelled.
+     */
+    public TranscriptRegexSearch searchTranscript(Pattern pattern, TranscriptRegexSearch.Listener listener) {
+        cancelTranscriptSearch();
+        mRegexSearch = new TranscriptRegexSearch(mEmulator, mEmulatorLock, pattern, new TranscriptRegexSearch.Listener() {
+            @Override
+            public void onMatches(TranscriptRegexSearch search, List<TranscriptIndex.Match> matches) {
+                mMainThreadHandler.post(() -> {
+                    if (!search.isCancelled()) listener.onMatches(search, matches);
+                });
+            }
+
+            @Override
+            public void onSearchFinished(TranscriptRegexSearch search, boolean completed) {
+                mMainThreadHandler.post(() -> listener.onSearchFinished(search, completed));
+            }
+        });
+        mRegexSearch.start();
+        return mRegexSearch;
+    }
+
+    /** Cancel the running regex search of the transcript, if any. */
+    public void cancelTranscriptSearch() {
+        if (mRegexSearch != null) mRegexSearch.cancel();
+    }
+
     /** Reset state for terminal emulator state. */
     public void reset(boolean erase) {
-        mEmulator.reset(erase);
+        mEmulatorLock.lock();
+        try {
+            mEmulator.reset(erase);
+            mPublishedSnapshot = null;
+        } finally {
+            mEmulatorLock.unlock();
+        }
         notifyScreenUpdate();
     }
 
-    /** Finish this terminal session by sending SIGKILL to the shell. */
+    /** Finish this terminal session by sending SIGKILL to the shell, or by stopping its replay. */
     public void finishIfRunning() {
+        cancelReplay();
+        cancelPastes();
+        cancelTranscriptSearch();
         if (isRunning()) {
             if (!isLogView) {
                 try {
@@ -572,7 +1542,28 @@ public final class TerminalSession extends TerminalOutput {
         // Stop the reader and writer threads, and close the I/O streams
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
-        JNI.close(mTerminalFileDescriptor);
+        if (mUseIOLoop) {
+            // The loop closes the file descriptor once it is unregistered.
+            IOLoopChannel shellChannel = mShellChannel;
+            if (shellChannel != null) shellChannel.unregister();
+        } else {
+            closeTerminalFileDescriptor(mTerminalFileDescriptor);
+        }
+        closeLogWriter();
+        stopParserThread();
+    }
+
+    /**
+     * Close fd. If it is {@link #mTerminalFileDescriptor} the field is set to -1 first, under
+     * {@link #mInputWriteLock}, so that {@link #write(byte[], int, int)} and {@link #updateSize(int, int, Context)}
+     * can not reach the number once the kernel is free to hand it out again.
+     */
+    void closeTerminalFileDescriptor(int fd) {
+        if (fd < 0) return;
+        synchronized (mInputWriteLock) {
+            if (mTerminalFileDescriptor == fd) mTerminalFileDescriptor = -1;
+            JNI.close(fd);
+        }
     }
 
     @Override
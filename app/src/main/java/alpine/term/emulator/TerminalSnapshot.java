@@ -0,0 +1,116 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import alpine.term.LogUtils;
+
+/**
+ * A copy of the rows and cursor state of a {@link TerminalEmulator} needed to draw one frame.
+ * <p>
+ * Captured snapshots let the renderer draw without touching the emulator, so that output can be parsed on another
+ * thread while a frame is drawn. When output is parsed on the drawing thread a snapshot instead wraps the emulator's
+ * rows, see {@link #wrap(TerminalEmulator, int, long)}. Each snapshot is stamped with a generation that increases with
+ * every capture.
+ */
+public final class TerminalSnapshot {
+
+    LogUtils logUtils = new LogUtils("Terminal Snapshot");
+
+    /** Increases each time the snapshot is captured. */
+    public long mGeneration;
+    /** The external row of the first captured row, 0 is the top of the screen, negative rows are in the transcript. */
+    public int mTopRow;
+    /** The row id of the first captured row, see {@link TerminalBuffer#getRowId(int)}. */
+    public long mTopRowId;
+    public int mRows, mColumns;
+    public int mCursorRow, mCursorCol, mCursorStyle;
+    public boolean mCursorVisible, mReverseVideo;
+    public final int[] mPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+
+    private TerminalRow[] mLines = new TerminalRow[0];
+    /** True if {@link #mLines} are the emulator's own rows, see {@link #wrap(TerminalEmulator, int, long)}. */
+    private boolean mSharesRows;
+
+    /** Get a captured row by its external row index, which must be within [mTopRow, mTopRow + mRows). */
+    public TerminalRow getRow(int externalRow) {
+        return mLines[externalRow - mTopRow];
+    }
+
+    /**
+     * Copy the rows starting at topRow and the cursor and color state out of an emulator, reusing this snapshot's
+     * storage where possible. The caller must make sure the emulator is not being modified concurrently.
+     */
+    public void capture(TerminalEmulator emulator, int topRow, long generation) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final int rows = emulator.mRows;
+        final int columns = emulator.mColumns;
+        topRow = Math.max(-screen.getActiveTranscriptRows(), Math.min(0, topRow));
+
+        // Never copy into rows borrowed from the emulator by wrap().
+        if (mSharesRows || mLines.length != rows || columns != mColumns) {
+            mLines = new TerminalRow[rows];
+            for (int i = 0; i < rows; i++) mLines[i] = new TerminalRow(columns, TextStyle.NORMAL);
+            mSharesRows = false;
+        }
+        for (int i = 0; i < rows; i++) {
+            mLines[i].copyFrom(screen.allocateFullLineIfNecessary(screen.externalToInternalRow(topRow + i)));
+        }
+        captureState(emulator, topRow, generation);
+    }
+
+    /**
+     * Refer to the rows starting at topRow of an emulator instead of copying them, for drawing on the thread that
+     * modifies the emulator. The snapshot is only valid until the emulator is next modified.
+     */
+    public void wrap(TerminalEmulator emulator, int topRow, long generation) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final int rows = emulator.mRows;
+        topRow = Math.max(-screen.getActiveTranscriptRows(), Math.min(0, topRow));
+
+        if (!mSharesRows || mLines.length != rows) {
+            mLines = new TerminalRow[rows];
+            mSharesRows = true;
+        }
+        for (int i = 0; i < rows; i++) {
+            mLines[i] = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(topRow + i));
+        }
+        captureState(emulator, topRow, generation);
+    }
+
+    private void captureState(TerminalEmulator emulator, int topRow, long generation) {
+        final TerminalBuffer screen = emulator.getScreen();
+        final int rows = emulator.mRows;
+        final int columns = emulator.mColumns;
+        mGeneration = generation;
+        mTopRow = topRow;
+        mTopRowId = screen.getRowId(topRow);
+        mRows = rows;
+        mColumns = columns;
+        mCursorRow = emulator.getCursorRow();
+        mCursorCol = emulator.getCursorCol();
+        mCursorStyle = emulator.getCursorStyle();
+        mCursorVisible = emulator.isShowingCursor();
+        mReverseVideo = emulator.isReverseVideo();
+        System.arraycopy(emulator.mColors.mCurrentColors, 0, mPalette, 0, mPalette.length);
+    }
+}
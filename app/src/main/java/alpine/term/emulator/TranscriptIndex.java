@@ -0,0 +1,384 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import alpine.term.LogUtils;
+
+/**
+ * A full-text index over the transcript of a {@link TerminalBuffer}, for substring search over a long scroll back.
+ * <p>
+ * Rows are identified by row ids which count the rows scrolled off the top of the screen, see
+ * {@link TerminalBuffer#getRowId(int)}, so a row keeps its id while it moves up the screen and through the
+ * transcript. The index maps each trigram (three consecutive chars, lower cased) of a transcript row to the blocks
+ * of {@link #ROWS_PER_BLOCK} rows containing it, in increasing order. Rows are indexed as they are found in the
+ * transcript on the next search, and postings of rows the ring buffer has evicted are dropped as the lists they are
+ * in grow. A search intersects the postings of the trigrams of the text searched for and only reads the rows of the
+ * blocks left, plus the rows of the screen, which change too often to be indexed.
+ * <p>
+ * Matches do not span rows, so text broken over a wrapped line is not found. Not thread safe, search with the lock
+ * on the emulator held.
+ */
+public final class TranscriptIndex {
+
+    LogUtils logUtils = new LogUtils("Transcript Index");
+
+    /** A match of a search, from {@link #startColumn} up to but not including {@link #endColumn}. */
+    public static final class Match {
+        /** The id of the row, see {@link TerminalBuffer#getRowId(int)}. */
+        public final long rowId;
+        /** The external row at the time of the search, see {@link TerminalBuffer#externalToInternalRow(int)}. */
+        public final int row;
+        public final int startColumn, endColumn;
+
+        Match(long rowId, int row, int startColumn, int endColumn) {
+            this.rowId = rowId;
+            this.row = row;
+            this.startColumn = startColumn;
+            this.endColumn = endColumn;
+        }
+
+        @Override
+        public String toString() {
+            return "Match[row=" + row + ", columns=" + startColumn + ".." + endColumn + "]";
+        }
+    }
+
+    /** Rows sharing a posting, so that similar adjacent rows such as log lines take less memory. */
+    static final int ROWS_PER_BLOCK = 8;
+    private static final int BLOCK_SHIFT = 3;
+
+    private final TerminalBuffer mBuffer;
+
+    /** Open addressing table of trigram + 1 to list, 0 for a free slot. */
+    private long[] mKeys = new long[1024];
+    private int[] mListIds = new int[1024];
+    private int mListCount;
+    /** Postings, the blocks containing each trigram from the list's start up to its end. */
+    private int[][] mLists = new int[256][];
+    private int[] mListStarts = new int[256];
+    private int[] mListEnds = new int[256];
+
+    /** The id of the next row to index. */
+    private long mIndexedTo;
+    /** Rows indexed since all lists were last rid of evicted postings. */
+    private long mIndexedSinceSweep;
+
+    private char[] mFolded = new char[256];
+
+    TranscriptIndex(TerminalBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /** Forget everything indexed, for when the transcript has been replaced. */
+    void clear() {
+        Arrays.fill(mKeys, 0);
+        Arrays.fill(mLists, 0, mListCount, null);
+        mListCount = 0;
+        mIndexedTo = 0;
+        mIndexedSinceSweep = 0;
+    }
+
+    /** Forget rows from this row id on, for when they have left the transcript and may change. */
+    void truncate(long rowId) {
+        if (rowId >= mIndexedTo) return;
+        // Blocks are kept whole, the rows of a block which are gone are skipped when searching it.
+        final int block = (int) ((rowId + ROWS_PER_BLOCK - 1) >> BLOCK_SHIFT);
+        for (int list = 0; list < mListCount; list++) {
+            final int[] postings = mLists[list];
+            int end = mListEnds[list];
+            while (end > mListStarts[list] && postings[end - 1] >= block) end--;
+            mListEnds[list] = end;
+        }
+        mIndexedTo = rowId;
+    }
+
+    /** Index the rows which entered the transcript since the last call. */
+    void update() {
+        final TerminalBuffer buffer = mBuffer;
+        final long screenRowId = buffer.getRowId(0);
+        final long firstRowId = buffer.getRowId(-buffer.getActiveTranscriptRows());
+        if (mIndexedTo < firstRowId) mIndexedTo = firstRowId;
+        for (long rowId = mIndexedTo; rowId < screenRowId; rowId++) {
+            final TerminalRow row = buffer.mLines[buffer.externalToInternalRow((int) (rowId - screenRowId))];
+            if (row != null) indexRow(row, (int) (rowId >> BLOCK_SHIFT), (int) (firstRowId >> BLOCK_SHIFT));
+        }
+        mIndexedSinceSweep += screenRowId - mIndexedTo;
+        mIndexedTo = screenRowId;
+        if (mIndexedSinceSweep > buffer.mTotalRows) sweep((int) (firstRowId >> BLOCK_SHIFT));
+    }
+
+    private void indexRow(TerminalRow row, int block, int firstBlock) {
+        final char[] text = row.mText;
+        int length = row.getSpaceUsed();
+        while (length > 0 && text[length - 1] == ' ') length--;
+        if (length < 3) return;
+        long key = ((long) fold(text[0]) << 16) | fold(text[1]);
+        for (int i = 2; i < length; i++) {
+            key = ((key << 16) | fold(text[i])) & 0xFFFFFFFFFFFFL;
+            final int list = listOf(key, true);
+            final int end = mListEnds[list];
+            if (end > mListStarts[list] && mLists[list][end - 1] == block) continue;
+            if (end == mLists[list].length) makeRoom(list, firstBlock);
+            mLists[list][mListEnds[list]++] = block;
+        }
+    }
+
+    private static char fold(char c) {
+        return c < 128 ? (c >= 'A' && c <= 'Z' ? (char) (c + 32) : c) : Character.toLowerCase(c);
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** The list of a trigram, -1 if there is none and create is false. */
+    private int listOf(long key, boolean create) {
+        final long stored = key + 1;
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != 0) {
+            if (mKeys[slot] == stored) return mListIds[slot];
+            slot = (slot + 1) & mask;
+        }
+        if (!create) return -1;
+        if (mListCount == mLists.length) {
+            final int capacity = mLists.length * 2;
+            mLists = Arrays.copyOf(mLists, capacity);
+            mListStarts = Arrays.copyOf(mListStarts, capacity);
+            mListEnds = Arrays.copyOf(mListEnds, capacity);
+        }
+        final int list = mListCount++;
+        mLists[list] = new int[4];
+        mListStarts[list] = mListEnds[list] = 0;
+        mKeys[slot] = stored;
+        mListIds[slot] = list;
+        if (mListCount * 2 > mKeys.length) rehash(mKeys.length * 2);
+        return list;
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final int[] listIds = mListIds;
+        mKeys = new long[capacity];
+        mListIds = new int[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 0) continue;
+            int slot = hash(keys[i] - 1) & mask;
+            while (mKeys[slot] != 0) slot = (slot + 1) & mask;
+            mKeys[slot] = keys[i];
+            mListIds[slot] = listIds[i];
+        }
+    }
+
+    /** Make room at the end of a full list, dropping evicted postings before growing it. */
+    private void makeRoom(int list, int firstBlock) {
+        int[] postings = mLists[list];
+        int start = mListStarts[list];
+        final int end = mListEnds[list];
+        while (start < end && postings[start] < firstBlock) start++;
+        final int count = end - start;
+        if (count * 2 > postings.length) postings = mLists[list] = Arrays.copyOf(postings, postings.length * 2);
+        System.arraycopy(postings, start, postings, 0, count);
+        mListStarts[list] = 0;
+        mListEnds[list] = count;
+    }
+
+    /** Drop evicted postings from every list, and the lists left empty. */
+    private void sweep(int firstBlock) {
+        int live = 0;
+        for (int list = 0; list < mListCount; list++) {
+            final int[] postings = mLists[list];
+            int start = mListStarts[list];
+            final int end = mListEnds[list];
+            while (start < end && postings[start] < firstBlock) start++;
+            mListStarts[list] = start;
+            if (start < end) live++;
+        }
+        mIndexedSinceSweep = 0;
+        if (live * 2 > mListCount) return;
+
+        // Most trigrams are gone from the transcript, rebuild the table with the remaining ones.
+        final long[] keys = mKeys;
+        final int[] listIds = mListIds;
+        final int[][] lists = mLists;
+        final int[] starts = mListStarts, ends = mListEnds;
+        int capacity = 1024;
+        while (capacity < live * 4) capacity *= 2;
+        mKeys = new long[capacity];
+        mListIds = new int[capacity];
+        mLists = new int[Math.max(256, live * 2)][];
+        mListStarts = new int[mLists.length];
+        mListEnds = new int[mLists.length];
+        mListCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 0) continue;
+            final int old = listIds[i];
+            if (starts[old] == ends[old]) continue;
+            final int list = listOf(keys[i] - 1, true);
+            mLists[list] = Arrays.copyOfRange(lists[old], starts[old], Math.max(ends[old], starts[old] + 4));
+            mListEnds[list] = ends[old] - starts[old];
+        }
+    }
+
+    /**
+     * Find text in the transcript and on the screen.
+     *
+     * @param text       the text to find, matched within rows
+     * @param ignoreCase whether to ignore the case of letters
+     * @param maxMatches the most matches to return, the oldest are returned first
+     * @return the matches, from the oldest row down to the bottom of the screen
+     */
+    public List<Match> search(String text, boolean ignoreCase, int maxMatches) {
+        final List<Match> matches = new ArrayList<>();
+        if (text.isEmpty() || maxMatches <= 0) return matches;
+        update();
+
+        final char[] needle = text.toCharArray();
+        if (ignoreCase) for (int i = 0; i < needle.length; i++) needle[i] = fold(needle[i]);
+
+        final TerminalBuffer buffer = mBuffer;
+        final long screenRowId = buffer.getRowId(0);
+        final long firstRowId = buffer.getRowId(-buffer.getActiveTranscriptRows());
+        if (needle.length < 3) {
+            for (long rowId = firstRowId; rowId < screenRowId && matches.size() < maxMatches; rowId++) {
+                searchRow(rowId, needle, ignoreCase, maxMatches, matches);
+            }
+        } else {
+            searchBlocks(firstRowId, screenRowId, needle, ignoreCase, maxMatches, matches);
+        }
+        for (long rowId = screenRowId; rowId < screenRowId + buffer.mScreenRows && matches.size() < maxMatches; rowId++) {
+            searchRow(rowId, needle, ignoreCase, maxMatches, matches);
+        }
+        return matches;
+    }
+
+    /** Search the transcript rows of the blocks with every trigram of the needle. */
+    private void searchBlocks(long firstRowId, long endRowId, char[] needle, boolean ignoreCase, int maxMatches,
+                              List<Match> matches) {
+        final int trigrams = needle.length - 2;
+        final int[] lists = new int[trigrams];
+        final int[] cursors = new int[trigrams];
+        final int firstBlock = (int) (firstRowId >> BLOCK_SHIFT);
+        for (int i = 0; i < trigrams; i++) {
+            final long key = ((long) fold(needle[i]) << 32) | ((long) fold(needle[i + 1]) << 16) | fold(needle[i + 2]);
+            final int list = listOf(key, false);
+            if (list < 0) return;
+            lists[i] = list;
+            cursors[i] = skipTo(list, mListStarts[list], firstBlock);
+        }
+        // Drive the intersection from the shortest list.
+        int shortest = 0;
+        for (int i = 1; i < trigrams; i++) {
+            if (mListEnds[lists[i]] - cursors[i] < mListEnds[lists[shortest]] - cursors[shortest]) shortest = i;
+        }
+        final int[] driver = mLists[lists[shortest]];
+        final int driverEnd = mListEnds[lists[shortest]];
+        for (int d = cursors[shortest]; d < driverEnd && matches.size() < maxMatches; d++) {
+            final int block = driver[d];
+            boolean inAll = true;
+            for (int i = 0; i < trigrams && inAll; i++) {
+                if (i == shortest) continue;
+                final int list = lists[i];
+                cursors[i] = skipTo(list, cursors[i], block);
+                inAll = cursors[i] < mListEnds[list] && mLists[list][cursors[i]] == block;
+            }
+            if (!inAll) continue;
+            final long blockStart = Math.max(firstRowId, (long) block << BLOCK_SHIFT);
+            final long blockEnd = Math.min(endRowId, ((long) block + 1) << BLOCK_SHIFT);
+            for (long rowId = blockStart; rowId < blockEnd && matches.size() < maxMatches; rowId++) {
+                searchRow(rowId, needle, ignoreCase, maxMatches, matches);
+            }
+        }
+    }
+
+    /** The first position from from on of a list with a block at or after block, by galloping. */
+    private int skipTo(int list, int from, int block) {
+        final int[] postings = mLists[list];
+        final int end = mListEnds[list];
+        if (from >= end || postings[from] >= block) return from;
+        int step = 1, low = from;
+        while (low + step < end && postings[low + step] < block) {
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(low + step, end);
+        // postings[low] < block, and high is end or has postings[high] >= block.
+        while (high - low > 1) {
+            final int middle = (low + high) >>> 1;
+            if (postings[middle] < block) low = middle;
+            else high = middle;
+        }
+        return high;
+    }
+
+    /** Add the matches of the needle in a row, without overlapping. */
+    private void searchRow(long rowId, char[] needle, boolean ignoreCase, int maxMatches, List<Match> matches) {
+        final int externalRow = (int) (rowId - mBuffer.getRowId(0));
+        final TerminalRow row = mBuffer.mLines[mBuffer.externalToInternalRow(externalRow)];
+        if (row == null) return;
+        final int length = row.getSpaceUsed();
+        char[] text = row.mText;
+        if (ignoreCase) {
+            if (mFolded.length < length) mFolded = new char[text.length];
+            for (int i = 0; i < length; i++) mFolded[i] = fold(text[i]);
+            text = mFolded;
+        }
+        final char first = needle[0];
+        for (int i = 0, last = length - needle.length; i <= last && matches.size() < maxMatches; i++) {
+            if (text[i] != first) continue;
+            int j = 1;
+            while (j < needle.length && text[i + j] == needle[j]) j++;
+            if (j < needle.length) continue;
+            final int startColumn = columnOf(row, i);
+            matches.add(new Match(rowId, externalRow, startColumn, startColumn + columnOf(row, i, i + needle.length)));
+            i += needle.length - 1;
+        }
+    }
+
+    /** The column of the char at an index of a row. */
+    private static int columnOf(TerminalRow row, int index) {
+        return columnOf(row, 0, index);
+    }
+
+    /** The number of columns taken by the chars of a row from start up to end. */
+    static int columnOf(TerminalRow row, int start, int end) {
+        final char[] text = row.mText;
+        int columns = 0;
+        for (int i = start; i < end; ) {
+            final char c = text[i++];
+            if (c < 0x300) {
+                columns++;
+                continue;
+            }
+            final int codePoint = Character.isHighSurrogate(c) && i < end ? Character.toCodePoint(c, text[i++]) : c;
+            columns += Math.max(0, WcWidth.width(codePoint));
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import alpine.term.LogUtils;
+
+/**
+ * A regular expression search of the transcript and screen of a {@link TerminalEmulator}, run on a worker thread
+ * and reporting matches as they are found, oldest first.
+ * <p>
+ * The worker holds the emulator lock only while it copies the next {@link #ROWS_PER_LOCK} rows, and matches
+ * each copied row through a {@link CharSequence} view of its text, so the transcript is never joined into a string
+ * and a slow pattern never keeps output from being parsed. Rows are followed by row id, see
+ * {@link TerminalBuffer#getRowId(int)}, so output arriving during the search only moves the end of it, and rows
+ * evicted before the worker reaches them are skipped. Matches do not span rows.
+ */
+public final class TranscriptRegexSearch {
+
+    LogUtils logUtils = new LogUtils("Transcript Regex Search");
+
+    /** Called on the worker thread. */
+    public interface Listener {
+        /** Matches found in the last rows searched, in the order of the rows. */
+        void onMatches(TranscriptRegexSearch search, List<TranscriptIndex.Match> matches);
+
+        /** @param completed false if the search was cancelled or the screen switched buffers */
+        void onSearchFinished(TranscriptRegexSearch search, boolean completed);
+    }
+
+    /** The most rows copied per hold of the emulator lock. */
+    static final int ROWS_PER_LOCK = 64;
+
+    private final TerminalEmulator mEmulator;
+    private final ReentrantLock mEmulatorLock;
+    private final Pattern mPattern;
+    private final Listener mListener;
+    private volatile boolean mCancelled;
+
+    private TerminalRow[] mRows = new TerminalRow[0];
+    private int mRowColumns;
+
+    /**
+     * @param emulatorLock held while the emulator is modified, see {@link TerminalSession#mEmulatorLock}
+     */
+    TranscriptRegexSearch(TerminalEmulator emulator, ReentrantLock emulatorLock, Pattern pattern, Listener listener) {
+        mEmulator = emulator;
+        mEmulatorLock = emulatorLock;
+        mPattern = pattern;
+        mListener = listener;
+    }
+
+    /** Start searching on a new thread. */
+    void start() {
+        Thread thread = new Thread(this::run, "TermRegexSearch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the search, even in the middle of matching a row. No matches are reported after this returns. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public Pattern getPattern() {
+        return mPattern;
+    }
+
+    /** Search on the calling thread. */
+    void run() {
+        final RowText text = new RowText();
+        final Matcher matcher = mPattern.matcher(text);
+        TerminalBuffer buffer = null;
+        long rowId = Long.MIN_VALUE;
+        boolean completed = false;
+        try {
+            while (!mCancelled) {
+                final int count;
+                final int firstExternalRow;
+                mEmulatorLock.lock();
+                try {
+                    final TerminalBuffer screen = mEmulator.getScreen();
+                    if (buffer == null) buffer = screen;
+                    else if (screen != buffer) break;
+                    rowId = Math.max(rowId, buffer.getRowId(-buffer.getActiveTranscriptRows()));
+                    count = (int) Math.min(ROWS_PER_LOCK, buffer.getRowId(buffer.mScreenRows) - rowId);
+                    if (count <= 0) {
+                        completed = true;
+                        break;
+                    }
+                    firstExternalRow = (int) buffer.getExternalRow(rowId);
+                    copyRows(buffer, firstExternalRow, count);
+                } finally {
+                    mEmulatorLock.unlock();
+                }
+
+                List<TranscriptIndex.Match> matches = null;
+                for (int i = 0; i < count; i++) {
+                    final TerminalRow row = mRows[i];
+                    text.reset(row);
+                    matcher.reset(text);
+                    while (matcher.find()) {
+                        if (matcher.start() == matcher.end()) continue;
+                        if (matches == null) matches = new ArrayList<>();
+                        final int startColumn = TranscriptIndex.columnOf(row, 0, matcher.start());
+                        matches.add(new TranscriptIndex.Match(rowId + i, firstExternalRow + i, startColumn,
+                            startColumn + TranscriptIndex.columnOf(row, matcher.start(), matcher.end())));
+                    }
+                }
+                rowId += count;
+                if (matches != null && !mCancelled) mListener.onMatches(this, matches);
+            }
+        } catch (CancellationException e) {
+            // Cancelled while matching a row.
+        }
+        mListener.onSearchFinished(this, completed && !mCancelled);
+    }
+
+    /** Copy rows out of the buffer, with the emulator lock held. */
+    private void copyRows(TerminalBuffer buffer, int firstExternalRow, int count) {
+        if (mRowColumns != buffer.mColumns || mRows.length < count) {
+            mRowColumns = buffer.mColumns;
+            mRows = new TerminalRow[ROWS_PER_LOCK];
+            for (int i = 0; i < mRows.length; i++) mRows[i] = new TerminalRow(mRowColumns, TextStyle.NORMAL);
+        }
+        for (int i = 0; i < count; i++) {
+            mRows[i].copyFrom(buffer.allocateFullLineIfNecessary(buffer.externalToInternalRow(firstExternalRow + i)));
+        }
+    }
+
+    /**
+     * The text of a row without trailing blanks, so that $ matches where the visible text ends. Checks now and then
+     * whether the search was cancelled, which is how a pattern that backtracks for long is stopped.
+     */
+    private final class RowText implements CharSequence {
+        private char[] mText;
+        private int mLength;
+        private int mReads;
+
+        void reset(TerminalRow row) {
+            mText = row.mText;
+            int length = row.getSpaceUsed();
+            while (length > 0 && mText[length - 1] == ' ') length--;
+            mLength = length;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++mReads & 0xFFFF) == 0 && mCancelled) throw new CancellationException();
+            if (index >= mLength) throw new IndexOutOfBoundsException("index=" + index + ", length=" + mLength);
+            return mText[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mText, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mText, 0, mLength);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import alpine.term.LogUtils;
+
+/**
+ * The URLs in the transcript and on the screen of a {@link TerminalBuffer}, found once per row.
+ * <p>
+ * Rows are scanned a line at a time, a line being a run of rows joined by {@link TerminalRow#mLineWrap}, so that
+ * URLs wrapped over several rows are found whole. Transcript lines are scanned when a lookup finds them new, and
+ * the URLs found are kept, in order, until the ring buffer evicts their first row. Lines reaching the screen, whose
+ * rows may still change, are scanned on every lookup. Lines without "://" are never matched against
+ * {@link #URL_PATTERN}.
+ * <p>
+ * Not thread safe, look up URLs with the lock on the emulator held.
+ */
+public final class TranscriptUrlIndex {
+
+    LogUtils logUtils = new LogUtils("Transcript Url Index");
+
+    /** The URLs looked for, compiled once. */
+    public static final Pattern URL_PATTERN = compileUrlPattern();
+
+    @SuppressWarnings("StringBufferReplaceableByString")
+    private static Pattern compileUrlPattern() {
+        StringBuilder regex_sb = new StringBuilder();
+
+        regex_sb.append("(");                       // Begin first matching group.
+        regex_sb.append("(?:");                     // Begin scheme group.
+        regex_sb.append("dav|");                    // The DAV proto.
+        regex_sb.append("dict|");                   // The DICT proto.
+        regex_sb.append("dns|");                    // The DNS proto.
+        regex_sb.append("file|");                   // File path.
+        regex_sb.append("finger|");                 // The Finger proto.
+        regex_sb.append("ftp(?:s?)|");              // The FTP proto.
+        regex_sb.append("git|");                    // The Git proto.
+        regex_sb.append("gopher|");                 // The Gopher proto.
+        regex_sb.append("http(?:s?)|");             // The HTTP proto.
+        regex_sb.append("imap(?:s?)|");             // The IMAP proto.
+        regex_sb.append("irc(?:[6s]?)|");           // The IRC proto.
+        regex_sb.append("ip[fn]s|");                // The IPFS proto.
+        regex_sb.append("ldap(?:s?)|");             // The LDAP proto.
+        regex_sb.append("pop3(?:s?)|");             // The POP3 proto.
+        regex_sb.append("redis(?:s?)|");            // The Redis proto.
+        regex_sb.append("rsync|");                  // The Rsync proto.
+        regex_sb.append("rtsp(?:[su]?)|");          // The RTSP proto.
+        regex_sb.append("sftp|");                   // The SFTP proto.
+        regex_sb.append("smb(?:s?)|");              // The SAMBA proto.
+        regex_sb.append("smtp(?:s?)|");             // The SMTP proto.
+        regex_sb.append("svn(?:(?:\\+ssh)?)|");     // The Subversion proto.
+        regex_sb.append("tcp|");                    // The TCP proto.
+        regex_sb.append("telnet|");                 // The Telnet proto.
+        regex_sb.append("tftp|");                   // The TFTP proto.
+        regex_sb.append("udp|");                    // The UDP proto.
+        regex_sb.append("vnc|");                    // The VNC proto.
+        regex_sb.append("ws(?:s?)");                // The Websocket proto.
+        regex_sb.append(")://");                    // End scheme group.
+        regex_sb.append(")");                       // End first matching group.
+
+        // Begin second matching group.
+        regex_sb.append("(");
+
+        // User name and/or password in format 'user:pass@'.
+        regex_sb.append("(?:\\S+(?::\\S*)?@)?");
+
+        // Begin host group.
+        regex_sb.append("(?:");
+
+        // IP address (from http://www.regular-expressions.info/examples.html).
+        regex_sb.append("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)|");
+
+        // Host name or domain.
+        regex_sb.append("(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)(?:(?:\\.(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)*(?:\\.(?:[a-z\\u00a1-\\uffff]{2,})))?|");
+
+        // Just path. Used in case of 'file://' scheme.
+        regex_sb.append("/(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)");
+
+        // End host group.
+        regex_sb.append(")");
+
+        // Port number.
+        regex_sb.append("(?::\\d{1,5})?");
+
+        // Resource path with optional query string.
+        regex_sb.append("(?:/[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
+
+        // Fragment.
+        regex_sb.append("(?:#[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
+
+        // End second matching group.
+        regex_sb.append(")");
+
+        return Pattern.compile(
+            regex_sb.toString(),
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
+    }
+
+    /** A URL found, from a column of its first row up to but not including a column of its last row. */
+    public static final class Url {
+        public final String url;
+        public final long startRowId;
+        public final int startColumn;
+        public final long endRowId;
+        public final int endColumn;
+
+        Url(String url, long startRowId, int startColumn, long endRowId, int endColumn) {
+            this.url = url;
+            this.startRowId = startRowId;
+            this.startColumn = startColumn;
+            this.endRowId = endRowId;
+            this.endColumn = endColumn;
+        }
+
+        /** Whether the URL covers a cell. */
+        public boolean contains(long rowId, int column) {
+            return (rowId > startRowId || (rowId == startRowId && column >= startColumn))
+                && (rowId < endRowId || (rowId == endRowId && column < endColumn));
+        }
+
+        @Override
+        public String toString() {
+            return url + "@" + startRowId + ":" + startColumn + ".." + endRowId + ":" + endColumn;
+        }
+    }
+
+    private final TerminalBuffer mBuffer;
+
+    /** URLs of the scanned transcript lines, from mUrlsStart up to mUrlsEnd. */
+    private Url[] mUrls = new Url[64];
+    private int mUrlsStart, mUrlsEnd;
+    /** The id of the first row of the next line to scan, at the start of a line. */
+    private long mScannedTo;
+
+    /** The text of the line being scanned, and where each of its rows starts in it. */
+    private char[] mLine = new char[256];
+    private int mLineLength;
+    private int[] mRowStarts = new int[8];
+    private final LineText mLineText = new LineText();
+    private final Matcher mMatcher = URL_PATTERN.matcher("");
+
+    TranscriptUrlIndex(TerminalBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /** Forget everything scanned, for when the transcript has been replaced. */
+    void clear() {
+        Arrays.fill(mUrls, mUrlsStart, mUrlsEnd, null);
+        mUrlsStart = mUrlsEnd = 0;
+        mScannedTo = 0;
+    }
+
+    /** Forget rows from this row id on, and the rest of their line, for when they have left the transcript. */
+    void truncate(long rowId) {
+        if (rowId >= mScannedTo) return;
+        final long firstRowId = mBuffer.getRowId(-mBuffer.getActiveTranscriptRows());
+        while (rowId > firstRowId && row(rowId - 1).mLineWrap) rowId--;
+        while (mUrlsEnd > mUrlsStart && mUrls[mUrlsEnd - 1].startRowId >= rowId) mUrls[--mUrlsEnd] = null;
+        mScannedTo = rowId;
+    }
+
+    private TerminalRow row(long rowId) {
+        return mBuffer.allocateFullLineIfNecessary(mBuffer.externalToInternalRow((int) mBuffer.getExternalRow(rowId)));
+    }
+
+    /** Scan the transcript lines which are new since the last call, and drop URLs starting in evicted rows. */
+    private void update() {
+        final long firstRowId = mBuffer.getRowId(-mBuffer.getActiveTranscriptRows());
+        final long screenRowId = mBuffer.getRowId(0);
+        while (mUrlsStart < mUrlsEnd && mUrls[mUrlsStart].startRowId < firstRowId) mUrls[mUrlsStart++] = null;
+        // Rows evicted before being scanned are skipped, the first row kept is taken as the start of a line.
+        if (mScannedTo < firstRowId) mScannedTo = firstRowId;
+        while (mScannedTo < screenRowId) {
+            long end = mScannedTo;
+            while (end < screenRowId && row(end).mLineWrap) end++;
+            // A line continuing onto the screen is not done yet.
+            if (end == screenRowId) break;
+            scanLine(mScannedTo, end + 1, true, null);
+            mScannedTo = end + 1;
+        }
+    }
+
+    /**
+     * Find the URLs of the rows from start up to end, a whole line, adding them to the index if keep is true and to
+     * urls otherwise.
+     */
+    private void scanLine(long start, long end, boolean keep, List<Url> urls) {
+        mLineLength = 0;
+        final int rows = (int) (end - start);
+        if (mRowStarts.length <= rows) mRowStarts = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            final TerminalRow row = row(start + i);
+            int length = row.getSpaceUsed();
+            // Trailing blanks of the last row are not part of the line.
+            if (i == rows - 1) while (length > 0 && row.mText[length - 1] == ' ') length--;
+            if (mLine.length < mLineLength + length) mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, mLineLength + length));
+            System.arraycopy(row.mText, 0, mLine, mLineLength, length);
+            mRowStarts[i] = mLineLength;
+            mLineLength += length;
+        }
+        mRowStarts[rows] = mLineLength;
+        if (!containsSchemeSeparator()) return;
+
+        mMatcher.reset(mLineText);
+        while (mMatcher.find()) {
+            final int matchStart = mMatcher.start(1);
+            final int matchEnd = mMatcher.end();
+            final int startRow = rowOf(matchStart, rows);
+            final int endRow = rowOf(matchEnd - 1, rows);
+            final Url url = new Url(new String(mLine, matchStart, matchEnd - matchStart),
+                start + startRow, TranscriptIndex.columnOf(row(start + startRow), 0, matchStart - mRowStarts[startRow]),
+                start + endRow, TranscriptIndex.columnOf(row(start + endRow), 0, matchEnd - mRowStarts[endRow]));
+            if (keep) add(url);
+            else urls.add(url);
+        }
+    }
+
+    private boolean containsSchemeSeparator() {
+        for (int i = 0, last = mLineLength - 3; i <= last; i++) {
+            if (mLine[i] == ':' && mLine[i + 1] == '/' && mLine[i + 2] == '/') return true;
+        }
+        return false;
+    }
+
+    /** The row of the line holding a char of it. */
+    private int rowOf(int index, int rows) {
+        int row = 0;
+        while (row + 1 < rows && mRowStarts[row + 1] <= index) row++;
+        return row;
+    }
+
+    private void add(Url url) {
+        if (mUrlsEnd == mUrls.length) {
+            final int count = mUrlsEnd - mUrlsStart;
+            if (count * 2 > mUrls.length) mUrls = Arrays.copyOf(mUrls, mUrls.length * 2);
+            System.arraycopy(mUrls, mUrlsStart, mUrls, 0, count);
+            Arrays.fill(mUrls, count, mUrlsEnd, null);
+            mUrlsStart = 0;
+            mUrlsEnd = count;
+        }
+        mUrls[mUrlsEnd++] = url;
+    }
+
+    /** Add the URLs of the lines not kept in the index, those reaching the screen, to urls. */
+    private void scanScreen(List<Url> urls) {
+        final long endRowId = mBuffer.getRowId(mBuffer.mScreenRows);
+        long start = mScannedTo;
+        while (start < endRowId) {
+            long end = start;
+            while (end < endRowId - 1 && row(end).mLineWrap) end++;
+            scanLine(start, end + 1, false, urls);
+            start = end + 1;
+        }
+    }
+
+    /** All the URLs in the transcript and on the screen, oldest first. */
+    public List<Url> getUrls() {
+        update();
+        final List<Url> urls = new ArrayList<>(mUrlsEnd - mUrlsStart);
+        urls.addAll(Arrays.asList(mUrls).subList(mUrlsStart, mUrlsEnd));
+        scanScreen(urls);
+        return urls;
+    }
+
+    /** The URL covering a cell given by its external row, null if there is none. */
+    public Url findUrlAt(int externalRow, int column) {
+        update();
+        final long rowId = mBuffer.getRowId(externalRow);
+        if (rowId >= mScannedTo) {
+            final List<Url> urls = new ArrayList<>();
+            scanScreen(urls);
+            for (Url url : urls) if (url.contains(rowId, column)) return url;
+            return null;
+        }
+        // The last URL starting at or before the row, and those before it wrapped onto the row.
+        int low = mUrlsStart, high = mUrlsEnd;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mUrls[middle].startRowId <= rowId) low = middle + 1;
+            else high = middle;
+        }
+        for (int i = low - 1; i >= mUrlsStart && mUrls[i].endRowId >= rowId; i--) {
+            if (mUrls[i].contains(rowId, column)) return mUrls[i];
+        }
+        return null;
+    }
+
+    /** The line being scanned, as the matcher sees it. */
+    private final class LineText implements CharSequence {
+        @Override
+        public int length() {
+            return mLineLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mLine[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mLine, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mLine, 0, mLineLength);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+*************************************************************************
+Alpine Term - a VM-based terminal emulator.
+Copyright (C) 2019-2020  Leonid Plyushch <leonid.plyushch@gmail.com>
+
+Originally was part of Termux.
+Copyright (C) 2019  Fredrik Fornwall <fredrik@fornwall.net>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package alpine.term.emulator;
+
+/**
+ * Decodes UTF-8 for the {@link TerminalEmulator} with a small table driven state machine, in the spirit of
+ * Bjoern Hoehrmann's DFA decoder: each byte costs a class lookup and a transition lookup instead of a chain of
+ * mask tests.
+ * <p>
+ * The tables encode the emulator's own, lenient handling of malformed input rather than strict UTF-8: any
+ * 110xxxxx, 1110xxxx or 11110xxx byte starts a sequence of that length, an overlong result, an unassigned or
+ * surrogate code point becomes {@link TerminalEmulator#UNICODE_REPLACEMENT_CHAR}, a decoded C1 control is dropped,
+ * a sequence cut short by a byte that is not a continuation byte is replaced and that byte decoded again, and a
+ * byte that cannot start a sequence is replaced.
+ * <p>
+ * Whether a code point is assigned is looked up in a bitmap filled in from {@link Character#getType(int)} a
+ * block of 256 code points at a time, as blocks are first seen, so text in one script costs a handful of
+ * {@code getType} calls instead of one per character.
+ */
+final class Utf8Decoder {
+
+    /** Receives the decoded input. */
+    interface Sink {
+        /** A decoded code point, or the replacement character for malformed input. */
+        void onCodePoint(int codePoint);
+
+        /** A sequence was cut short by a byte that is not a continuation byte, which is decoded next. */
+        void onTruncatedSequence();
+    }
+
+    /** Byte classes, the columns of {@link #TRANSITIONS}. */
+    private static final int ASCII = 0, CONTINUATION = 1, LEAD_2 = 2, LEAD_3 = 3, LEAD_4 = 4, INVALID = 5;
+    private static final int CLASS_COUNT = 6;
+
+    /**
+     * States 0 to 3 are the number of continuation bytes still expected. The transitions out of a state may also
+     * be one of these, which leave the decoder in state 0.
+     */
+    private static final byte REJECT = 4, STRAY = 5;
+
+    private static final byte[] CLASSES = new byte[256];
+
+    /** Payload bits of a byte starting a sequence, by class. */
+    private static final int[] LEAD_MASKS = {0x7F, 0, 0x1F, 0x0F, 0x07, 0};
+
+    /** The next state by current state and byte class. */
+    private static final byte[] TRANSITIONS = {
+        //      ASCII, CONTINUATION, LEAD_2, LEAD_3, LEAD_4, INVALID
+        /* 0 */ 0, STRAY, 1, 2, 3, STRAY,
+        /* 1 */ REJECT, 0, REJECT, REJECT, REJECT, REJECT,
+        /* 2 */ REJECT, 1, REJECT, REJECT, REJECT, REJECT,
+        /* 3 */ REJECT, 2, REJECT, REJECT, REJECT, REJECT,
+    };
+
+    /** The smallest code point a sequence of each length may encode without being rejected as overlong. */
+    private static final int[] MIN_CODE_POINTS = {0, 0, 0x80, 0x7FF, 0xFFFF};
+
+    private static final int BLOCK_SHIFT = 8;
+    private static final long[] BLOCK_ALL_ASSIGNED = {-1L, -1L, -1L, -1L};
+    private static final long[] BLOCK_NONE_ASSIGNED = new long[4];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            final int byteClass;
+            if (b < 0x80) byteClass = ASCII;
+            else if (b < 0xC0) byteClass = CONTINUATION;
+            else if (b < 0xE0) byteClass = LEAD_2;
+            else if (b < 0xF0) byteClass = LEAD_3;
+            else if (b < 0xF8) byteClass = LEAD_4;
+            else byteClass = INVALID;
+            CLASSES[b] = (byte) byteClass;
+        }
+    }
+
+    /** Bits of assigned, non surrogate code points by block of 256, null until the block is first looked up. */
+    private final long[][] mAssigned = new long[(Character.MAX_CODE_POINT + 1) >> BLOCK_SHIFT][];
+
+    private int mState, mLength, mCodePoint;
+
+    /** Whether no sequence is partially decoded. */
+    boolean isIdle() {
+        return mState == 0;
+    }
+
+    /** Forget a partially decoded sequence. */
+    void reset() {
+        mState = 0;
+    }
+
+    /** Decode the next byte of input. */
+    void decode(byte input, Sink sink) {
+        final int b = input & 0xFF;
+        final int byteClass = CLASSES[b];
+        int next = TRANSITIONS[mState * CLASS_COUNT + byteClass];
+        if (next == REJECT) {
+            // Do not consume the byte as part of the ill-formed sequence, it may start a well-formed one.
+            mState = 0;
+            sink.onTruncatedSequence();
+            next = TRANSITIONS[byteClass];
+        }
+
+        if (next == STRAY) {
+            sink.onCodePoint(TerminalEmulator.UNICODE_REPLACEMENT_CHAR);
+        } else if (mState == 0) {
+            if (next == 0) {
+                sink.onCodePoint(b);
+            } else {
+                mCodePoint = b & LEAD_MASKS[byteClass];
+                mLength = next + 1;
+                mState = next;
+            }
+        } else {
+            mCodePoint = (mCodePoint << 6) | (b & 0x3F);
+            mState = next;
+            if (next == 0) complete(sink);
+        }
+    }
+
+    private void complete(Sink sink) {
+        int codePoint = mCodePoint;
+        if (codePoint < MIN_CODE_POINTS[mLength]) {
+            codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+        } else if (codePoint <= 0x9F) {
+            // A decoded C1 control character, which is ignored. They are not used nowadays and increase the risk of
+            // messing up the terminal state on binary input. XTerm does not allow them in UTF-8 either.
+            return;
+        } else if (!isAssigned(codePoint)) {
+            codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+        }
+        sink.onCodePoint(codePoint);
+    }
+
+    /** Whether {@link Character#getType(int)} is neither unassigned nor surrogate. */
+    boolean isAssigned(int codePoint) {
+        if (codePoint > Character.MAX_CODE_POINT) return false;
+        final int blockIndex = codePoint >>> BLOCK_SHIFT;
+        long[] block = mAssigned[blockIndex];
+        if (block == null) block = mAssigned[blockIndex] = computeBlock(blockIndex);
+        return (block[(codePoint >>> 6) & 3] & (1L << codePoint)) != 0;
+    }
+
+    private static long[] computeBlock(int blockIndex) {
+        final long[] block = new long[4];
+        boolean all = true, none = true;
+        final int first = blockIndex << BLOCK_SHIFT;
+        for (int i = 0; i < 256; i++) {
+            switch (Character.getType(first + i)) {
+                case Character.UNASSIGNED:
+                case Character.SURROGATE:
+                    all = false;
+                    break;
+                default:
+                    block[i >>> 6] |= 1L << i;
+                    none = false;
+            }
+        }
+        return all ? BLOCK_ALL_ASSIGNED : (none ? BLOCK_NONE_ASSIGNED : block);
+    }
+}
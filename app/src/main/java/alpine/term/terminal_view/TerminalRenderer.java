@@ -27,15 +27,18 @@ import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
 
+import java.util.List;
+
 import alpine.term.LogUtils;
-import alpine.term.emulator.TerminalBuffer;
 import alpine.term.emulator.TerminalEmulator;
 import alpine.term.emulator.TerminalRow;
+import alpine.term.emulator.TerminalSnapshot;
 import alpine.term.emulator.TextStyle;
+import alpine.term.emulator.TranscriptIndex;
 import alpine.term.emulator.WcWidth;
 
 /**
- * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
+ * Renderer of a {@link TerminalEmulator}, through a {@link TerminalSnapshot} of it, into a {@link Canvas}.
  * <p/>
  * Saves font metrics, so needs to be recreated each time the typeface or font size changes.
  */
@@ -81,34 +84,56 @@ final class TerminalRenderer {
         }
     }
 
-    /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
-    public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
+    /**
+     * Render a snapshot of the terminal, captured at the row scroll it should be drawn at, to a canvas with an
+     * optional rectangular selection.
+     */
+    public final void render(TerminalSnapshot snapshot, Canvas canvas,
                              int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
-        final boolean reverseVideo = mEmulator.isReverseVideo();
-        final int endRow = topRow + mEmulator.mRows;
-        final int columns = mEmulator.mColumns;
-        final int cursorCol = mEmulator.getCursorCol();
-        final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.isShowingCursor();
-        final TerminalBuffer screen = mEmulator.getScreen();
-        final int[] palette = mEmulator.mColors.mCurrentColors;
-        final int cursorShape = mEmulator.getCursorStyle();
+        render(snapshot, canvas, selectionY1, selectionY2, selectionX1, selectionX2, null);
+    }
+
+    /**
+     * Render as above, also highlighting search matches like the selection.
+     *
+     * @param highlights matches in increasing row id order, or null
+     */
+    public final void render(TerminalSnapshot snapshot, Canvas canvas,
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2,
+                             List<TranscriptIndex.Match> highlights) {
+        final boolean reverseVideo = snapshot.mReverseVideo;
+        final int topRow = snapshot.mTopRow;
+        final int endRow = topRow + snapshot.mRows;
+        final int columns = snapshot.mColumns;
+        final int cursorCol = snapshot.mCursorCol;
+        final int cursorRow = snapshot.mCursorRow;
+        final boolean cursorVisible = snapshot.mCursorVisible;
+        final int[] palette = snapshot.mPalette;
+        final int cursorShape = snapshot.mCursorStyle;
 
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
 
+        // The highlights of each row are those from highlightStart up to highlightEnd.
+        int highlightEnd = highlights == null ? 0 : firstHighlightAtOrAfter(highlights, snapshot.mTopRowId);
+        final int highlightCount = highlights == null ? 0 : highlights.size();
+
         float heightOffset = mFontLineSpacingAndAscent;
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
 
+            final long rowId = snapshot.mTopRowId + (row - topRow);
+            final int highlightStart = highlightEnd;
+            while (highlightEnd < highlightCount && highlights.get(highlightEnd).rowId == rowId) highlightEnd++;
+
             final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
             int selx1 = -1, selx2 = -1;
             if (row >= selectionY1 && row <= selectionY2) {
                 if (row == selectionY1) selx1 = selectionX1;
-                selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
+                selx2 = (row == selectionY2) ? selectionX2 : columns;
             }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+            TerminalRow lineObject = snapshot.getRow(row);
             final char[] line = lineObject.mText;
             final int charsUsedInLine = lineObject.getSpaceUsed();
 
@@ -126,7 +151,8 @@ final class TerminalRenderer {
                 final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
                 final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
                 final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (column >= selx1 && column <= selx2) || (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
+                final boolean insideCursor = (column >= selx1 && column <= selx2) || (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1))
+                    || (highlightStart < highlightEnd && isHighlighted(highlights, highlightStart, highlightEnd, column));
                 final long style = lineObject.getStyle(column);
 
                 // Check if the measured text width for this code point is not the same as that expected by wcwidth().
@@ -141,7 +167,7 @@ final class TerminalRenderer {
                     if (column > 0) {
                         final int columnWidthSinceLastRun = column - lastRunStartColumn;
                         final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
                         drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
                             lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
                             cursorColor, cursorShape, lastRunStyle, reverseVideo);
@@ -165,12 +191,31 @@ final class TerminalRenderer {
 
             final int columnWidthSinceLastRun = columns - lastRunStartColumn;
             final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+            int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
             drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
                 measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo);
         }
     }
 
+    /** The index of the first highlight of a row at or after a row id. */
+    private static int firstHighlightAtOrAfter(List<TranscriptIndex.Match> highlights, long rowId) {
+        int low = 0, high = highlights.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (highlights.get(middle).rowId < rowId) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private static boolean isHighlighted(List<TranscriptIndex.Match> highlights, int start, int end, int column) {
+        for (int i = start; i < end; i++) {
+            final TranscriptIndex.Match match = highlights.get(i);
+            if (column >= match.startColumn && column < match.endColumn) return true;
+        }
+        return false;
+    }
+
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
                              int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
                              long textStyle, boolean reverseVideo) {
@@ -60,13 +60,18 @@ import android.widget.Scroller;
 
 import com.example.libclient_service.LibService_Messenger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import alpine.term.Config;
 import alpine.term.LogUtils;
 import alpine.term.R;
 import alpine.term.emulator.KeyHandler;
-import alpine.term.emulator.TerminalBuffer;
 import alpine.term.emulator.TerminalEmulator;
 import alpine.term.emulator.TerminalSession;
+import alpine.term.emulator.TerminalSnapshot;
+import alpine.term.emulator.TranscriptIndex;
+import alpine.term.emulator.TranscriptUrlIndex;
 import alpine.term.emulator.WcWidth;
 
 /** View displaying and interacting with a {@link TerminalSession}. */
@@ -102,6 +107,9 @@ public final class TerminalView extends View {
     private Rect mTempRect;
     private SelectionModifierCursorController mSelectionModifierCursorController;
 
+    /** Search matches highlighted like the selection, in increasing row id order. */
+    private final ArrayList<TranscriptIndex.Match> mSearchHighlights = new ArrayList<>();
+
     private float mScaleFactor = 1.f;
     private final GestureAndScaleRecognizer mGestureRecognizer;
 
@@ -195,7 +203,7 @@ public final class TerminalView extends View {
                 if (mouseTrackingAtStartOfFling) {
                     mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
                 } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mTermSession.getActiveTranscriptRows(), 0);
                 }
 
                 post(new Runnable() {
@@ -367,7 +375,7 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        return mEmulator == null ? 1 : mTermSession.getActiveTranscriptRows() + mEmulator.mRows;
     }
 
     @Override
@@ -377,19 +385,20 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        return mEmulator == null ? 1 : mTermSession.getActiveTranscriptRows() + mTopRow;
     }
 
     public void onScreenUpdated() {
         if (mEmulator == null) return;
 
-        int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+        // Read through the session, which holds the emulator lock while output may be parsed off this thread.
+        int rowShift = mTermSession.takeScrollCounter();
+        int rowsInHistory = mTermSession.getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
 
         boolean skipScrolling = false;
         if (mIsSelectingText) {
             // Do not scroll when selecting text.
-            int rowShift = mEmulator.getScrollCounter();
             if (-mTopRow + rowShift > rowsInHistory) {
                 // .. unless we're hitting the end of history transcript, in which
                 // case we abort text selection and scroll to end.
@@ -413,7 +422,6 @@ public final class TerminalView extends View {
             mTopRow = 0;
         }
 
-        mEmulator.clearScrollCounter();
         invalidate();
         if (mAccessibilityEnabled) {
             activity.runOnUiThread(new Runnable() {
@@ -430,6 +438,43 @@ public final class TerminalView extends View {
         }
     }
 
+    /**
+     * Highlight more search matches, such as those streamed by
+     * {@link TerminalSession#searchTranscript(java.util.regex.Pattern, alpine.term.emulator.TranscriptRegexSearch.Listener)}.
+     * The matches must come after those already highlighted.
+     */
+    public void addSearchHighlights(List<TranscriptIndex.Match> matches) {
+        mSearchHighlights.addAll(matches);
+        invalidate();
+    }
+
+    public void clearSearchHighlights() {
+        if (mSearchHighlights.isEmpty()) return;
+        mSearchHighlights.clear();
+        invalidate();
+    }
+
+    /** Scroll so that a search match is shown, if it is still in the transcript or on the screen. */
+    public void scrollToMatch(TranscriptIndex.Match match) {
+        if (mEmulator == null) return;
+        final long row = mTermSession.getExternalRow(match.rowId);
+        final int rowsInHistory = mTermSession.getActiveTranscriptRows();
+        if (row < -rowsInHistory || row >= mEmulator.mRows) return;
+        if (row < mTopRow || row >= mTopRow + mEmulator.mRows) {
+            mTopRow = (int) Math.max(-rowsInHistory, Math.min(0, row - mEmulator.mRows / 2));
+            awakenScrollBars();
+        }
+        invalidate();
+    }
+
+    /** The URL under a touch or click, null if there is none. */
+    public TranscriptUrlIndex.Url getUrlAt(MotionEvent ev) {
+        if (mTermSession == null) return null;
+        final int column = (int) (ev.getX() / mRenderer.mFontWidth);
+        final int row = (int) (ev.getY() / mRenderer.mFontLineSpacing) + mTopRow;
+        return mTermSession.findUrlAt(row, column);
+    }
+
     /**
      * Attach a {@link TerminalSession} to this view.
      *
@@ -439,6 +484,7 @@ public final class TerminalView extends View {
         logUtils.errorAndThrowIfNull(session);
         if (session == mTermSession) return false;
         mTopRow = 0;
+        mSearchHighlights.clear();
         mTermSession = session;
         mEmulator = mTermSession.getEmulator();
         logUtils.errorAndThrowIfNull(mEmulator);
@@ -510,6 +556,15 @@ public final class TerminalView extends View {
         return true;
     }
 
+    /** Paste text through the client, which shows the progress of long pastes, or straight into the session. */
+    private void paste(CharSequence text) {
+        if (mClient != null) {
+            mClient.onPaste(text, mTermSession);
+        } else {
+            mTermSession.paste(text, null);
+        }
+    }
+
     /** Send a single mouse event code to the terminal. */
     private void sendMouseEventCode(MotionEvent e, int button, boolean pressed) {
         int x = (int) (e.getX() / mRenderer.mFontWidth) + 1;
@@ -539,7 +594,7 @@ public final class TerminalView extends View {
                 // e.g. less, which shifts to the alt screen without mouse handling.
                 handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
             } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                mTopRow = Math.min(0, Math.max(-mTermSession.getActiveTranscriptRows(), mTopRow + (up ? -1 : 1)));
                 if (!awakenScrollBars()) invalidate();
             }
         }
@@ -581,7 +636,7 @@ public final class TerminalView extends View {
 
                 if (clipData != null) {
                     CharSequence paste = clipData.getItemAt(0).coerceToText(getContext());
-                    if (!TextUtils.isEmpty(paste)) mEmulator.paste(paste.toString());
+                    if (!TextUtils.isEmpty(paste)) paste(paste);
                 }
             } else if (mEmulator.isMouseTrackingActive()) { // BUTTON_PRIMARY.
                 switch (ev.getAction()) {
@@ -788,10 +843,11 @@ public final class TerminalView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (mEmulator == null) {
+        TerminalSnapshot snapshot = mEmulator == null ? null : mTermSession.getSnapshotForDrawing(mTopRow);
+        if (snapshot == null) {
             canvas.drawColor(0XFF000000);
         } else {
-            mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+            mRenderer.render(snapshot, canvas, mSelY1, mSelY2, mSelX1, mSelX2, mSearchHighlights);
 
             SelectionModifierCursorController selectionController = getSelectionController();
             if (selectionController != null && selectionController.isActive()) {
@@ -811,13 +867,12 @@ public final class TerminalView extends View {
         mSelX1 = mSelX2 = cx;
         mSelY1 = mSelY2 = cy;
 
-        TerminalBuffer screen = mEmulator.getScreen();
-        if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
+        if (!" ".equals(mTermSession.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
             // Selecting something other than whitespace. Expand to word.
-            while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
+            while (mSelX1 > 0 && !"".equals(mTermSession.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
                 mSelX1--;
             }
-            while (mSelX2 < mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
+            while (mSelX2 < mEmulator.mColumns - 1 && !"".equals(mTermSession.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
                 mSelX2++;
             }
         }
@@ -829,7 +884,7 @@ public final class TerminalView extends View {
     }
 
     private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        return mTermSession.getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
     }
 
     @Override
@@ -1243,7 +1298,7 @@ public final class TerminalView extends View {
                     }
                     switch (item.getItemId()) {
                         case 1:
-                            String selectedText = mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
+                            String selectedText = mTermSession.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
                             mTermSession.clipboardText(selectedText);
                             break;
                         case 2:
@@ -1256,7 +1311,7 @@ public final class TerminalView extends View {
 
                             if (clipData != null) {
                                 CharSequence paste = clipData.getItemAt(0).coerceToText(getContext());
-                                if (!TextUtils.isEmpty(paste)) mEmulator.paste(paste.toString());
+                                if (!TextUtils.isEmpty(paste)) paste(paste);
                             }
                             break;
                         case 3:
@@ -1327,8 +1382,7 @@ public final class TerminalView extends View {
 
         public void updatePosition(HandleView handle, int x, int y) {
 
-            TerminalBuffer screen = mEmulator.getScreen();
-            final int scrollRows = screen.getActiveRows() - mEmulator.mRows;
+            final int scrollRows = mTermSession.getActiveTranscriptRows();
             if (handle == mStartHandle) {
                 mSelX1 = getCursorX(x);
                 mSelY1 = getCursorY(y);
@@ -1359,7 +1413,7 @@ public final class TerminalView extends View {
                         }
                     }
                 }
-                mSelX1 = getValidCurX(screen, mSelY1, mSelX1);
+                mSelX1 = getValidCurX(mSelY1, mSelX1);
             } else {
                 mSelX2 = getCursorX(x);
                 mSelY2 = getCursorY(y);
@@ -1390,14 +1444,14 @@ public final class TerminalView extends View {
                         }
                     }
                 }
-                mSelX2 = getValidCurX(screen, mSelY2, mSelX2);
+                mSelX2 = getValidCurX(mSelY2, mSelX2);
             }
 
             invalidate();
         }
 
-        private int getValidCurX(TerminalBuffer screen, int cy, int cx) {
-            String line = screen.getSelectedText(0, cy, cx, cy);
+        private int getValidCurX(int cy, int cx) {
+            String line = mTermSession.getSelectedText(0, cy, cx, cy);
             if (!TextUtils.isEmpty(line)) {
                 int col = 0;
                 for (int i = 0, len = line.length(); i < len; i++) {
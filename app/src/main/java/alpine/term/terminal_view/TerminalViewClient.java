@@ -61,4 +61,9 @@ public interface TerminalViewClient {
     boolean onCodePoint(int codePoint, boolean ctrlDown, TerminalSession session);
 
     boolean onLongPress(MotionEvent event);
+
+    /**
+     * Paste text, taken from the clipboard by the view, into session.
+     */
+    void onPaste(CharSequence text, TerminalSession session);
 }
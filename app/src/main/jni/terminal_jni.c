@@ -23,11 +23,14 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 #include <dirent.h>
 #include <fcntl.h>
 #include <jni.h>
+#include <poll.h>
 #include <signal.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/epoll.h>
 #include <sys/ioctl.h>
+#include <sys/syscall.h>
 #include <sys/wait.h>
 #include <termios.h>
 #include <unistd.h>
@@ -290,11 +293,273 @@ JNIEXPORT int JNICALL Java_alpine_term_emulator_JNI_waitFor(JNIEnv* ALPINE_TERM_
     } else return -999;
 }
 
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_peekExitedChild(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint pid, jboolean block)
+{
+    // WNOWAIT leaves the child a zombie, so whoever owns it can still wait for it.
+    siginfo_t info;
+    memset(&info, 0, sizeof(info));
+    int options = WEXITED | WNOWAIT | (block ? 0 : WNOHANG);
+    int r;
+    do {
+        r = waitid(pid > 0 ? P_PID : P_ALL, pid > 0 ? (id_t) pid : 0, &info, options);
+    } while (r == -1 && errno == EINTR);
+    if (r == -1) return -1;
+    return info.si_pid;
+}
+
 JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_close(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fileDescriptor)
 {
     close(fileDescriptor);
 }
 
+/** Returned by pollRead() when the wakeup pipe was written to instead of the pseudo-terminal becoming readable. */
+#define POLL_READ_WOKEN (-2)
+
+/**
+ * Wait in poll(2) until fd is readable or wakeupFd has been written to.
+ *
+ * Returns 1 if fd has data, 0 on timeout or a wakeup that had nothing to report, POLL_READ_WOKEN, or -1 once the
+ * other side has hung up with nothing left to read, or on error.
+ */
+static int poll_readable(int fd, int wakeupFd, int timeoutMillis)
+{
+    struct pollfd fds[2] = {
+        { .fd = fd, .events = POLLIN },
+        { .fd = wakeupFd, .events = POLLIN }
+    };
+    nfds_t count = wakeupFd >= 0 ? 2 : 1;
+    int r;
+    do {
+        r = poll(fds, count, timeoutMillis);
+    } while (r == -1 && (errno == EINTR || errno == EAGAIN));
+    if (r == -1) return -1;
+    if (r == 0) return 0;
+    if (count == 2 && (fds[1].revents & POLLIN)) {
+        char drain[64];
+        while (read(wakeupFd, drain, sizeof(drain)) > 0);
+        return POLL_READ_WOKEN;
+    }
+    if (fds[0].revents & POLLNVAL) return -1;
+    // Buffered output is still read after a hang up, only a hang up without any left is the end.
+    if (fds[0].revents & POLLIN) return 1;
+    if (fds[0].revents & (POLLHUP | POLLERR)) return -1;
+    return 0;
+}
+
+JNIEXPORT jintArray JNICALL Java_alpine_term_emulator_JNI_createWakeupPipe(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz))
+{
+    int fds[2];
+    if (pipe(fds) != 0) {
+        throw_runtime_exception(env, "Cannot create wakeup pipe");
+        return NULL;
+    }
+    for (int i = 0; i < 2; i++) {
+        fcntl(fds[i], F_SETFD, FD_CLOEXEC);
+        fcntl(fds[i], F_SETFL, fcntl(fds[i], F_GETFL) | O_NONBLOCK);
+    }
+    jintArray a = createJniArray(env, 2);
+    if (a == NULL) {
+        close(fds[0]);
+        close(fds[1]);
+        return NULL;
+    }
+    setJniArrayIndexes(env, &a, 0, fds, 2);
+    return a;
+}
+
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_wakeup(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint wakeupFd)
+{
+    char c = 1;
+    // The pipe is non-blocking, if it is full a wakeup is already pending so EAGAIN can be ignored.
+    while (write(wakeupFd, &c, 1) == -1 && errno == EINTR);
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_pollRead(
+    JNIEnv* env,
+    jclass ALPINE_TERM_UNUSED(clazz),
+    jint fd,
+    jint wakeupFd,
+    jbyteArray buffer,
+    jint timeoutMillis
+) {
+    int readable = poll_readable(fd, wakeupFd, timeoutMillis);
+    if (readable != 1) return readable;
+
+    char chunk[8192];
+    jsize length = (*env)->GetArrayLength(env, buffer);
+    if (length > (jsize) sizeof(chunk)) length = sizeof(chunk);
+    ssize_t bytesRead;
+    do {
+        bytesRead = read(fd, chunk, (size_t) length);
+    } while (bytesRead == -1 && errno == EINTR);
+    // A spurious wakeup, try again.
+    if (bytesRead == -1 && (errno == EAGAIN || errno == EWOULDBLOCK)) return 0;
+    if (bytesRead <= 0) return -1;
+    (*env)->SetByteArrayRegion(env, buffer, 0, (jsize) bytesRead, (jbyte*) chunk);
+    return (jint) bytesRead;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_readInto(
+    JNIEnv* env,
+    jclass ALPINE_TERM_UNUSED(clazz),
+    jint fd,
+    jint wakeupFd,
+    jobject buffer,
+    jint offset,
+    jint length,
+    jint timeoutMillis
+) {
+    char* address = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (address == NULL || offset < 0 || length <= 0 || (jlong) offset + length > capacity) {
+        return throw_runtime_exception(env, "readInto needs a direct buffer and a range within it");
+    }
+
+    if (timeoutMillis != 0 || wakeupFd >= 0) {
+        int readable = poll_readable(fd, wakeupFd, timeoutMillis);
+        if (readable != 1) return readable;
+    }
+
+    // Keep reading while the kernel reports more buffered output, so a burst is taken in one call.
+    jint total = 0;
+    while (total < length) {
+        ssize_t bytesRead;
+        do {
+            bytesRead = read(fd, address + offset + total, (size_t) (length - total));
+        } while (bytesRead == -1 && errno == EINTR);
+        if (bytesRead == -1 && (errno == EAGAIN || errno == EWOULDBLOCK)) break;
+        if (bytesRead <= 0) return total > 0 ? total : -1;
+        total += (jint) bytesRead;
+        int pending = 0;
+        if (ioctl(fd, FIONREAD, &pending) == -1 || pending <= 0) break;
+    }
+    return total;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_epollCreate(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz))
+{
+    int epfd = epoll_create1(EPOLL_CLOEXEC);
+    if (epfd == -1) return throw_runtime_exception(env, "Cannot create epoll instance");
+    return epfd;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_epollCtl(
+    JNIEnv* ALPINE_TERM_UNUSED(env),
+    jclass ALPINE_TERM_UNUSED(clazz),
+    jint epfd,
+    jint op,
+    jint fd,
+    jint events
+) {
+    struct epoll_event event = { .events = (uint32_t) events, .data.fd = fd };
+    return epoll_ctl(epfd, op, fd, &event) == 0 ? 0 : -errno;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_epollWait(
+    JNIEnv* env,
+    jclass ALPINE_TERM_UNUSED(clazz),
+    jint epfd,
+    jintArray fds,
+    jintArray events,
+    jint timeoutMillis
+) {
+    struct epoll_event ready[64];
+    int max = (*env)->GetArrayLength(env, fds);
+    if (max > 64) max = 64;
+    int count;
+    do {
+        count = epoll_wait(epfd, ready, max, timeoutMillis);
+    } while (count == -1 && errno == EINTR);
+    if (count <= 0) return count;
+    jint readyFds[64];
+    jint readyEvents[64];
+    for (int i = 0; i < count; i++) {
+        readyFds[i] = ready[i].data.fd;
+        readyEvents[i] = (jint) ready[i].events;
+    }
+    (*env)->SetIntArrayRegion(env, fds, 0, count, readyFds);
+    (*env)->SetIntArrayRegion(env, events, 0, count, readyEvents);
+    return count;
+}
+
+JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_setNonBlocking(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint fd, jboolean nonBlocking)
+{
+    int flags = fcntl(fd, F_GETFL);
+    if (flags == -1) return;
+    fcntl(fd, F_SETFL, nonBlocking ? (flags | O_NONBLOCK) : (flags & ~O_NONBLOCK));
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_read(JNIEnv* env, jclass ALPINE_TERM_UNUSED(clazz), jint fd, jbyteArray buffer, jint length)
+{
+    char chunk[8192];
+    if (length > (jint) sizeof(chunk)) length = sizeof(chunk);
+    if (length > (*env)->GetArrayLength(env, buffer)) length = (*env)->GetArrayLength(env, buffer);
+    ssize_t bytesRead;
+    do {
+        bytesRead = read(fd, chunk, (size_t) length);
+    } while (bytesRead == -1 && errno == EINTR);
+    if (bytesRead == -1 && (errno == EAGAIN || errno == EWOULDBLOCK)) return 0;
+    if (bytesRead <= 0) return -1;
+    (*env)->SetByteArrayRegion(env, buffer, 0, (jsize) bytesRead, (jbyte*) chunk);
+    return (jint) bytesRead;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_write(
+    JNIEnv* env,
+    jclass ALPINE_TERM_UNUSED(clazz),
+    jint fd,
+    jbyteArray buffer,
+    jint offset,
+    jint length
+) {
+    char chunk[8192];
+    if (length > (jint) sizeof(chunk)) length = sizeof(chunk);
+    (*env)->GetByteArrayRegion(env, buffer, offset, length, (jbyte*) chunk);
+    ssize_t written;
+    do {
+        written = write(fd, chunk, (size_t) length);
+    } while (written == -1 && errno == EINTR);
+    if (written == -1 && (errno == EAGAIN || errno == EWOULDBLOCK)) return 0;
+    return written < 0 ? -1 : (jint) written;
+}
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_writeNonBlocking(
+    JNIEnv* env,
+    jclass ALPINE_TERM_UNUSED(clazz),
+    jint fd,
+    jbyteArray buffer,
+    jint offset,
+    jint length
+) {
+    char chunk[8192];
+    if (length > (jint) sizeof(chunk)) length = sizeof(chunk);
+    (*env)->GetByteArrayRegion(env, buffer, offset, length, (jbyte*) chunk);
+    int flags = fcntl(fd, F_GETFL);
+    if (flags == -1) return -1;
+    // Only the writer of a session ever sees O_NONBLOCK flip, readers poll(2) before reading.
+    if ((flags & O_NONBLOCK) == 0 && fcntl(fd, F_SETFL, flags | O_NONBLOCK) == -1) return -1;
+    ssize_t written;
+    do {
+        written = write(fd, chunk, (size_t) length);
+    } while (written == -1 && errno == EINTR);
+    int error = errno;
+    if ((flags & O_NONBLOCK) == 0) fcntl(fd, F_SETFL, flags);
+    if (written == -1 && (error == EAGAIN || error == EWOULDBLOCK)) return 0;
+    return written < 0 ? -1 : (jint) written;
+}
+
+#ifndef __NR_pidfd_open
+// The same on every architecture, missing from older NDK headers.
+# define __NR_pidfd_open 434
+#endif
+
+JNIEXPORT jint JNICALL Java_alpine_term_emulator_JNI_openPidFd(JNIEnv* ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz), jint pid)
+{
+    // pidfd_open(2) always sets close-on-exec.
+    long fd = syscall(__NR_pidfd_open, (pid_t) pid, 0);
+    return fd < 0 ? -1 : (jint) fd;
+}
+
 JNIEXPORT void JNICALL Java_alpine_term_emulator_JNI_test_1puts(JNIEnv * ALPINE_TERM_UNUSED(env), jclass ALPINE_TERM_UNUSED(clazz)) {
     printf("HELLO FROM NATIVE CPP\n");
 }
@@ -0,0 +1,24 @@
+package alpine.term.emulator;
+
+import org.junit.Assume;
+
+/**
+ * Opt-in switch for the benchmarks kept next to the tests. They print timings and assert nothing, so they are
+ * skipped unless {@value #PROPERTY} is true, e.g. {@code ./gradlew test -Palpine.term.benchmarks=true}.
+ */
+final class Benchmarks {
+
+    static final String PROPERTY = "alpine.term.benchmarks";
+
+    private Benchmarks() {
+    }
+
+    /** Skip the calling test unless benchmarks were asked for. */
+    static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks run with -D" + PROPERTY + "=true", Boolean.getBoolean(PROPERTY));
+    }
+
+    static double mibPerSecond(long bytes, long nanos) {
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,162 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Correctness tests for {@link ByteRingBuffer}, plus an opt-in microbenchmark against {@link ByteQueue}.
+ */
+public class ByteRingBufferTest {
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() {
+        assertEquals(4096, new ByteRingBuffer(4096).capacity());
+        assertEquals(8192, new ByteRingBuffer(4097).capacity());
+        assertEquals(1, new ByteRingBuffer(1).capacity());
+    }
+
+    @Test
+    public void read_wrapsAroundTheEnd() {
+        ByteRingBuffer queue = new ByteRingBuffer(8);
+        byte[] out = new byte[8];
+        assertTrue(queue.write(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6));
+        assertEquals(4, queue.read(new byte[4], false));
+        assertTrue(queue.write(new byte[]{7, 8, 9, 10, 11, 12}, 0, 6));
+        assertEquals(8, queue.size());
+        assertEquals(8, queue.read(out, false));
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9, 10, 11, 12}, out);
+        assertEquals(0, queue.read(out, false));
+    }
+
+    @Test
+    public void close_returnsMinusOneAndFailsWrites() {
+        ByteRingBuffer queue = new ByteRingBuffer(16);
+        queue.close();
+        assertEquals(-1, queue.read(new byte[4], true));
+        assertFalse(queue.write(new byte[]{1}, 0, 1));
+    }
+
+    @Test
+    public void close_wakesBlockedReader() throws InterruptedException {
+        final ByteRingBuffer queue = new ByteRingBuffer(16);
+        final int[] result = {0};
+        Thread reader = new Thread(() -> result[0] = queue.read(new byte[4], true));
+        reader.start();
+        Thread.sleep(50);
+        queue.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(-1, result[0]);
+    }
+
+    @Test
+    public void producerAndConsumer_transferEveryByteInOrder() throws InterruptedException {
+        final ByteRingBuffer queue = new ByteRingBuffer(64);
+        final int total = 1 << 20;
+        Thread producer = new Thread(() -> {
+            byte[] chunk = new byte[37];
+            int value = 0;
+            for (int written = 0; written < total; ) {
+                int length = Math.min(chunk.length, total - written);
+                for (int i = 0; i < length; i++) chunk[i] = (byte) value++;
+                queue.write(chunk, 0, length);
+                written += length;
+            }
+        });
+        producer.start();
+        byte[] buffer = new byte[23];
+        int expected = 0;
+        for (int received = 0; received < total; ) {
+            int read = queue.read(buffer, true);
+            for (int i = 0; i < read; i++) assertEquals((byte) expected++, buffer[i]);
+            received += read;
+        }
+        producer.join();
+    }
+
+    /** Not an assertion on speed, prints the throughput of both queues for comparison. See {@link Benchmarks}. */
+    @Test
+    public void benchmark_comparedWithByteQueue() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        final int total = 64 << 20;
+        for (int round = 0; round < 3; round++) {
+            ByteQueue byteQueue = new ByteQueue(4096);
+            long byteQueueNanos = transfer(total,
+                (buffer, length) -> byteQueue.write(buffer, 0, length),
+                buffer -> byteQueue.read(buffer, true));
+            ByteRingBuffer ringBuffer = new ByteRingBuffer(4096);
+            long ringBufferNanos = transfer(total,
+                (buffer, length) -> ringBuffer.write(buffer, 0, length),
+                buffer -> ringBuffer.read(buffer, true));
+            System.out.println(String.format(
+                "round %d: ByteQueue %.1f MiB/s, ByteRingBuffer %.1f MiB/s", round,
+                Benchmarks.mibPerSecond(total, byteQueueNanos), Benchmarks.mibPerSecond(total, ringBufferNanos)
+            ));
+        }
+    }
+
+    private interface Writer {
+        void write(byte[] buffer, int length);
+    }
+
+    private interface Reader {
+        int read(byte[] buffer);
+    }
+
+    private static long transfer(final int total, final Writer writer, Reader reader) throws InterruptedException {
+        Thread producer = new Thread(() -> {
+            byte[] chunk = new byte[4096];
+            for (int written = 0; written < total; written += chunk.length) writer.write(chunk, chunk.length);
+        });
+        byte[] buffer = new byte[4096];
+        long start = System.nanoTime();
+        producer.start();
+        for (int received = 0; received < total; ) received += reader.read(buffer);
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        return elapsed;
+    }
+
+    @Test
+    public void direct_fillsAndDrainsInPlaceAcrossTheEnd() {
+        ByteRingBuffer queue = new ByteRingBuffer(8, true);
+        assertTrue(queue.isDirect());
+        assertTrue(queue.write(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6));
+        assertEquals(4, queue.read(new byte[4], false));
+
+        // The free space runs to the end of the storage first, then wraps around.
+        final byte[] next = {7};
+        ByteRingBuffer.Filler filler = (buffer, offset, length) -> {
+            for (int i = 0; i < length; i++) buffer.put(offset + i, next[0]++);
+            return length;
+        };
+        assertEquals(2, queue.write(filler, false));
+        assertEquals(4, queue.write(filler, false));
+        assertEquals(0, queue.write(filler, false));
+
+        final ByteArrayOutputStream drained = new ByteArrayOutputStream();
+        final int[] runs = {0};
+        assertEquals(8, queue.read((buffer, offset, length) -> {
+            runs[0]++;
+            for (int i = 0; i < length; i++) drained.write(buffer.get(offset + i));
+        }, 100));
+        assertEquals(2, runs[0]);
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9, 10, 11, 12}, drained.toByteArray());
+        assertEquals(0, queue.read((buffer, offset, length) -> fail(), 100));
+    }
+
+    @Test
+    public void direct_fillerStopsWithNegativeResult() {
+        ByteRingBuffer queue = new ByteRingBuffer(8, true);
+        assertEquals(-1, queue.write((buffer, offset, length) -> -1, true));
+        assertEquals(0, queue.size());
+        queue.close();
+        assertEquals(-1, queue.write((buffer, offset, length) -> {
+            fail();
+            return 0;
+        }, true));
+    }
+}
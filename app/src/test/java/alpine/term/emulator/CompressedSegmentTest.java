@@ -0,0 +1,105 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Calendar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip and seek tests for {@link CompressedSegment}, and for reading compressed segments of a
+ * {@link SegmentedLogStore} through {@link MappedLogReader}.
+ */
+public class CompressedSegmentTest {
+
+    private static String logcatLines(int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(String.format("10-17 12:%02d:%02d.%03d  1234  5678 I Tag: message number %d\n", i / 60 % 60, i % 60, i % 1000, i));
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void compress_roundTripsThroughIndependentBlocks() throws IOException {
+        File directory = Files.createTempDirectory("compressed-segment").toFile();
+        File source = new File(directory, "0000000001.log");
+        String text = logcatLines(2000);
+        Files.write(source.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        File target = new File(directory, "0000000001.logz");
+        CompressedSegment.compress(source, target, 4096);
+
+        assertTrue(target.length() * 4 < source.length());
+        CompressedSegment segment = CompressedSegment.open(target);
+        assertTrue(segment.getBlockCount() > 1);
+        assertEquals(2000, segment.getLineCount());
+        assertEquals(source.length(), segment.getUncompressedLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int block = segment.getBlockCount() - 1; block >= 0; block--) segment.readBlock(block);
+        for (int block = 0; block < segment.getBlockCount(); block++) out.write(segment.readBlock(block));
+        assertEquals(text, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        segment.close();
+    }
+
+    @Test
+    public void findBlock_byLineAndByTime() throws IOException {
+        File directory = Files.createTempDirectory("compressed-segment").toFile();
+        File source = new File(directory, "0000000001.log");
+        Files.write(source.toPath(), logcatLines(2000).getBytes(StandardCharsets.UTF_8));
+        File target = new File(directory, "0000000001.logz");
+        CompressedSegment.compress(source, target, 4096);
+        CompressedSegment segment = CompressedSegment.open(target);
+
+        int block = segment.findBlockByLine(1500);
+        String text = new String(segment.readBlock(block), StandardCharsets.UTF_8);
+        int skip = (int) (1500 - segment.getBlockFirstLine(block));
+        assertTrue(text.split("\n")[skip].endsWith("message number 1500"));
+        assertEquals(-1, segment.findBlockByLine(2000));
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(source.lastModified());
+        int year = calendar.get(Calendar.YEAR);
+        calendar.clear();
+        calendar.set(year, Calendar.OCTOBER, 17, 12, 20, 0);
+        block = segment.findBlockByTime(calendar.getTimeInMillis());
+        assertTrue(segment.getBlockFirstTime(block) <= calendar.getTimeInMillis());
+        if (block + 1 < segment.getBlockCount()) assertTrue(segment.getBlockFirstTime(block + 1) > calendar.getTimeInMillis());
+        segment.close();
+    }
+
+    @Test
+    public void store_compressesCompletedSegmentsReadableThroughMappedLogReader() throws Exception {
+        File directory = Files.createTempDirectory("compressed-store").toFile();
+        SegmentedLogStore store = new SegmentedLogStore(directory, 16 * 1024, 1 << 20, 0, 4096);
+        String text = logcatLines(1000);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        MappedLogReader reader = new MappedLogReader(directory);
+        store.write(bytes, 0, bytes.length);
+        reader.refresh();
+        int completed = store.getSegments().size() - 1;
+        for (int i = 0; i < 500 && store.getCompressedSegments() < completed; i++) Thread.sleep(10);
+        assertEquals(completed, store.getCompressedSegments());
+        assertTrue(store.getSegments().get(0).isCompressed());
+
+        // Mapped before compression, still readable after the uncompressed files are gone.
+        assertEquals(1000, reader.getLineCount());
+        assertTrue(reader.getLine(999).endsWith("message number 999"));
+
+        // Opened after compression, reading the compressed blocks.
+        MappedLogReader fresh = new MappedLogReader(directory);
+        assertEquals(1000, fresh.getLineCount());
+        assertTrue(fresh.getLine(10).endsWith("message number 10"));
+        byte[] all = new byte[(int) fresh.getLength()];
+        assertEquals(all.length, fresh.read(0, all, 0, all.length));
+        assertEquals(text, new String(all, StandardCharsets.UTF_8));
+        fresh.close();
+        reader.close();
+        store.close();
+    }
+}
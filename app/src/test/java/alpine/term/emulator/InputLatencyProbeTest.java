@@ -0,0 +1,36 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucketing tests for {@link InputLatencyProbe}.
+ */
+public class InputLatencyProbeTest {
+
+    @Test
+    public void percentiles_areUpperBoundsWithinAFactorOfTwo() {
+        InputLatencyProbe probe = new InputLatencyProbe();
+        for (int i = 0; i < 99; i++) probe.record(10_000, true);
+        probe.record(5_000_000, false);
+
+        assertEquals(100, probe.getCount());
+        assertEquals(99, probe.getDirectCount());
+        assertEquals(5_000_000, probe.getMaxNanos());
+        assertEquals((99 * 10_000 + 5_000_000) / 100, probe.getMeanNanos());
+        long p50 = probe.getPercentileNanos(50);
+        assertTrue(p50 >= 10_000 && p50 < 20_000);
+        long p100 = probe.getPercentileNanos(100);
+        assertTrue(p100 >= 5_000_000 && p100 < 10_000_000);
+    }
+
+    @Test
+    public void empty_reportsZero() {
+        InputLatencyProbe probe = new InputLatencyProbe();
+        assertEquals(0, probe.getPercentileNanos(99));
+        assertEquals(0, probe.getMeanNanos());
+        probe.record(0, true);
+        assertEquals(0, probe.getPercentileNanos(99));
+    }
+}
@@ -0,0 +1,166 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of when a {@link LogWriter} syncs for each {@link LogWriter.Durability}, what it drops past its buffer
+ * limit, and that closing it writes out everything appended before.
+ */
+public class LogWriterTest {
+
+    /** Keeps what is written, and how much had been written at each sync. */
+    private static final class MemoryTarget implements LogWriter.Target {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Integer> syncedAt = new ArrayList<>();
+        volatile boolean closed;
+        /** If set, writes wait for it, after counting down writing. */
+        CountDownLatch gate;
+        final CountDownLatch writing = new CountDownLatch(1);
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            writing.countDown();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            synchronized (this) {
+                bytes.write(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public synchronized void sync() {
+            syncedAt.add(bytes.size());
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        synchronized String text() {
+            return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+        }
+
+        synchronized List<Integer> syncs() {
+            return new ArrayList<>(syncedAt);
+        }
+    }
+
+    private static void append(LogWriter writer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        writer.append(bytes, 0, bytes.length);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void groupCommit_syncsOnceEnoughBytesAccumulate() throws InterruptedException {
+        MemoryTarget target = new MemoryTarget();
+        LogWriter writer = new LogWriter(target, "test", LogWriter.Durability.GROUP_COMMIT, 60_000, 10, 1024);
+        append(writer, "abc");
+        await(() -> writer.getBytesWritten() == 3);
+        Thread.sleep(20);
+        assertEquals(0, writer.getFsyncs());
+
+        append(writer, "defghijk");
+        await(() -> writer.getFsyncs() == 1);
+        assertEquals("[11]", target.syncs().toString());
+
+        // A flush syncs whatever is left, below the threshold.
+        append(writer, "lm");
+        writer.flush();
+        assertEquals("[11, 13]", target.syncs().toString());
+        writer.close();
+        assertTrue(writer.awaitClosed(5000));
+    }
+
+    @Test
+    public void groupCommit_syncsOnceTheIntervalPasses() throws InterruptedException {
+        MemoryTarget target = new MemoryTarget();
+        LogWriter writer = new LogWriter(target, "test", LogWriter.Durability.GROUP_COMMIT, 20, 1 << 20, 1024);
+        append(writer, "abc");
+        await(() -> writer.getFsyncs() == 1);
+        assertEquals("[3]", target.syncs().toString());
+        writer.close();
+        assertTrue(writer.awaitClosed(5000));
+    }
+
+    @Test
+    public void perLine_syncsAfterEveryCompleteLine() throws InterruptedException {
+        MemoryTarget target = new MemoryTarget();
+        LogWriter writer = new LogWriter(target, "test", LogWriter.Durability.PER_LINE, 0, 0, 1024);
+        append(writer, "a\nbc\nd");
+        writer.flush();
+        assertEquals("a\nbc\nd", target.text());
+        // The flush also syncs the unterminated "d".
+        assertEquals("[2, 5, 6]", target.syncs().toString());
+        writer.close();
+        assertTrue(writer.awaitClosed(5000));
+    }
+
+    @Test
+    public void append_dropsAndCountsBytesPastTheLimitIncludingThoseBeingWritten() throws InterruptedException {
+        MemoryTarget target = new MemoryTarget();
+        target.gate = new CountDownLatch(1);
+        LogWriter writer = new LogWriter(target, "test", LogWriter.Durability.NONE, 0, 0, 8);
+        append(writer, "0123456");
+        // The writer thread holds those 7 bytes until the gate opens, so only 1 more fits.
+        assertTrue(target.writing.await(5, TimeUnit.SECONDS));
+        append(writer, "789");
+        assertEquals(2, writer.getDroppedBytes());
+        append(writer, "x");
+        assertEquals(3, writer.getDroppedBytes());
+
+        target.gate.countDown();
+        writer.flush();
+        assertEquals("01234567", target.text());
+        // Room again once written.
+        append(writer, "89");
+        writer.flush();
+        assertEquals("0123456789", target.text());
+        assertEquals(3, writer.getDroppedBytes());
+        writer.close();
+        assertTrue(writer.awaitClosed(5000));
+    }
+
+    @Test
+    public void close_writesOutEverythingAppendedBeforeAndSyncs() throws InterruptedException {
+        MemoryTarget target = new MemoryTarget();
+        LogWriter writer = new LogWriter(target, "test", LogWriter.Durability.GROUP_COMMIT, 60_000, 1 << 20, 1 << 20);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String line = "line " + i + "\n";
+            append(writer, line);
+            expected.append(line);
+        }
+        writer.close();
+        append(writer, "after close\n");
+        assertTrue(writer.awaitClosed(5000));
+
+        assertEquals(expected.toString(), target.text());
+        assertTrue(target.closed);
+        assertEquals(expected.length(), (int) target.syncs().get(target.syncs().size() - 1));
+        assertEquals(0, writer.getDroppedBytes());
+    }
+}
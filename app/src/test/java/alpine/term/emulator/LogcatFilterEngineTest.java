@@ -0,0 +1,144 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link LogcatFilterEngine} against evaluating a {@link LogcatFilter} record by record, plus an opt-in
+ * benchmark of the two.
+ */
+public class LogcatFilterEngineTest {
+
+    private static final String LEVELS = "VDIWEFA";
+
+    private static void appendLines(LogcatRecordStore store, Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(50) == 0) {
+                text.append("--------- beginning of crash\n");
+                continue;
+            }
+            text.append(String.format("10-17 12:%02d:%02d.%03d  %d  %d %c Tag%d: %s %d\n",
+                random.nextInt(60), random.nextInt(60), random.nextInt(1000), 100 + random.nextInt(8),
+                200 + random.nextInt(8), LEVELS.charAt(random.nextInt(7)), random.nextInt(20),
+                random.nextBoolean() ? "needle in message" : "plain message", random.nextInt(1000)));
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        store.append(bytes, 0, bytes.length);
+    }
+
+    private static LogcatFilter randomFilter(Random random) {
+        LogcatFilter filter = new LogcatFilter();
+        if (random.nextBoolean()) filter.setMinLevel(LEVELS.charAt(random.nextInt(7)));
+        if (random.nextInt(3) == 0) filter.includeTag("Tag" + random.nextInt(20)).includeTag("Tag" + random.nextInt(20));
+        if (random.nextInt(3) == 0) filter.excludeTag("Tag" + random.nextInt(20));
+        if (random.nextInt(4) == 0) filter.setPid(100 + random.nextInt(8));
+        if (random.nextInt(4) == 0) filter.setTid(200 + random.nextInt(8));
+        if (random.nextInt(3) == 0) filter.setMessageContains(random.nextBoolean() ? "needle" : "crash");
+        return filter;
+    }
+
+    /** The records of the store passing the filter, one at a time through the getters. */
+    private static List<Long> expectedMatches(LogcatRecordStore store, LogcatFilter filter) {
+        List<Long> matches = new ArrayList<>();
+        for (long sequence = store.getFirstSequence(); sequence < store.getNextSequence(); sequence++) {
+            char level = (char) store.getLevel(sequence);
+            boolean passes;
+            if (level == LogcatRecordStore.LEVEL_NONE) {
+                passes = filter.getMinLevel() == 'V' && filter.getIncludedTags().isEmpty()
+                    && filter.getPid() < 0 && filter.getTid() < 0;
+            } else {
+                String tag = store.getTag(store.getTagId(sequence));
+                passes = LEVELS.indexOf(level) >= LEVELS.indexOf(filter.getMinLevel())
+                    && (filter.getIncludedTags().isEmpty() || filter.getIncludedTags().contains(tag))
+                    && !filter.getExcludedTags().contains(tag)
+                    && (filter.getPid() < 0 || store.getPid(sequence) == filter.getPid())
+                    && (filter.getTid() < 0 || store.getTid(sequence) == filter.getTid());
+            }
+            if (passes && store.getMessage(sequence).contains(filter.getMessageContains())) matches.add(sequence);
+        }
+        return matches;
+    }
+
+    private static void assertMatches(LogcatRecordStore store, LogcatFilter filter, LogcatFilterEngine engine) {
+        List<Long> expected = expectedMatches(store, filter);
+        assertEquals(expected.size(), engine.getMatchCount());
+        for (int i = 0; i < expected.size(); i++) assertEquals((long) expected.get(i), engine.getMatch(i));
+    }
+
+    @Test
+    public void engine_matchesRecordByRecordEvaluation() {
+        Random random = new Random(7);
+        LogcatRecordStore store = new LogcatRecordStore(1024, 1 << 15);
+        LogcatFilterEngine engine = new LogcatFilterEngine(store);
+        for (int round = 0; round < 200; round++) {
+            if (random.nextInt(4) == 0) {
+                LogcatFilter filter = randomFilter(random);
+                engine.setFilter(filter);
+                assertMatches(store, filter, engine);
+            }
+            // Enough lines to evict from the ring now and then.
+            appendLines(store, random, random.nextInt(300));
+            engine.update();
+            assertMatches(store, engine.getFilter(), engine);
+        }
+    }
+
+    @Test
+    public void engine_nonRecordsOnlyPassWhenUnfiltered() {
+        LogcatRecordStore store = new LogcatRecordStore(16, 1024);
+        byte[] bytes = ("--------- beginning of main\n"
+            + "10-17 12:34:56.789  1234  5678 E Tag: failed\n").getBytes(StandardCharsets.UTF_8);
+        store.append(bytes, 0, bytes.length);
+        LogcatFilterEngine engine = new LogcatFilterEngine(store);
+        assertEquals(2, engine.getMatchCount());
+        engine.setFilter(new LogcatFilter().excludeTag("Other"));
+        assertEquals(2, engine.getMatchCount());
+        engine.setFilter(new LogcatFilter().setMinLevel('D'));
+        assertEquals(1, engine.getMatchCount());
+        assertEquals(1, engine.getMatch(0));
+        engine.setFilter(new LogcatFilter().setMessageContains("beginning"));
+        assertEquals(1, engine.getMatchCount());
+        assertEquals(0, engine.getMatch(0));
+    }
+
+    @Test
+    public void setFilter_matchesRecordByRecordOnFullStore() {
+        Random random = new Random(3);
+        LogcatRecordStore store = new LogcatRecordStore(16 * 1024, 2 << 20);
+        appendLines(store, random, 20 * 1024);
+        LogcatFilterEngine engine = new LogcatFilterEngine(store);
+        LogcatFilter filter = new LogcatFilter().setMinLevel('W').includeTag("Tag3").includeTag("Tag7").setPid(101);
+        engine.setFilter(filter);
+        assertMatches(store, filter, engine);
+    }
+
+    /** Prints the best of ten filter passes over 64K records each way, see {@link Benchmarks}. */
+    @Test
+    public void setFilter_benchmark() {
+        Benchmarks.assumeEnabled();
+        Random random = new Random(3);
+        LogcatRecordStore store = new LogcatRecordStore(64 * 1024, 8 << 20);
+        appendLines(store, random, 64 * 1024);
+        LogcatFilterEngine engine = new LogcatFilterEngine(store);
+        LogcatFilter filter = new LogcatFilter().setMinLevel('W').includeTag("Tag3").includeTag("Tag7").setPid(101);
+        long engineNanos = Long.MAX_VALUE, naiveNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            engine.setFilter(filter);
+            engineNanos = Math.min(engineNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            expectedMatches(store, filter);
+            naiveNanos = Math.min(naiveNanos, System.nanoTime() - start);
+        }
+        assertMatches(store, filter, engine);
+        System.out.println("filter " + store.size() + " records: engine " + engineNanos / 1000 + "us, record by record "
+            + naiveNanos / 1000 + "us");
+    }
+}
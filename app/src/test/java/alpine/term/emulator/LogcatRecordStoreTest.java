@@ -0,0 +1,151 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of parsing threadtime logcat output into a {@link LogcatRecordStore}.
+ */
+public class LogcatRecordStoreTest {
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long time(int month, int day, int hour, int minute, int second, int millis) {
+        Calendar calendar = Calendar.getInstance();
+        int year = calendar.get(Calendar.YEAR);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void append_parsesThreadtimeRecords() {
+        LogcatRecordStore store = new LogcatRecordStore(16, 1024);
+        byte[] text = bytes("--------- beginning of main\n"
+            + "10-17 12:34:56.789  1234  5678 I ActivityManager: Start proc com.example\n"
+            + "\033[38;5;196m10-17 12:34:57.001   321   322 E Tag with spaces: failed: code=3\033[0m\r\n"
+            + "10-17 13:00:00.000 99 100 W Ünicode  : héllo wörld\n"
+            + "10-17 13:00:00.000 99 100 D Empty:\n");
+        store.append(text, 0, text.length);
+
+        assertEquals(5, store.size());
+        assertEquals(LogcatRecordStore.LEVEL_NONE, store.getLevel(0));
+        assertEquals("--------- beginning of main", store.getMessage(0));
+        assertEquals(LogcatRecordStore.NO_TAG, store.getTagId(0));
+
+        assertEquals(time(10, 17, 12, 34, 56, 789), store.getTime(1));
+        assertEquals(1234, store.getPid(1));
+        assertEquals(5678, store.getTid(1));
+        assertEquals('I', store.getLevel(1));
+        assertEquals("ActivityManager", store.getTag(store.getTagId(1)));
+        assertEquals("Start proc com.example", store.getMessage(1));
+
+        assertEquals(time(10, 17, 12, 34, 57, 1), store.getTime(2));
+        assertEquals('E', store.getLevel(2));
+        assertEquals("Tag with spaces", store.getTag(store.getTagId(2)));
+        assertEquals("failed: code=3", store.getMessage(2));
+
+        assertEquals(time(10, 17, 13, 0, 0, 0), store.getTime(3));
+        assertEquals("Ünicode", store.getTag(store.getTagId(3)));
+        assertEquals("héllo wörld", store.getMessage(3));
+        assertEquals('ö', store.getMessageChar(3, 7));
+
+        assertEquals("Empty", store.getTag(store.getTagId(4)));
+        assertEquals("", store.getMessage(4));
+    }
+
+    @Test
+    public void append_joinsLinesSplitAcrossChunksAndInternsTags() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append(String.format("10-17 12:%02d:%02d.%03d  %d  %d %c Tag%d: message number %d\n",
+                i / 60 % 60, i % 60, i % 1000, 1000 + i, 2000 + i, "VDIWEFA".charAt(i % 7), i % 13, i));
+        }
+        byte[] bytes = bytes(text.toString());
+        LogcatRecordStore store = new LogcatRecordStore(1024, 1 << 16);
+        Random random = new Random(1);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 8);
+        direct.put(3, (byte) 'x');
+        for (int offset = 0; offset < bytes.length; ) {
+            int count = Math.min(bytes.length - offset, 1 + random.nextInt(100));
+            if (random.nextBoolean()) {
+                store.append(bytes, offset, count);
+            } else {
+                for (int i = 0; i < count; i++) direct.put(5 + i, bytes[offset + i]);
+                store.append(direct, 5, count);
+            }
+            offset += count;
+        }
+
+        assertEquals(500, store.size());
+        assertEquals(13, store.getTagCount());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(time(10, 17, 12, i / 60 % 60, i % 60, i % 1000), store.getTime(i));
+            assertEquals(1000 + i, store.getPid(i));
+            assertEquals(2000 + i, store.getTid(i));
+            assertEquals("VDIWEFA".charAt(i % 7), store.getLevel(i));
+            assertEquals(store.findTag("Tag" + (i % 13)), store.getTagId(i));
+            assertEquals("message number " + i, store.getMessage(i));
+        }
+    }
+
+    @Test
+    public void append_evictsOldestRecordsWhenFull() {
+        LogcatRecordStore store = new LogcatRecordStore(8, 100);
+        for (int i = 0; i < 20; i++) {
+            byte[] line = bytes("10-17 12:00:00.000 1 1 I T: m" + i + "\n");
+            store.append(line, 0, line.length);
+        }
+        // Eight records at most.
+        assertEquals(12, store.getFirstSequence());
+        assertEquals(20, store.getNextSequence());
+        assertNull(store.getMessage(11));
+        assertEquals(-1, store.getTime(11));
+        assertEquals("m19", store.getMessage(19));
+
+        // Long messages evict by arena space instead, wrapping around the end of the arena.
+        for (int i = 0; i < 10; i++) {
+            byte[] line = bytes("10-17 12:00:00.000 1 1 I T: " + (char) ('a' + i) + "0123456789012345678901234567890123456789\n");
+            store.append(line, 0, line.length);
+        }
+        assertEquals(2, store.size());
+        assertEquals((char) ('a' + 9) + "0123456789012345678901234567890123456789", store.getMessage(29));
+        assertEquals((char) ('a' + 8) + "0123456789012345678901234567890123456789", store.getMessage(28));
+    }
+
+    @Test
+    public void append_growsColumnsAndArenaKeepingRecordsInPlace() {
+        LogcatRecordStore store = new LogcatRecordStore(4096, 200_000);
+        // Messages wrap around the initial arena before it is grown.
+        for (int i = 0; i < 3000; i++) {
+            byte[] line = bytes("10-17 12:00:00.000 " + i + " 1 I T: message " + i + " " + "0123456789".substring(i % 10) + "\n");
+            store.append(line, 0, line.length);
+        }
+        assertEquals(0, store.getFirstSequence());
+        assertEquals(3000, store.size());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i, store.getPid(i));
+            assertEquals("message " + i + " " + "0123456789".substring(i % 10), store.getMessage(i));
+        }
+
+        // Past both capacities the oldest records are evicted as before.
+        for (int i = 3000; i < 12000; i++) {
+            byte[] line = bytes("10-17 12:00:00.000 " + i + " 1 I T: message " + i + "\n");
+            store.append(line, 0, line.length);
+        }
+        assertEquals(12000, store.getNextSequence());
+        assertTrue(store.size() <= 4096);
+        assertEquals("message 11999", store.getMessage(11999));
+        assertEquals(11999 - store.size() + 1, store.getFirstSequence());
+        assertEquals(store.getFirstSequence(), store.getPid(store.getFirstSequence()));
+    }
+}
@@ -0,0 +1,75 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Line indexing tests for {@link MappedLogReader}, across segment boundaries and past the index stride.
+ */
+public class MappedLogReaderTest {
+
+    private static File writeFile(File directory, String name, String text) throws IOException {
+        File file = new File(directory, name);
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            stream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    @Test
+    public void getLine_findsLinesPastTheIndexStride() throws IOException {
+        File directory = Files.createTempDirectory("mapped-log").toFile();
+        StringBuilder text = new StringBuilder();
+        int lines = MappedLogReader.INDEX_STRIDE * 5 + 3;
+        for (int i = 0; i < lines; i++) text.append("line ").append(i).append("\r\n");
+        MappedLogReader reader = new MappedLogReader(Arrays.asList(writeFile(directory, "log.txt", text.toString())));
+
+        assertEquals("line 200", reader.getLine(200));
+        assertEquals("line 0", reader.getLine(0));
+        assertEquals(lines, reader.getLineCount());
+        assertNull(reader.getLine(lines));
+        assertEquals("line 3\r\nline 4\r\n", new String(reader.readLines(3, 2), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void lines_spanSegmentBoundaries() throws IOException {
+        File directory = Files.createTempDirectory("mapped-log").toFile();
+        writeFile(directory, "0000000001.log", "first\nsplit ");
+        writeFile(directory, "0000000002.log", "line\nlast");
+        MappedLogReader reader = new MappedLogReader(directory);
+
+        assertEquals(3, reader.getLineCount());
+        assertEquals("split line", reader.getLine(1));
+        assertEquals("last", reader.getLine(2));
+        assertEquals("split line\nlast", new String(readFrom(reader, reader.getTailOffset(2)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void refresh_picksUpAppendedOutputAndNewSegments() throws IOException {
+        File directory = Files.createTempDirectory("mapped-log").toFile();
+        writeFile(directory, "0000000001.log", "a\n");
+        MappedLogReader reader = new MappedLogReader(directory);
+        assertEquals(1, reader.getLineCount());
+
+        writeFile(directory, "0000000001.log", "b\n");
+        writeFile(directory, "0000000002.log", "c\n");
+        assertTrue(reader.refresh());
+        assertEquals(3, reader.getLineCount());
+        assertEquals("c", reader.getLine(2));
+        assertFalse(reader.refresh());
+    }
+
+    private static byte[] readFrom(MappedLogReader reader, long offset) {
+        byte[] bytes = new byte[(int) (reader.getLength() - offset)];
+        assertEquals(bytes.length, reader.read(offset, bytes, 0, bytes.length));
+        return bytes;
+    }
+}
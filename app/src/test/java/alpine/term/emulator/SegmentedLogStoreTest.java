@@ -0,0 +1,110 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rollover, retention and reopening tests for {@link SegmentedLogStore}.
+ */
+public class SegmentedLogStoreTest {
+
+    private static File newDirectory() throws IOException {
+        return Files.createTempDirectory("segmented-log").toFile();
+    }
+
+    private static void write(SegmentedLogStore store, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        store.write(bytes, 0, bytes.length);
+    }
+
+    private static String readAll(SegmentedLogStore store) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (SegmentedLogStore.Segment segment : store.getSegments()) out.write(Files.readAllBytes(segment.mFile.toPath()));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void write_rollsOverAtLineBoundaries() throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(newDirectory(), 16, 1 << 20, 0);
+        write(store, "0123456789\nabcdefghij\nxyz\n");
+        List<SegmentedLogStore.Segment> segments = store.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals("0123456789\n", new String(Files.readAllBytes(segments.get(0).mFile.toPath()), StandardCharsets.UTF_8));
+        assertEquals("0123456789\nabcdefghij\nxyz\n", readAll(store));
+        store.close();
+    }
+
+    @Test
+    public void write_keepsLinesLongerThanASegmentTogether() throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(newDirectory(), 8, 1 << 20, 0);
+        write(store, "a very long line\n");
+        write(store, "b\n");
+        List<SegmentedLogStore.Segment> segments = store.getSegments();
+        assertEquals(17, segments.get(0).getBytes());
+        assertEquals("a very long line\nb\n", readAll(store));
+        store.close();
+    }
+
+    @Test
+    public void retention_deletesOldestSegmentsPastTheSizeLimit() throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(newDirectory(), 10, 30, 0);
+        for (int i = 0; i < 10; i++) write(store, "line " + i + "...\n");
+        assertTrue(store.getTotalBytes() <= 30);
+        assertTrue(store.getDeletedSegments() > 0);
+        assertTrue(readAll(store).endsWith("line 9...\n"));
+        store.close();
+    }
+
+    @Test
+    public void retention_deletesSegmentsPastTheAgeLimit() throws IOException {
+        File directory = newDirectory();
+        SegmentedLogStore store = new SegmentedLogStore(directory, 10, 1 << 20, 0);
+        write(store, "old line.\n");
+        store.close();
+
+        File manifest = new File(directory, SegmentedLogStore.MANIFEST_NAME);
+        String aged = new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8).replaceAll("(?m)^1 \\d+ \\d+", "1 0 0");
+        Files.write(manifest.toPath(), aged.getBytes(StandardCharsets.UTF_8));
+
+        store = new SegmentedLogStore(directory, 10, 1 << 20, 60 * 1000);
+        assertEquals(1, store.getDeletedSegments());
+        assertEquals("", readAll(store));
+        store.close();
+    }
+
+    @Test
+    public void reopen_appendsInsteadOfTruncating() throws IOException {
+        File directory = newDirectory();
+        SegmentedLogStore store = new SegmentedLogStore(directory, 1024, 1 << 20, 0);
+        write(store, "first run\n");
+        store.close();
+
+        store = new SegmentedLogStore(directory, 1024, 1 << 20, 0);
+        write(store, "second run\n");
+        assertEquals(1, store.getSegments().size());
+        assertEquals("first run\nsecond run\n", readAll(store));
+        store.close();
+    }
+
+    @Test
+    public void reopen_recoversSegmentsMissingFromTheManifest() throws IOException {
+        File directory = newDirectory();
+        SegmentedLogStore store = new SegmentedLogStore(directory, 1024, 1 << 20, 0);
+        write(store, "kept\n");
+        store.sync();
+        // Simulate a crash before the manifest was ever written with this segment.
+        assertTrue(new File(directory, SegmentedLogStore.MANIFEST_NAME).delete());
+
+        store = new SegmentedLogStore(directory, 1024, 1 << 20, 0);
+        assertEquals("kept\n", readAll(store));
+        store.close();
+    }
+}
@@ -0,0 +1,136 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a {@link StreamingPaste} writes exactly what pasting used to, with two regex passes over the whole
+ * text, whatever the chunk size, and that it can be cancelled. An opt-in benchmark compares the two on a long paste.
+ */
+public class StreamingPasteTest {
+
+    private static final char[] CHARS = {'a', 'Z', ' ', '\r', '\n', 27, 0x85, 0x9F, 0xA0, 0xE9, 0x4E2D, 0xFFFD,
+        '\uD83D', '\uDE00', '\uDC00', '\t', '~'};
+
+    /** How pasting was done before streaming. */
+    private static byte[] legacyPaste(String text, boolean bracketed) {
+        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
+        text = text.replaceAll("\r?\n", "\r");
+        if (bracketed) text = "\033[200~" + text + "\033[201~";
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Collects what is written, with room for at most limit chunks. */
+    private static final class Collector implements StreamingPaste.Output {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int chunks;
+        int limit = Integer.MAX_VALUE;
+
+        @Override
+        public boolean awaitSpace(StreamingPaste paste, int count) {
+            return chunks < limit;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            chunks++;
+            bytes.write(data, offset, count);
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) text.append(CHARS[random.nextInt(CHARS.length)]);
+        return text.toString();
+    }
+
+    @Test
+    public void run_writesWhatLegacyPasteDid() {
+        Random random = new Random(23);
+        for (int round = 0; round < 2000; round++) {
+            String text = randomText(random, random.nextInt(100));
+            boolean bracketed = random.nextBoolean();
+            Collector collector = new Collector();
+            new StreamingPaste(text, bracketed, null).run(collector, 4 + random.nextInt(40));
+            assertArrayEquals(text, legacyPaste(text, bracketed), collector.bytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void run_reportsProgressAndStopsWhenCancelled() {
+        String text = randomText(new Random(1), 10_000);
+        final int[] progress = new int[2];
+        final Boolean[] completed = new Boolean[1];
+        Collector collector = new Collector();
+        StreamingPaste paste = new StreamingPaste(text, true, new StreamingPaste.Listener() {
+            @Override
+            public void onPasteProgress(StreamingPaste paste, int charsPasted, int charsTotal) {
+                assertTrue(charsPasted > progress[0]);
+                progress[0] = charsPasted;
+                progress[1] = charsTotal;
+                if (charsPasted > 5000) paste.cancel();
+            }
+
+            @Override
+            public void onPasteFinished(StreamingPaste paste, boolean pasteCompleted) {
+                completed[0] = pasteCompleted;
+            }
+        });
+        paste.run(collector, 1024);
+        assertEquals(Boolean.FALSE, completed[0]);
+        assertEquals(10_000, progress[1]);
+        assertTrue(progress[0] < 10_000);
+        // The paste is still ended after being cancelled.
+        String written = new String(collector.bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(written.startsWith("\033[200~"));
+        assertTrue(written.endsWith("\033[201~"));
+
+        // The process stopping reading the paste stops it too.
+        collector = new Collector();
+        collector.limit = 3;
+        new StreamingPaste(text, false, null).run(collector, 1024);
+        assertEquals(3, collector.chunks);
+    }
+
+    @Test
+    public void run_matchesLegacyPasteOfLongText() {
+        String text = pastedFile(256 * 1024);
+        Collector collector = new Collector();
+        new StreamingPaste(text, true, null).run(collector, 16 * 1024);
+        assertArrayEquals(legacyPaste(text, true), collector.bytes.toByteArray());
+    }
+
+    /** Prints the fastest of five 4M-char pastes each way, see {@link Benchmarks}. */
+    @Test
+    public void run_benchmark() {
+        Benchmarks.assumeEnabled();
+        String text = pastedFile(4 << 20);
+        long streamed = Long.MAX_VALUE, legacy = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            Collector collector = new Collector();
+            long start = System.nanoTime();
+            new StreamingPaste(text, true, null).run(collector, 16 * 1024);
+            streamed = Math.min(streamed, System.nanoTime() - start);
+            start = System.nanoTime();
+            byte[] expected = legacyPaste(text, true);
+            legacy = Math.min(legacy, System.nanoTime() - start);
+            assertEquals(expected.length, collector.bytes.size());
+        }
+        System.out.println("paste " + text.length() + " chars: streamed " + streamed / 1000 + "us, regex passes "
+            + legacy / 1000 + "us");
+    }
+
+    private static String pastedFile(int chars) {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(2);
+        while (builder.length() < chars) {
+            builder.append("line ").append(random.nextInt()).append(" of a pasted file, with ünïcode ✓\r\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Differential tests of the printable ASCII run path of {@link TerminalEmulator#append(byte[], int)} against the
+ * byte at a time path, plus an opt-in throughput comparison on logcat output.
+ */
+public class TerminalEmulatorAsciiRunTest {
+
+    static final class NullOutput extends TerminalOutput {
+        @Override
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+        }
+
+        @Override
+        public void clipboardText(String text) {
+        }
+
+        @Override
+        public void onBell() {
+        }
+
+        @Override
+        public void onColorsChanged() {
+        }
+    }
+
+    private static final String[] FRAGMENTS = {
+        "\r\n", "\n", "\r", "\t", "\033[A", "\033[5C", "\033[2;7H", "\033[K", "\033[2J", "\033[31m", "\033[1;42m",
+        "\033[0m", "\033[4h", "\033[4l", "\033(0", "\033(B", "\016", "\017", "\033[?7l", "\033[?7h", "\033[3;9r",
+        "\033[r", "\033[?69h\033[2;6s", "\033[?69l", "\033[3b", "\033[2@", "\033[3P", "\033M", "\033D", "é", "你好",
+        "😀", "́", "ÿ", "\033]0;title\007",
+    };
+
+    private static byte[] randomCorpus(long seed, int pieces) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < pieces; i++) {
+            if (random.nextInt(3) == 0) {
+                text.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            } else {
+                int length = random.nextInt(random.nextBoolean() ? 12 : 200);
+                for (int j = 0; j < length; j++) text.append((char) (0x20 + random.nextInt(0x5F)));
+            }
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        // Break some UTF-8 sequences up with ASCII.
+        for (int i = 0; i < bytes.length / 500; i++) bytes[random.nextInt(bytes.length)] = (byte) (0x80 + random.nextInt(0x80));
+        return bytes;
+    }
+
+    private static TerminalEmulator emulator(int columns, boolean fastPath) {
+        TerminalEmulator emulator = new TerminalEmulator(new NullOutput(), columns, 24, 200);
+        emulator.mAsciiFastPath = fastPath;
+        return emulator;
+    }
+
+    /** Feed bytes in random chunks, alternately through both append overloads. */
+    static void feed(TerminalEmulator emulator, byte[] bytes, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 16);
+        for (int offset = 0; offset < bytes.length; ) {
+            int count = Math.min(bytes.length - offset, 1 + random.nextInt(300));
+            if (random.nextBoolean()) {
+                byte[] chunk = new byte[count];
+                System.arraycopy(bytes, offset, chunk, 0, count);
+                emulator.append(chunk, count);
+            } else {
+                int at = random.nextInt(16);
+                for (int i = 0; i < count; i++) direct.put(at + i, bytes[offset + i]);
+                emulator.append(direct, at, count);
+            }
+            offset += count;
+        }
+    }
+
+    static void assertSameState(TerminalEmulator expected, TerminalEmulator actual) {
+        TerminalBuffer expectedScreen = expected.getScreen();
+        TerminalBuffer actualScreen = actual.getScreen();
+        assertEquals(expectedScreen.getTranscriptText(), actualScreen.getTranscriptText());
+        assertEquals(expectedScreen.getActiveTranscriptRows(), actualScreen.getActiveTranscriptRows());
+        for (int row = -expectedScreen.getActiveTranscriptRows(); row < expected.mRows; row++) {
+            assertEquals("line wrap of row " + row, expectedScreen.getLineWrap(row), actualScreen.getLineWrap(row));
+            for (int column = 0; column < expected.mColumns; column++) {
+                assertEquals("style at " + row + "," + column, expectedScreen.getStyleAt(row, column), actualScreen.getStyleAt(row, column));
+            }
+        }
+        assertEquals(expected.getCursorRow(), actual.getCursorRow());
+        assertEquals(expected.getCursorCol(), actual.getCursorCol());
+    }
+
+    @Test
+    public void asciiRuns_matchTheByteAtATimePath() {
+        for (long seed = 1; seed <= 40; seed++) {
+            byte[] corpus = randomCorpus(seed, 400);
+            int columns = seed % 4 == 0 ? 7 : 80;
+            TerminalEmulator slow = emulator(columns, false);
+            TerminalEmulator fast = emulator(columns, true);
+            feed(slow, corpus, seed);
+            feed(fast, corpus, seed * 31);
+            assertSameState(slow, fast);
+            // The last emitted code point is visible through REP.
+            byte[] repeat = "\033[5b".getBytes(StandardCharsets.US_ASCII);
+            slow.append(repeat, repeat.length);
+            fast.append(repeat, repeat.length);
+            assertSameState(slow, fast);
+        }
+    }
+
+    @Test
+    public void logcatOutputInChunks_matchesByteAtATime() {
+        byte[] corpus = logcatCorpus(256 * 1024);
+        TerminalEmulator slow = emulator(120, false);
+        TerminalEmulator fast = emulator(120, true);
+        slow.isLogView = fast.isLogView = true;
+        for (int offset = 0; offset < corpus.length; offset += 4096) {
+            int count = Math.min(4096, corpus.length - offset);
+            byte[] chunk = new byte[count];
+            System.arraycopy(corpus, offset, chunk, 0, count);
+            slow.append(chunk, count);
+            fast.append(chunk, count);
+        }
+        assertSameState(slow, fast);
+    }
+
+    /** Prints the throughput of both paths, see {@link Benchmarks}. */
+    @Test
+    public void benchmark_logcatThroughput() {
+        Benchmarks.assumeEnabled();
+        byte[] corpus = logcatCorpus(4 * 1024 * 1024);
+        double perByte = 0, perRun = 0;
+        for (int round = 0; round < 3; round++) {
+            perByte = mibPerSecond(corpus, false);
+            perRun = mibPerSecond(corpus, true);
+        }
+        System.out.printf("logcat corpus: byte at a time %.1f MiB/s, ASCII runs %.1f MiB/s (%.1fx)%n", perByte, perRun, perRun / perByte);
+    }
+
+    private static double mibPerSecond(byte[] corpus, boolean fastPath) {
+        TerminalEmulator emulator = emulator(120, fastPath);
+        emulator.isLogView = true;
+        long start = System.nanoTime();
+        for (int offset = 0; offset < corpus.length; offset += 4096) {
+            int count = Math.min(4096, corpus.length - offset);
+            byte[] chunk = new byte[count];
+            System.arraycopy(corpus, offset, chunk, 0, count);
+            emulator.append(chunk, count);
+        }
+        return Benchmarks.mibPerSecond(corpus.length, System.nanoTime() - start);
+    }
+
+    private static byte[] logcatCorpus(int bytes) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < bytes; i++) {
+            text.append(String.format("10-17 12:%02d:%02d.%03d  1234  5678 I ActivityManager: Start proc %d:com.example/u0a%d for activity\n",
+                i / 60 % 60, i % 60, i % 1000, 10000 + i, i % 300));
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
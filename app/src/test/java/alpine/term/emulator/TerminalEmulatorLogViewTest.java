@@ -0,0 +1,110 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Differential tests of the log view path of {@link TerminalEmulator}, which applies line feeds and SGR sequences
+ * directly, against the escape parser, plus an opt-in throughput comparison on colored logcat output.
+ */
+public class TerminalEmulatorLogViewTest {
+
+    private static final String[] COLORS = {
+        "\033[38;5;196m", "\033[38;5;75m", "\033[38;5;40m", "\033[0m", "\033[m", "\033[1;31m", "\033[;4m",
+        "\033[48;2;10;20;30m", "\033[0;0;0;0;0;0;0;0;0;0;0;0;0;0;0;0;0;1m", "\033[99999999999m",
+    };
+
+    /** Anything else the escape parser has to see, including sequences that only look like SGR at first. */
+    private static final String[] OTHER = {
+        "\r", "\t", "\033[2J", "\033[K", "\033[3;9r", "\033[r", "\033[?69h\033[2;6s", "\033[?69l", "\033[38:5:1m",
+        "\033[1 m", "\033[?1m", "\033]0;title\007", "\033M", "é", "你好", "😀", "\033(0", "\033(B", "\033[4h", "\033[4l",
+    };
+
+    private static byte[] logcatCorpus(long seed, int lines, boolean noise) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (random.nextBoolean()) text.append(COLORS[random.nextInt(COLORS.length)]);
+            text.append(String.format("10-17 12:%02d:%02d.%03d  %4d  %4d %c Tag%d: ", i / 60 % 60, i % 60, i % 1000,
+                random.nextInt(9999), random.nextInt(9999), "VDIWE".charAt(random.nextInt(5)), random.nextInt(20)));
+            int length = random.nextInt(random.nextBoolean() ? 30 : 200);
+            for (int j = 0; j < length; j++) text.append((char) (0x20 + random.nextInt(0x5F)));
+            if (noise && random.nextInt(4) == 0) text.append(random.nextBoolean() ? COLORS[random.nextInt(COLORS.length)] : OTHER[random.nextInt(OTHER.length)]);
+            if (random.nextBoolean()) text.append("\033[0m");
+            text.append('\n');
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        // Break some UTF-8 sequences up with line feeds and escapes.
+        if (noise) for (int i = 0; i < bytes.length / 2000; i++) bytes[random.nextInt(bytes.length)] = (byte) (0x80 + random.nextInt(0x80));
+        return bytes;
+    }
+
+    private static TerminalEmulator emulator(int columns, boolean fastPath) {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), columns, 24, 300);
+        emulator.isLogView = true;
+        emulator.mLogFastPath = fastPath;
+        return emulator;
+    }
+
+    @Test
+    public void logView_matchesTheEscapeParser() {
+        for (long seed = 1; seed <= 40; seed++) {
+            byte[] corpus = logcatCorpus(seed, 300, true);
+            int columns = seed % 4 == 0 ? 9 : 100;
+            TerminalEmulator slow = emulator(columns, false);
+            TerminalEmulator fast = emulator(columns, true);
+            TerminalEmulatorAsciiRunTest.feed(slow, corpus, seed);
+            TerminalEmulatorAsciiRunTest.feed(fast, corpus, seed * 31);
+            TerminalEmulatorAsciiRunTest.assertSameState(slow, fast);
+            // The colors set last apply to what comes next.
+            byte[] more = "next\n".getBytes(StandardCharsets.US_ASCII);
+            slow.append(more, more.length);
+            fast.append(more, more.length);
+            TerminalEmulatorAsciiRunTest.assertSameState(slow, fast);
+        }
+    }
+
+    @Test
+    public void logView_matchesTheEscapeParserOnCleanOutputInChunks() {
+        byte[] corpus = logcatCorpus(7, 2000, false);
+        TerminalEmulator slow = emulator(120, false);
+        TerminalEmulator fast = emulator(120, true);
+        for (int offset = 0; offset < corpus.length; offset += 4096) {
+            int count = Math.min(4096, corpus.length - offset);
+            byte[] chunk = new byte[count];
+            System.arraycopy(corpus, offset, chunk, 0, count);
+            slow.append(chunk, count);
+            fast.append(chunk, count);
+        }
+        TerminalEmulatorAsciiRunTest.assertSameState(slow, fast);
+    }
+
+    /** Prints the best of 20 rounds for each path, see {@link Benchmarks}. */
+    @Test
+    public void benchmark_coloredLogcatThroughput() {
+        Benchmarks.assumeEnabled();
+        byte[] corpus = logcatCorpus(7, 10000, false);
+        double parser = 0, direct = 0;
+        for (int round = 0; round < 20; round++) {
+            parser = Math.max(parser, mibPerSecond(corpus, false));
+            direct = Math.max(direct, mibPerSecond(corpus, true));
+        }
+        System.out.printf("colored logcat corpus: escape parser %.1f MiB/s, log view path %.1f MiB/s (%.1fx)%n", parser, direct, direct / parser);
+    }
+
+    private static double mibPerSecond(byte[] corpus, boolean fastPath) {
+        TerminalEmulator emulator = emulator(120, fastPath);
+        long start = System.nanoTime();
+        for (int offset = 0; offset < corpus.length; offset += 4096) {
+            int count = Math.min(4096, corpus.length - offset);
+            byte[] chunk = new byte[count];
+            System.arraycopy(corpus, offset, chunk, 0, count);
+            emulator.append(chunk, count);
+        }
+        return Benchmarks.mibPerSecond(corpus.length, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,156 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the bulk writes of {@link TerminalRow} leave a row exactly as writing it a cell at a time with
+ * {@link TerminalRow#setChar(int, int, long)} does, including when clearing a whole screen through
+ * {@link TerminalBuffer#blockSet}, which an opt-in benchmark also times.
+ */
+public class TerminalRowBulkWriteTest {
+
+    private static final int COLUMNS = 40;
+    private static final int[] CODE_POINTS = {'a', 'Z', ' ', 0x4E2D, 0x1F600, 0x0301, 0xE9, '~'};
+    /** Like the erase and fill sequences of the emulator, which never fill with wide or combining characters. */
+    private static final int[] FILL_CODE_POINTS = {' ', 'E', 0xE9, '~'};
+
+    private static TerminalRow randomRow(Random random) {
+        TerminalRow row = new TerminalRow(COLUMNS, 0);
+        if (random.nextBoolean()) {
+            for (int i = 0; i < COLUMNS; i++)
+                row.setChar(random.nextInt(COLUMNS - 1), CODE_POINTS[random.nextInt(CODE_POINTS.length)], random.nextInt(100));
+        }
+        return row;
+    }
+
+    private static TerminalRow copyOf(TerminalRow row) {
+        TerminalRow copy = new TerminalRow(COLUMNS, 0);
+        copy.copyFrom(row);
+        return copy;
+    }
+
+    private static void assertSameRow(TerminalRow expected, TerminalRow actual) {
+        assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()), new String(actual.mText, 0, actual.getSpaceUsed()));
+        assertArrayEquals(expected.mStyle, actual.mStyle);
+    }
+
+    @Test
+    public void fill_matchesSetCharPerColumn() {
+        Random random = new Random(1);
+        for (int round = 0; round < 2000; round++) {
+            TerminalRow expected = randomRow(random);
+            TerminalRow actual = copyOf(expected);
+            int start = random.nextInt(COLUMNS + 1);
+            int end = random.nextBoolean() ? COLUMNS : start + random.nextInt(COLUMNS + 1 - start);
+            if (random.nextBoolean()) start = 0;
+            int codePoint = FILL_CODE_POINTS[random.nextInt(FILL_CODE_POINTS.length)];
+            for (int column = start; column < end; column++) expected.setChar(column, codePoint, 7);
+            actual.fill(start, end, codePoint, 7);
+            assertSameRow(expected, actual);
+        }
+    }
+
+    @Test
+    public void setChars_matchesSetCharPerColumn() {
+        Random random = new Random(2);
+        for (int round = 0; round < 2000; round++) {
+            TerminalRow expected = randomRow(random);
+            TerminalRow actual = copyOf(expected);
+            char[] source = new char[COLUMNS];
+            for (int i = 0; i < source.length; i++) source[i] = (char) (0x21 + random.nextInt(0x5E));
+            int column = random.nextInt(COLUMNS);
+            int length = random.nextInt(COLUMNS - column + 1);
+            int offset = random.nextInt(COLUMNS - length + 1);
+            for (int i = 0; i < length; i++) expected.setChar(column + i, source[offset + i], 9);
+            actual.setChars(column, source, offset, length, 9);
+            assertSameRow(expected, actual);
+        }
+    }
+
+    @Test
+    public void copyInterval_withinRowKeepsStyles() {
+        // Inserting characters shifts the rest of the row right within the same row.
+        for (boolean wide : new boolean[]{false, true}) {
+            TerminalRow row = new TerminalRow(COLUMNS, 0);
+            for (int i = 0; i < COLUMNS; i++) row.setChar(i, 'a' + (i % 26), i);
+            if (wide) row.setChar(COLUMNS - 2, 0x4E2D, 100);
+            row.copyInterval(row, 0, 10, 3);
+            for (int i = 0; i < 10; i++) {
+                assertEquals((char) ('a' + i), row.mText[row.findStartOfColumn(3 + i)]);
+                assertEquals(i, row.getStyle(3 + i));
+            }
+        }
+    }
+
+    @Test
+    public void blockSet_matchesSetCharPerCell() {
+        Random random = new Random(3);
+        TerminalBuffer expected = new TerminalBuffer(COLUMNS, 100, 10);
+        TerminalBuffer actual = new TerminalBuffer(COLUMNS, 100, 10);
+        for (int round = 0; round < 500; round++) {
+            int column = random.nextInt(COLUMNS - 1), row = random.nextInt(10);
+            if (random.nextBoolean()) {
+                int codePoint = CODE_POINTS[random.nextInt(CODE_POINTS.length)];
+                expected.setChar(column, row, codePoint, round);
+                actual.setChar(column, row, codePoint, round);
+            } else {
+                int codePoint = FILL_CODE_POINTS[random.nextInt(FILL_CODE_POINTS.length)];
+                int w = random.nextInt(COLUMNS - column + 1), h = random.nextInt(10 - row + 1);
+                for (int y = 0; y < h; y++)
+                    for (int x = 0; x < w; x++) expected.setChar(column + x, row + y, codePoint, round);
+                actual.blockSet(column, row, w, h, codePoint, round);
+            }
+            for (int y = 0; y < 10; y++)
+                assertSameRow(expected.allocateFullLineIfNecessary(expected.externalToInternalRow(y)),
+                    actual.allocateFullLineIfNecessary(actual.externalToInternalRow(y)));
+        }
+    }
+
+    @Test
+    public void blockSet_clearsFullScreenLikeCellWrites() {
+        TerminalBuffer expected = new TerminalBuffer(200, 1000, 60);
+        TerminalBuffer actual = new TerminalBuffer(200, 1000, 60);
+        Random random = new Random(3);
+        // Wide characters cannot go in the last column.
+        for (int y = 0; y < 60; y++)
+            for (int x = 0; x < 199; x++) {
+                int codePoint = CODE_POINTS[random.nextInt(CODE_POINTS.length)];
+                expected.setChar(x, y, codePoint, 1);
+                actual.setChar(x, y, codePoint, 1);
+            }
+        for (int y = 0; y < 60; y++)
+            for (int x = 0; x < 200; x++) expected.setChar(x, y, ' ', 2);
+        actual.blockSet(0, 0, 200, 60, ' ', 2);
+        for (int y = 0; y < 60; y++)
+            assertSameRow(expected.allocateFullLineIfNecessary(expected.externalToInternalRow(y)),
+                actual.allocateFullLineIfNecessary(actual.externalToInternalRow(y)));
+        assertEquals(2, actual.getStyleAt(59, 199));
+    }
+
+    /** Prints the fastest of 200 full screen clears each way, see {@link Benchmarks}. */
+    @Test
+    public void benchmark_fullScreenClear() {
+        Benchmarks.assumeEnabled();
+        TerminalBuffer screen = new TerminalBuffer(200, 1000, 60);
+        long[] styles = new long[2];
+        long cellNanos = Long.MAX_VALUE, blockNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 200; round++) {
+            long start = System.nanoTime();
+            for (int y = 0; y < 60; y++)
+                for (int x = 0; x < 200; x++) screen.setChar(x, y, ' ', round);
+            cellNanos = Math.min(cellNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            screen.blockSet(0, 0, 200, 60, ' ', round);
+            blockNanos = Math.min(blockNanos, System.nanoTime() - start);
+            styles[round & 1] = screen.getStyleAt(59, 199);
+        }
+        assertTrue(Arrays.equals(new long[]{198, 199}, styles));
+        System.out.printf("200x60 clear: cell at a time %d us, blockSet %d us (%.1fx)%n", cellNanos / 1000, blockNanos / 1000,
+            (double) cellNanos / blockNanos);
+    }
+}
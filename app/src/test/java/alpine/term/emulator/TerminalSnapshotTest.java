@@ -0,0 +1,51 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a {@link TerminalSnapshot} wrapping the emulator's rows shows them as they are, and that capturing
+ * into it afterwards copies instead of writing into those rows.
+ */
+public class TerminalSnapshotTest {
+
+    private static void append(TerminalEmulator emulator, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+    }
+
+    private static String rowText(TerminalRow row) {
+        return new String(row.mText, 0, row.getSpaceUsed()).trim();
+    }
+
+    @Test
+    public void wrap_refersToTheEmulatorRows() {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 20, 4, 100);
+        append(emulator, "one\r\ntwo");
+        TerminalSnapshot snapshot = new TerminalSnapshot();
+        snapshot.wrap(emulator, 0, 1);
+        TerminalBuffer screen = emulator.getScreen();
+        assertTrue(snapshot.getRow(1) == screen.allocateFullLineIfNecessary(screen.externalToInternalRow(1)));
+        append(emulator, "!");
+        assertEquals("two!", rowText(snapshot.getRow(1)));
+        assertEquals(1, snapshot.mCursorRow);
+    }
+
+    @Test
+    public void capture_afterWrapLeavesTheEmulatorRowsAlone() {
+        TerminalEmulator source = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 20, 4, 100);
+        TerminalEmulator other = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 20, 4, 100);
+        append(source, "kept");
+        append(other, "copied");
+        TerminalSnapshot snapshot = new TerminalSnapshot();
+        snapshot.wrap(source, 0, 1);
+        snapshot.capture(other, 0, 2);
+        TerminalBuffer screen = source.getScreen();
+        assertEquals("kept", rowText(screen.allocateFullLineIfNecessary(screen.externalToInternalRow(0))));
+        assertEquals("copied", rowText(snapshot.getRow(0)));
+        assertEquals(2, snapshot.mGeneration);
+    }
+}
@@ -0,0 +1,160 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks searches through a {@link TranscriptIndex} against scanning every row, as the transcript scrolls, is
+ * evicted, resized and cleared, plus an opt-in benchmark of a search of a long transcript.
+ */
+public class TranscriptIndexTest {
+
+    private static final String[] WORDS = {"alpha", "Beta", "GAMMA", "delta", "épée", "中文", "x", "ab", "abc",
+        "needle", "Needle", "hay", "haystack", "😀ok", "0x1f", "--"};
+
+    private static String randomLine(Random random) {
+        StringBuilder line = new StringBuilder();
+        for (int i = random.nextInt(25); i > 0; i--) line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        return line.toString();
+    }
+
+    /** The matches of a search found by scanning every active row. */
+    private static List<String> expectedMatches(TerminalBuffer buffer, String text, boolean ignoreCase) {
+        List<String> matches = new ArrayList<>();
+        String needle = ignoreCase ? text.toLowerCase() : text;
+        for (int externalRow = -buffer.getActiveTranscriptRows(); externalRow < buffer.mScreenRows; externalRow++) {
+            TerminalRow row = buffer.mLines[buffer.externalToInternalRow(externalRow)];
+            String rowText = new String(row.mText, 0, row.getSpaceUsed());
+            if (ignoreCase) rowText = rowText.toLowerCase();
+            for (int i = rowText.indexOf(needle); i >= 0; i = rowText.indexOf(needle, i + needle.length())) {
+                matches.add(new TranscriptIndex.Match(buffer.getRowId(externalRow), externalRow,
+                    columnAt(row, buffer.mColumns, i), columnAt(row, buffer.mColumns, i + needle.length())).toString());
+            }
+        }
+        return matches;
+    }
+
+    /** The first column starting at or after a char index of a row. */
+    private static int columnAt(TerminalRow row, int columns, int index) {
+        int column = 0;
+        while (column < columns && row.findStartOfColumn(column) < index) column++;
+        return column;
+    }
+
+    private static List<String> search(TerminalBuffer buffer, String text, boolean ignoreCase) {
+        List<String> matches = new ArrayList<>();
+        for (TranscriptIndex.Match match : buffer.getTranscriptIndex().search(text, ignoreCase, Integer.MAX_VALUE)) {
+            assertEquals(buffer.getRowId(match.row), match.rowId);
+            matches.add(match.toString());
+        }
+        return matches;
+    }
+
+    @Test
+    public void search_matchesScanningEveryRow() {
+        Random random = new Random(5);
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 60, 24, 500);
+        int rows = 24;
+        for (int round = 0; round < 120; round++) {
+            StringBuilder output = new StringBuilder();
+            for (int i = random.nextInt(200); i > 0; i--) output.append(randomLine(random)).append("\r\n");
+            if (random.nextInt(20) == 0) output.append("\033[3J");
+            TerminalEmulatorAsciiRunTest.feed(emulator, output.toString().getBytes(StandardCharsets.UTF_8), round);
+            if (random.nextInt(8) == 0) {
+                // Shrinking pushes rows into the transcript, growing pulls them back onto the screen.
+                rows = 16 + random.nextInt(16);
+                emulator.resize(random.nextInt(10) == 0 ? 50 + random.nextInt(20) : emulator.mColumns, rows);
+            }
+            if (random.nextInt(10) == 0) {
+                byte[] clear = "\033[2Jupdated screen Needle\r\n".getBytes(StandardCharsets.UTF_8);
+                emulator.append(clear, clear.length);
+            }
+
+            TerminalBuffer buffer = emulator.getScreen();
+            for (int i = 0; i < 4; i++) {
+                String text = WORDS[random.nextInt(WORDS.length)];
+                if (random.nextBoolean()) text = text + " " + WORDS[random.nextInt(WORDS.length)];
+                boolean ignoreCase = random.nextBoolean();
+                assertEquals(text, expectedMatches(buffer, text, ignoreCase), search(buffer, text, ignoreCase));
+            }
+        }
+    }
+
+    @Test
+    public void search_returnsOldestMatchesUpToTheLimit() {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 40, 5, 100);
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 200; i++) output.append("line ").append(i).append(i % 50 == 0 ? " Match" : "").append("\r\n");
+        byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+
+        // Of the 100 rows kept, 5 are the screen and the last is blank, so lines up to 104 have been evicted.
+        List<TranscriptIndex.Match> matches = emulator.getScreen().getTranscriptIndex().search("match", true, 1);
+        assertEquals(1, matches.size());
+        TerminalBuffer buffer = emulator.getScreen();
+        assertEquals("line 150 Match", buffer.getSelectedText(0, matches.get(0).row, 39, matches.get(0).row).trim());
+        assertEquals(9, matches.get(0).startColumn);
+        assertEquals(14, matches.get(0).endColumn);
+        assertEquals(1, buffer.getTranscriptIndex().search("Match", false, 10).size());
+        assertEquals(0, buffer.getTranscriptIndex().search("match", false, 10).size());
+    }
+
+    @Test
+    public void search_matchesTranscriptScanOfLongTranscript() {
+        TerminalBuffer buffer = logcatTranscript(20_000);
+        String transcript = buffer.getTranscriptText();
+        int scanned = 0;
+        for (int at = transcript.indexOf("FATAL EXCEPTION"); at >= 0; at = transcript.indexOf("FATAL EXCEPTION", at + 1)) scanned++;
+        assertEquals(2, scanned);
+        assertEquals(scanned, buffer.getTranscriptIndex().search("FATAL EXCEPTION", false, 1000).size());
+        // Searched again from the index built by the first search.
+        assertEquals(scanned, buffer.getTranscriptIndex().search("FATAL EXCEPTION", false, 1000).size());
+    }
+
+    /** Prints the first and later search times of 100,000 rows next to a scan, see {@link Benchmarks}. */
+    @Test
+    public void search_benchmark() {
+        Benchmarks.assumeEnabled();
+        TerminalBuffer buffer = logcatTranscript(100_000);
+        long start = System.nanoTime();
+        int found = buffer.getTranscriptIndex().search("FATAL EXCEPTION", false, 1000).size();
+        long firstNanos = System.nanoTime() - start;
+        long searchNanos = Long.MAX_VALUE, scanNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            start = System.nanoTime();
+            assertEquals(found, buffer.getTranscriptIndex().search("FATAL EXCEPTION", false, 1000).size());
+            searchNanos = Math.min(searchNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            String transcript = buffer.getTranscriptText();
+            int scanned = 0;
+            for (int at = transcript.indexOf("FATAL EXCEPTION"); at >= 0; at = transcript.indexOf("FATAL EXCEPTION", at + 1)) scanned++;
+            assertEquals(found, scanned);
+            scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+        }
+        assertEquals(10, found);
+        System.out.println("search " + buffer.getActiveRows() + " rows: indexing and search " + firstNanos / 1000
+            + "us, search " + searchNanos / 1000 + "us, transcript text scan " + scanNanos / 1000 + "us");
+    }
+
+    /** A transcript of logcat-like lines, with a FATAL EXCEPTION line 5,000 lines into every 10,000. */
+    private static TerminalBuffer logcatTranscript(int lines) {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 100, 24, lines + 24);
+        Random random = new Random(9);
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            output.append(String.format("10-17 12:%02d:%02d.%03d %5d %5d %c Tag%d: message %d value=%x\r\n",
+                i / 60 % 60, i % 60, i % 1000, random.nextInt(30000), random.nextInt(30000), "VDIWE".charAt(i % 5),
+                random.nextInt(200), i, random.nextInt()));
+            if (i % 10_000 == 5_000) output.append("FATAL EXCEPTION: main\r\n");
+        }
+        byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+        return emulator.getScreen();
+    }
+}
@@ -0,0 +1,144 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TranscriptRegexSearch} against matching the text of every row, and that it can be cancelled in the
+ * middle of a slow match. An opt-in benchmark times a search of a logcat transcript.
+ */
+public class TranscriptRegexSearchTest {
+
+    /** Collects what the search reports. */
+    private static final class Collector implements TranscriptRegexSearch.Listener {
+        final List<String> matches = new ArrayList<>();
+        int batches;
+        Boolean completed;
+
+        @Override
+        public void onMatches(TranscriptRegexSearch search, List<TranscriptIndex.Match> found) {
+            batches++;
+            for (TranscriptIndex.Match match : found) matches.add(match.toString());
+        }
+
+        @Override
+        public void onSearchFinished(TranscriptRegexSearch search, boolean searchCompleted) {
+            completed = searchCompleted;
+        }
+    }
+
+    private static TerminalEmulator emulator(int transcriptRows, String output) {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 80, 24, transcriptRows);
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+        return emulator;
+    }
+
+    private static List<String> expectedMatches(TerminalBuffer buffer, Pattern pattern) {
+        List<String> matches = new ArrayList<>();
+        for (int externalRow = -buffer.getActiveTranscriptRows(); externalRow < buffer.mScreenRows; externalRow++) {
+            TerminalRow row = buffer.mLines[buffer.externalToInternalRow(externalRow)];
+            String text = new String(row.mText, 0, row.getSpaceUsed()).replaceAll(" +$", "");
+            Matcher matcher = pattern.matcher(text);
+            while (matcher.find()) {
+                if (matcher.start() == matcher.end()) continue;
+                int startColumn = text.substring(0, matcher.start()).codePointCount(0, matcher.start())
+                    + countWide(text.substring(0, matcher.start()));
+                String matched = matcher.group();
+                int width = matched.codePointCount(0, matched.length()) + countWide(matched);
+                matches.add(new TranscriptIndex.Match(buffer.getRowId(externalRow), externalRow, startColumn, startColumn + width).toString());
+            }
+        }
+        return matches;
+    }
+
+    /** The number of wide code points, which take an extra column. */
+    private static int countWide(String text) {
+        return (int) text.codePoints().filter(c -> WcWidth.width(c) == 2).count();
+    }
+
+    @Test
+    public void run_matchesEveryRowOnce() {
+        Random random = new Random(11);
+        StringBuilder output = new StringBuilder();
+        String[] words = {"error", "Error", "code=42", "中文", "warn", "id:7f3a", "ok", "timeout after 30s"};
+        for (int i = 0; i < 3000; i++) {
+            for (int j = random.nextInt(10); j > 0; j--) output.append(words[random.nextInt(words.length)]).append(' ');
+            output.append("\r\n");
+        }
+        TerminalEmulator emulator = emulator(2000, output.toString());
+        for (String regex : new String[]{"[Ee]rror", "code=\\d+", "id:[0-9a-f]+$", "中.", "(?i)ERROR.*ok", "x*"}) {
+            Pattern pattern = Pattern.compile(regex);
+            Collector collector = new Collector();
+            new TranscriptRegexSearch(emulator, new ReentrantLock(), pattern, collector).run();
+            assertEquals(Boolean.TRUE, collector.completed);
+            assertEquals(regex, expectedMatches(emulator.getScreen(), pattern), collector.matches);
+        }
+    }
+
+    @Test
+    public void cancel_stopsSlowMatch() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 100; i++) output.append("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\r\n");
+        TerminalEmulator emulator = emulator(200, output.toString());
+        Collector collector = new Collector();
+        // Backtracks exponentially in the length of each row.
+        TranscriptRegexSearch search = new TranscriptRegexSearch(emulator, new ReentrantLock(), Pattern.compile("((a+)+)+x"), collector);
+        Thread worker = new Thread(search::run);
+        worker.start();
+        Thread.sleep(100);
+        search.cancel();
+        worker.join(2000);
+        assertFalse(worker.isAlive());
+        assertEquals(Boolean.FALSE, collector.completed);
+        assertEquals(0, collector.batches);
+    }
+
+    @Test
+    public void run_matchesEveryRowOfLogcatTranscript() {
+        TerminalEmulator emulator = logcatEmulator(5000);
+        Pattern pattern = Pattern.compile("Tag(\\d)\\1: message \\d*7$");
+        Collector collector = new Collector();
+        new TranscriptRegexSearch(emulator, new ReentrantLock(), pattern, collector).run();
+        assertEquals(Boolean.TRUE, collector.completed);
+        assertFalse(collector.matches.isEmpty());
+        assertEquals(expectedMatches(emulator.getScreen(), pattern).size(), collector.matches.size());
+    }
+
+    /** Prints the fastest of five searches of the same transcript, see {@link Benchmarks}. */
+    @Test
+    public void run_benchmark() {
+        Benchmarks.assumeEnabled();
+        TerminalEmulator emulator = logcatEmulator(5000);
+        Pattern pattern = Pattern.compile("Tag(\\d)\\1: message \\d*7$");
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int i = 0; i < 5; i++) {
+            Collector collector = new Collector();
+            long start = System.nanoTime();
+            new TranscriptRegexSearch(emulator, new ReentrantLock(), pattern, collector).run();
+            best = Math.min(best, System.nanoTime() - start);
+            found = collector.matches.size();
+        }
+        assertEquals(expectedMatches(emulator.getScreen(), pattern).size(), found);
+        System.out.println("regex search " + emulator.getScreen().getActiveRows() + " rows: " + best / 1000 + "us, "
+            + found + " matches");
+    }
+
+    private static TerminalEmulator logcatEmulator(int lines) {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            output.append(String.format("10-17 12:%02d:%02d.%03d %5d %5d I Tag%d: message %d\r\n", i / 60 % 60, i % 60, i % 1000, i, i * 7, i % 100, i));
+        }
+        return emulator(lines, output.toString());
+    }
+}
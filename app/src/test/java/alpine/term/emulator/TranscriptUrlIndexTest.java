@@ -0,0 +1,141 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the URLs kept by {@link TranscriptUrlIndex} against matching {@link TranscriptUrlIndex#URL_PATTERN} over
+ * the whole transcript text, plus an opt-in benchmark of looking them up in a long transcript.
+ */
+public class TranscriptUrlIndexTest {
+
+    private static final String[] WORDS = {"see", "https://example.com/a/very/long/path/that/wraps?x=1&y=2#frag",
+        "http://10.0.0.1:8080/", "ftp://user:pw@files.example.org/pub", "file:///sdcard/Download/a.txt", "not-a-url",
+        "://", "http:/broken", "ws://中文.example.cn/ws", "done."};
+
+    private static void append(TerminalEmulator emulator, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+    }
+
+    /** The URLs found the way the URL picker used to, over the joined transcript text. */
+    private static List<String> expectedUrls(TerminalBuffer buffer) {
+        List<String> urls = new ArrayList<>();
+        String text = buffer.getTranscriptText();
+        Matcher matcher = TranscriptUrlIndex.URL_PATTERN.matcher(text);
+        while (matcher.find()) urls.add(text.substring(matcher.start(1), matcher.end()));
+        return urls;
+    }
+
+    private static List<String> urls(TerminalBuffer buffer) {
+        List<String> urls = new ArrayList<>();
+        for (TranscriptUrlIndex.Url url : buffer.getUrlIndex().getUrls()) {
+            // The cells of the URL hold its text.
+            int startRow = (int) buffer.getExternalRow(url.startRowId);
+            int endRow = (int) buffer.getExternalRow(url.endRowId);
+            assertEquals(url.url, buffer.getSelectedText(url.startColumn, startRow, url.endColumn - 1, endRow));
+            assertEquals(url.toString(), String.valueOf(buffer.getUrlIndex().findUrlAt(startRow, url.startColumn)));
+            urls.add(url.url);
+        }
+        return urls;
+    }
+
+    @Test
+    public void getUrls_matchesTheWholeTranscript() {
+        Random random = new Random(17);
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 30, 12, 100_000);
+        for (int round = 0; round < 60; round++) {
+            StringBuilder output = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                for (int j = random.nextInt(6); j > 0; j--) output.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                output.append("\r\n");
+            }
+            append(emulator, output.toString());
+            if (random.nextInt(6) == 0) emulator.resize(30, 8 + random.nextInt(10));
+            TerminalBuffer buffer = emulator.getScreen();
+            assertEquals(expectedUrls(buffer), urls(buffer));
+        }
+    }
+
+    @Test
+    public void findUrlAt_findsWrappedUrlsAndDropsEvictedOnes() {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 20, 4, 12);
+        append(emulator, "go to https://example.com/0123456789/abcdef now\r\n");
+        TerminalBuffer buffer = emulator.getScreen();
+        // "go to " takes columns 0 to 5 of row 0, the URL wraps onto rows 1 and 2.
+        TranscriptUrlIndex.Url url = buffer.getUrlIndex().findUrlAt(1, 3);
+        assertNotNull(url);
+        assertEquals("https://example.com/0123456789/abcdef", url.url);
+        assertEquals(6, url.startColumn);
+        assertEquals(3, url.endColumn);
+        assertNull(buffer.getUrlIndex().findUrlAt(0, 5));
+        assertNull(buffer.getUrlIndex().findUrlAt(2, 4));
+
+        // Scroll the URL into the transcript, then out of it.
+        append(emulator, "a\r\nb\r\nc\r\n");
+        assertEquals(1, buffer.getUrlIndex().getUrls().size());
+        assertEquals(url.url, buffer.getUrlIndex().findUrlAt((int) buffer.getExternalRow(url.startRowId) + 1, 0).url);
+        append(emulator, "d\r\ne\r\nf\r\ng\r\nh\r\ni\r\nj\r\nk\r\nl\r\n");
+        assertEquals(0, buffer.getUrlIndex().getUrls().size());
+    }
+
+    @Test
+    public void getUrls_matchesPatternOverLongTranscript() {
+        int lines = 5_000;
+        TerminalEmulator emulator = logcatEmulator(lines);
+        TerminalBuffer buffer = emulator.getScreen();
+
+        assertEquals(lines / 1000, buffer.getUrlIndex().getUrls().size());
+        for (int i = 1; i <= 3; i++) {
+            append(emulator, "one more line https://example.org/\r\n");
+            assertEquals(lines / 1000 + i, buffer.getUrlIndex().getUrls().size());
+            assertEquals(expectedUrls(buffer).size(), buffer.getUrlIndex().getUrls().size());
+        }
+    }
+
+    /** Prints lookup times over 100,000 rows next to matching the pattern, see {@link Benchmarks}. */
+    @Test
+    public void getUrls_benchmark() {
+        Benchmarks.assumeEnabled();
+        int lines = 100_000;
+        TerminalEmulator emulator = logcatEmulator(lines);
+        TerminalBuffer buffer = emulator.getScreen();
+
+        long start = System.nanoTime();
+        int found = buffer.getUrlIndex().getUrls().size();
+        long firstNanos = System.nanoTime() - start;
+        long indexNanos = Long.MAX_VALUE, scanNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            append(emulator, "one more line https://example.org/\r\n");
+            start = System.nanoTime();
+            found = buffer.getUrlIndex().getUrls().size();
+            indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            assertEquals(found, expectedUrls(buffer).size());
+            scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+        }
+        assertEquals(lines / 1000 + 3, found);
+        System.out.println("urls of " + buffer.getActiveRows() + " rows: first lookup " + firstNanos / 1000
+            + "us, next lookups " + indexNanos / 1000 + "us, pattern over transcript text " + scanNanos / 1000 + "us");
+    }
+
+    /** An emulator holding lines of logcat-like output, with a URL on every 1000th. */
+    private static TerminalEmulator logcatEmulator(int lines) {
+        TerminalEmulator emulator = new TerminalEmulator(new TerminalEmulatorAsciiRunTest.NullOutput(), 100, 24, lines + 24);
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            output.append(String.format("10-17 12:%02d:%02d.%03d %5d %5d I Tag%d: message %d", i / 60 % 60, i % 60, i % 1000, i, i * 7, i % 100, i));
+            if (i % 1000 == 0) output.append(" fetching https://example.com/item/").append(i);
+            output.append("\r\n");
+        }
+        append(emulator, output.toString());
+        return emulator;
+    }
+}
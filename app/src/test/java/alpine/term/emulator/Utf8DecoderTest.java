@@ -0,0 +1,238 @@
+package alpine.term.emulator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link Utf8Decoder} treats valid and malformed input exactly as the byte at a time decoder the
+ * emulator used before, including on CJK and emoji heavy text, plus an opt-in throughput comparison on that text.
+ */
+public class Utf8DecoderTest {
+
+    private static final int TRUNCATED = -1;
+
+    /** Records code points, and {@link #TRUNCATED} for truncated sequences. */
+    private static final class RecordingSink implements Utf8Decoder.Sink {
+        final List<Integer> events = new ArrayList<>();
+
+        @Override
+        public void onCodePoint(int codePoint) {
+            events.add(codePoint);
+        }
+
+        @Override
+        public void onTruncatedSequence() {
+            events.add(TRUNCATED);
+        }
+    }
+
+    private static final class CountingSink implements Utf8Decoder.Sink {
+        long sum;
+
+        @Override
+        public void onCodePoint(int codePoint) {
+            sum += codePoint;
+        }
+
+        @Override
+        public void onTruncatedSequence() {
+            sum--;
+        }
+    }
+
+    /** The decoder TerminalEmulator.processByte() implemented before the table driven one, as the reference. */
+    private static final class LegacyDecoder {
+        private byte mUtf8ToFollow, mUtf8Index;
+        private final byte[] mUtf8InputBuffer = new byte[4];
+
+        void decode(byte byteToProcess, Utf8Decoder.Sink sink) {
+            if (mUtf8ToFollow > 0) {
+                if ((byteToProcess & 0b11000000) == 0b10000000) {
+                    mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
+                    if (--mUtf8ToFollow == 0) {
+                        byte firstByteMask = (byte) (mUtf8Index == 2 ? 0b00011111 : (mUtf8Index == 3 ? 0b00001111 : 0b00000111));
+                        int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
+                        for (int i = 1; i < mUtf8Index; i++)
+                            codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
+                        if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
+                            || (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
+                            codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+                        }
+                        mUtf8Index = mUtf8ToFollow = 0;
+                        if (!(codePoint >= 0x80 && codePoint <= 0x9F)) {
+                            switch (Character.getType(codePoint)) {
+                                case Character.UNASSIGNED:
+                                case Character.SURROGATE:
+                                    codePoint = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+                            }
+                            sink.onCodePoint(codePoint);
+                        }
+                    }
+                } else {
+                    mUtf8Index = mUtf8ToFollow = 0;
+                    sink.onTruncatedSequence();
+                    decode(byteToProcess, sink);
+                }
+            } else {
+                if ((byteToProcess & 0b10000000) == 0) {
+                    sink.onCodePoint(byteToProcess);
+                    return;
+                } else if ((byteToProcess & 0b11100000) == 0b11000000) {
+                    mUtf8ToFollow = 1;
+                } else if ((byteToProcess & 0b11110000) == 0b11100000) {
+                    mUtf8ToFollow = 2;
+                } else if ((byteToProcess & 0b11111000) == 0b11110000) {
+                    mUtf8ToFollow = 3;
+                } else {
+                    sink.onCodePoint(TerminalEmulator.UNICODE_REPLACEMENT_CHAR);
+                    return;
+                }
+                mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
+            }
+        }
+    }
+
+    private static void assertSameAsLegacy(byte[] input) {
+        RecordingSink expected = new RecordingSink();
+        RecordingSink actual = new RecordingSink();
+        LegacyDecoder legacy = new LegacyDecoder();
+        Utf8Decoder decoder = new Utf8Decoder();
+        for (byte b : input) {
+            legacy.decode(b, expected);
+            decoder.decode(b, actual);
+            assertEquals(legacy.mUtf8ToFollow == 0, decoder.isIdle());
+        }
+        assertEquals(expected.events, actual.events);
+    }
+
+    @Test
+    public void everyShortSequence_matchesLegacyDecoder() {
+        // Every lead byte followed by every byte, then a boundary byte of each class.
+        final byte[] followers = {0x41, (byte) 0x80, (byte) 0xBF, (byte) 0xC2, (byte) 0xE0, (byte) 0xF0, (byte) 0xFF};
+        for (int first = 0; first < 256; first++) {
+            for (int second = 0; second < 256; second++) {
+                for (byte third : followers) {
+                    for (byte fourth : followers) {
+                        assertSameAsLegacy(new byte[]{(byte) first, (byte) second, third, fourth, 0x41});
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void boundaryCodePoints_matchLegacyDecoder() {
+        // Overlong, surrogate, C1, beyond U+10FFFF and the edges of every sequence length.
+        final int[][] sequences = {
+            {0xC0, 0x80}, {0xC1, 0xBF}, {0xC2, 0x80}, {0xC2, 0x9F}, {0xC2, 0xA0}, {0xDF, 0xBF},
+            {0xE0, 0x80, 0x80}, {0xE0, 0x9F, 0xBE}, {0xE0, 0x9F, 0xBF}, {0xE0, 0xA0, 0x80}, {0xED, 0x9F, 0xBF},
+            {0xED, 0xA0, 0x80}, {0xED, 0xBF, 0xBF}, {0xEF, 0xBF, 0xBD}, {0xEF, 0xBF, 0xBF},
+            {0xF0, 0x80, 0x80, 0x80}, {0xF0, 0x8F, 0xBF, 0xBE}, {0xF0, 0x8F, 0xBF, 0xBF}, {0xF0, 0x90, 0x80, 0x80},
+            {0xF4, 0x8F, 0xBF, 0xBF}, {0xF4, 0x90, 0x80, 0x80}, {0xF7, 0xBF, 0xBF, 0xBF},
+        };
+        for (int[] sequence : sequences) {
+            byte[] input = new byte[sequence.length];
+            for (int i = 0; i < input.length; i++) input[i] = (byte) sequence[i];
+            assertSameAsLegacy(input);
+        }
+    }
+
+    @Test
+    public void randomStreams_matchLegacyDecoder() {
+        for (long seed = 1; seed <= 200; seed++) {
+            Random random = new Random(seed);
+            byte[] input = new byte[4096];
+            int length = 0;
+            while (length < input.length - 4) {
+                if (random.nextInt(4) == 0) {
+                    input[length++] = (byte) random.nextInt(256);
+                } else {
+                    int codePoint = random.nextBoolean() ? random.nextInt(0x30000) : random.nextInt(0x110000);
+                    if (codePoint >= 0xD800 && codePoint <= 0xDFFF) codePoint = 0x4E00;
+                    byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                    // Sometimes drop the tail to leave a truncated sequence.
+                    int keep = encoded.length > 1 && random.nextInt(8) == 0 ? 1 + random.nextInt(encoded.length - 1) : encoded.length;
+                    System.arraycopy(encoded, 0, input, length, keep);
+                    length += keep;
+                }
+            }
+            byte[] stream = new byte[length];
+            System.arraycopy(input, 0, stream, 0, length);
+            assertSameAsLegacy(stream);
+        }
+    }
+
+    @Test
+    public void isAssigned_matchesCharacterGetType() {
+        Utf8Decoder decoder = new Utf8Decoder();
+        for (int codePoint = 0; codePoint <= 0x200000; codePoint++) {
+            int type = Character.getType(codePoint);
+            assertEquals(type != Character.UNASSIGNED && type != Character.SURROGATE, decoder.isAssigned(codePoint));
+        }
+    }
+
+    @Test
+    public void cjkAndEmojiText_matchesLegacyDecoder() {
+        Random random = new Random(7);
+        assertSameAsLegacy(cjkCorpus(random, 64 * 1024));
+        assertSameAsLegacy(emojiCorpus(random, 64 * 1024));
+    }
+
+    /** Prints the throughput of both decoders, see {@link Benchmarks}. */
+    @Test
+    public void benchmark_cjkAndEmojiThroughput() {
+        Benchmarks.assumeEnabled();
+        Random random = new Random(7);
+        report("CJK", cjkCorpus(random, 2 * 1024 * 1024));
+        report("emoji", emojiCorpus(random, 2 * 1024 * 1024));
+    }
+
+    private static byte[] cjkCorpus(Random random, int chars) {
+        StringBuilder cjk = new StringBuilder();
+        while (cjk.length() < chars) {
+            cjk.appendCodePoint(0x4E00 + random.nextInt(0x5000));
+            if (random.nextInt(16) == 0) cjk.append(random.nextBoolean() ? "、" : "\r\n");
+        }
+        return cjk.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] emojiCorpus(Random random, int chars) {
+        StringBuilder emoji = new StringBuilder();
+        while (emoji.length() < chars) {
+            emoji.appendCodePoint(0x1F300 + random.nextInt(0x300));
+            if (random.nextInt(8) == 0) emoji.append(" ok ");
+        }
+        return emoji.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void report(String name, byte[] corpus) {
+        double legacy = 0, dfa = 0;
+        for (int round = 0; round < 5; round++) {
+            legacy = Math.max(legacy, mibPerSecond(corpus, false));
+            dfa = Math.max(dfa, mibPerSecond(corpus, true));
+        }
+        System.out.printf("%s corpus: legacy decoder %.1f MiB/s, DFA decoder %.1f MiB/s (%.1fx)%n", name, legacy, dfa, dfa / legacy);
+    }
+
+    private static double mibPerSecond(byte[] corpus, boolean dfa) {
+        CountingSink sink = new CountingSink();
+        LegacyDecoder legacy = new LegacyDecoder();
+        Utf8Decoder decoder = new Utf8Decoder();
+        long start = System.nanoTime();
+        if (dfa) {
+            for (byte b : corpus) decoder.decode(b, sink);
+        } else {
+            for (byte b : corpus) legacy.decode(b, sink);
+        }
+        long nanos = System.nanoTime() - start;
+        // Keeps the decoding from being optimized away.
+        assertTrue(sink.sum != 0);
+        return Benchmarks.mibPerSecond(corpus.length, nanos);
+    }
+}
@@ -1,6 +1,168 @@
 package com.example.libclient_service;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
 public class InfiniteLoop {
+
+    /**
+     * how a loop waits between iterations, see {@link #setWaitStrategy(WaitStrategy)}
+     */
+    public enum WaitStrategy {
+        /**
+         * sleep for the time given to the {@code setSleepTimeIn*} methods, the default
+         */
+        SLEEP,
+        /**
+         * do not wait at all, for loops whose body blocks by itself or that must react immediately
+         */
+        BUSY_SPIN,
+        /**
+         * give up the rest of the time slice, {@link Thread#yield()}
+         */
+        YIELD,
+        /**
+         * spin, then yield, then park for a time that doubles on every idle iteration up to the
+         * backoff ceiling, starting over whenever the loop reports work with {@link #markWork()}
+         */
+        BACKOFF,
+        /**
+         * park until {@link #signal()} is called, or until the backoff ceiling passes so that the
+         * condition is still checked if a producer never signals
+         */
+        SIGNAL
+    }
+
+    /**
+     * idle iterations spent spinning, then yielding, before {@link WaitStrategy#BACKOFF} parks
+     */
+    private static final int BACKOFF_SPIN_ITERATIONS = 64;
+    private static final int BACKOFF_YIELD_ITERATIONS = 16;
+    private static final long BACKOFF_INITIAL_PARK_IN_NANOSECONDS = 1000;
+    public static final long DEFAULT_BACKOFF_CEILING_IN_NANOSECONDS = 10_000_000;
+
+    private WaitStrategy waitStrategy = WaitStrategy.SLEEP;
+    private long backoffCeilingInNanoseconds = DEFAULT_BACKOFF_CEILING_IN_NANOSECONDS;
+    private int idleIterations = 0;
+    private long parkTimeInNanoseconds = BACKOFF_INITIAL_PARK_IN_NANOSECONDS;
+    private boolean workedThisIteration = false;
+    private volatile long iterations = 0;
+    private volatile long workIterations = 0;
+    private volatile Thread loopThread = null;
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+
+    /**
+     * @param waitStrategy how to wait between iterations, {@link WaitStrategy#SLEEP} by default
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) throw new NullPointerException("waitStrategy must not be null");
+        this.waitStrategy = waitStrategy;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @param backoffCeilingInNanoseconds the longest single park of {@link WaitStrategy#BACKOFF}
+     *                                    and {@link WaitStrategy#SIGNAL}
+     * @throws IllegalArgumentException if the param {@code backoffCeilingInNanoseconds} is not positive
+     */
+    public void setBackoffCeilingInNanoseconds(long backoffCeilingInNanoseconds) throws IllegalArgumentException {
+        if (backoffCeilingInNanoseconds <= 0) throw new IllegalArgumentException(
+            "backoff ceiling must be positive"
+        );
+        this.backoffCeilingInNanoseconds = backoffCeilingInNanoseconds;
+    }
+
+    /**
+     * report that the current iteration did useful work, call this from the loop body
+     * <p>
+     * with {@link WaitStrategy#BACKOFF} the next wait starts over from spinning
+     */
+    public void markWork() {
+        workedThisIteration = true;
+    }
+
+    /**
+     * wake a loop waiting with {@link WaitStrategy#SIGNAL} or {@link WaitStrategy#BACKOFF},
+     * this may be called from any thread, a signal sent while the loop is not waiting is kept for
+     * its next wait
+     */
+    public void signal() {
+        signalled.set(true);
+        Thread thread = loopThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return the number of iterations run so far
+     */
+    public long getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return the number of iterations that reported work with {@link #markWork()}
+     */
+    public long getWorkIterations() {
+        return workIterations;
+    }
+
+    /**
+     * wait between two iterations according to the wait strategy
+     */
+    private void pause() {
+        iterations++;
+        if (workedThisIteration) {
+            workedThisIteration = false;
+            workIterations++;
+            idleIterations = 0;
+            parkTimeInNanoseconds = BACKOFF_INITIAL_PARK_IN_NANOSECONDS;
+        } else {
+            idleIterations++;
+        }
+        switch (waitStrategy) {
+            case SLEEP:
+                try {
+                    Thread.sleep(sleepTimeInMilliseconds, sleepTimeInNanoseconds);
+                } catch (InterruptedException e) {
+                    throw new AssertionError("Thread Interrupted", e);
+                }
+                return;
+            case BUSY_SPIN:
+                return;
+            case YIELD:
+                Thread.yield();
+                return;
+            case BACKOFF:
+                if (idleIterations == 0 || signalled.getAndSet(false)) {
+                    idleIterations = 0;
+                    parkTimeInNanoseconds = BACKOFF_INITIAL_PARK_IN_NANOSECONDS;
+                    return;
+                }
+                if (idleIterations <= BACKOFF_SPIN_ITERATIONS) return;
+                if (idleIterations <= BACKOFF_SPIN_ITERATIONS + BACKOFF_YIELD_ITERATIONS) {
+                    Thread.yield();
+                    return;
+                }
+                park(parkTimeInNanoseconds);
+                parkTimeInNanoseconds = Math.min(parkTimeInNanoseconds * 2, backoffCeilingInNanoseconds);
+                return;
+            case SIGNAL:
+                if (!signalled.getAndSet(false)) park(backoffCeilingInNanoseconds);
+                signalled.set(false);
+                return;
+        }
+    }
+
+    private void park(long nanoseconds) {
+        LockSupport.parkNanos(this, Math.min(nanoseconds, backoffCeilingInNanoseconds));
+        if (Thread.interrupted()) throw new AssertionError(
+            "Thread Interrupted", new InterruptedException()
+        );
+    }
+
     /**
      * @param sleepTimeInNanoseconds time in nanoseconds
      * @throws IllegalArgumentException if the param {@code sleepTimeInNanoseconds} is greater than {@code 999}
@@ -90,12 +252,9 @@ public class InfiniteLoop {
      * } </pre>
      */
     public void loop(RunnableReturn<Boolean> condition) {
+        loopThread = Thread.currentThread();
         while(condition.run()) {
-            try {
-                Thread.sleep(sleepTimeInMilliseconds, sleepTimeInNanoseconds);
-            } catch (InterruptedException e) {
-                throw new AssertionError("Thread Interrupted", e);
-            }
+            pause();
         }
     }
 
@@ -120,13 +279,10 @@ public class InfiniteLoop {
      * @throws Exception
      */
     public void loopMayThrowException(RunnableThrowableException runnable) throws Exception {
+        loopThread = Thread.currentThread();
         while(true) {
             runnable.run();
-            try {
-                Thread.sleep(sleepTimeInMilliseconds, sleepTimeInNanoseconds);
-            } catch (InterruptedException e) {
-                throw new AssertionError("Thread Interrupted", e);
-            }
+            pause();
         }
     }
 
@@ -187,13 +343,10 @@ public class InfiniteLoop {
      * @throws Exception
      */
     public void loopMayThrowException(RunnableReturn<Boolean> condition, RunnableThrowableException runnable) throws Exception {
+        loopThread = Thread.currentThread();
         while(condition.run()) {
             runnable.run();
-            try {
-                Thread.sleep(sleepTimeInMilliseconds, sleepTimeInNanoseconds);
-            } catch (InterruptedException e) {
-                throw new AssertionError("Thread Interrupted", e);
-            }
+            pause();
         }
     }
 
@@ -220,13 +373,10 @@ public class InfiniteLoop {
      * }</pre>
      */
     public void loop(Runnable runnable) {
+        loopThread = Thread.currentThread();
         while(true) {
             runnable.run();
-            try {
-                Thread.sleep(sleepTimeInMilliseconds, sleepTimeInNanoseconds);
-            } catch (InterruptedException e) {
-                throw new AssertionError("Thread Interrupted", e);
-            }
+            pause();
         }
     }
 
@@ -288,13 +438,10 @@ public class InfiniteLoop {
      * }</pre>
      */
     public void loop(RunnableReturn<Boolean> condition, Runnable runnable) {
+        loopThread = Thread.currentThread();
         while(condition.run()) {
             runnable.run();
-            try {
-                Thread.sleep(sleepTimeInMilliseconds, sleepTimeInNanoseconds);
-            } catch (InterruptedException e) {
-                throw new AssertionError("Thread Interrupted", e);
-            }
+            pause();
         }
     }
 }
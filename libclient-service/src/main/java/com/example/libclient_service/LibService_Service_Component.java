@@ -32,6 +32,11 @@ public abstract class LibService_Service_Component extends Service {
 
     public AtomicBoolean onServiceConnectedCallbackCalled = new AtomicBoolean(false);
 
+    /**
+     * Waits for {@link #onServiceConnectedCallbackCalled}, signalled by the connection once it is set.
+     */
+    final InfiniteLoop onServiceConnectedCallbackCalledWait = new InfiniteLoop();
+
     /**
      * This service is only bound from inside the same process and never uses IPC.
      */
@@ -65,9 +70,8 @@ public abstract class LibService_Service_Component extends Service {
                 // wait for the activity service to start and bind with its activity
                 if (!onServiceConnectedCallbackCalled.get()) {
                     log.log_Error("waiting for onServiceConnectedCallbackCalled");
-                    InfiniteLoop infiniteLoop = new InfiniteLoop();
-                    infiniteLoop.setSleepTimeInMicroseconds(500);
-                    infiniteLoop.loop(() -> !onServiceConnectedCallbackCalled.get());
+                    onServiceConnectedCallbackCalledWait.setWaitStrategy(InfiniteLoop.WaitStrategy.SIGNAL);
+                    onServiceConnectedCallbackCalledWait.loop(() -> !onServiceConnectedCallbackCalled.get());
                     log.log_Error("onServiceConnectedCallbackCalled has been set");
                 }
                 mClients.add(message.replyTo);
@@ -49,6 +49,7 @@ public abstract class LibService_Service_Connection implements ServiceConnection
             log.errorAndThrowIfNull(service);
             onServiceConnectedCallback(boundService);
             service.onServiceConnectedCallbackCalled.set(true);
+            service.onServiceConnectedCallbackCalledWait.signal();
         } else {
             log.log_Info("onServiceConnected: binded to remote service");
             onServiceConnectedCallback(boundService);
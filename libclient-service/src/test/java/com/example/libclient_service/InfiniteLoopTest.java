@@ -0,0 +1,51 @@
+package com.example.libclient_service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Wait strategy tests for {@link InfiniteLoop}: an idle backoff loop settles into parking, and a
+ * signal wakes a parked loop long before its ceiling.
+ */
+public class InfiniteLoopTest {
+
+    @Test
+    public void backoff_idleLoopParksAndCountsWork() {
+        InfiniteLoop infiniteLoop = new InfiniteLoop();
+        infiniteLoop.setWaitStrategy(InfiniteLoop.WaitStrategy.BACKOFF);
+        infiniteLoop.setBackoffCeilingInNanoseconds(TimeUnit.MILLISECONDS.toNanos(5));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        AtomicInteger runs = new AtomicInteger();
+        infiniteLoop.loop(() -> System.nanoTime() < deadline, () -> {
+            if (runs.incrementAndGet() <= 50) infiniteLoop.markWork();
+        });
+
+        // Once the work stops, a busy loop would run millions of times in 200 ms, a parked one a
+        // few hundred at most.
+        assertTrue(infiniteLoop.getIterations() < 2000);
+        assertEquals(runs.get(), infiniteLoop.getIterations());
+        assertEquals(50, infiniteLoop.getWorkIterations());
+    }
+
+    @Test
+    public void signal_wakesTheLoopBeforeTheCeiling() throws InterruptedException {
+        InfiniteLoop infiniteLoop = new InfiniteLoop();
+        infiniteLoop.setWaitStrategy(InfiniteLoop.WaitStrategy.SIGNAL);
+        infiniteLoop.setBackoffCeilingInNanoseconds(TimeUnit.SECONDS.toNanos(30));
+        AtomicBoolean ready = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> infiniteLoop.loop(() -> !ready.get()));
+        waiter.start();
+        Thread.sleep(50);
+
+        ready.set(true);
+        infiniteLoop.signal();
+        waiter.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(waiter.isAlive());
+        assertTrue(infiniteLoop.getIterations() <= 2);
+    }
+}